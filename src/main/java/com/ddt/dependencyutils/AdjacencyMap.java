@@ -0,0 +1,282 @@
+package com.ddt.dependencyutils;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The dependencies or dependants of a Dependency, keyed by data key. Most Dependency objects have a handful of
+ * neighbours, so up to INLINE_LIMIT of them are held in an array of exactly that many references, with no table
+ * or entry objects, and found by scanning it: each Dependency holds its own key, so nothing else is needed. Past
+ * INLINE_LIMIT they move into a ConcurrentHashMap, and back into an array once half of those have gone.
+ * <p>
+ * The array is never changed once published, only replaced, and the ConcurrentHashMap is safe to read while it is
+ * changed, so readers never lock and never miss a Dependency which is present, however the map is changed
+ * around them. Changes are synchronized on the map.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class AdjacencyMap<K, V> extends AbstractMap<K, Dependency<K, V>> {
+    static final int INLINE_LIMIT = 8;
+    private static final Dependency<?, ?>[] EMPTY = new Dependency<?, ?>[0];
+
+    // Either a Dependency[] of at most INLINE_LIMIT members or a ConcurrentHashMap of more.
+    private volatile Object members = EMPTY;
+
+    @Override
+    public int size() {
+        Object members = this.members;
+        return members instanceof Dependency<?, ?>[] inline ? inline.length : table(members).size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return value instanceof Dependency<?, ?> d && get(d.getDataKey()) == value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Dependency<K, V> get(Object key) {
+        if (key == null) return null;
+        Object members = this.members;
+        if (members instanceof Dependency<?, ?>[] inline) {
+            for (Dependency<?, ?> member : inline) {
+                if (key.equals(member.getDataKey())) return (Dependency<K, V>) member;
+            }
+            return null;
+        }
+        return table(members).get(key);
+    }
+
+    /**
+     * @param key   the data key of value.
+     * @param value the Dependency.
+     * @return the Dependency previously held under key, or null.
+     * @throws IllegalArgumentException if key isn't the data key of value.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Dependency<K, V> put(K key, Dependency<K, V> value) {
+        if (key == null || !key.equals(value.getDataKey())) {
+            throw new IllegalArgumentException("A Dependency must be held under its own data key: " + key);
+        }
+        Object members = this.members;
+        if (!(members instanceof Dependency<?, ?>[] inline)) return table(members).put(key, value);
+
+        for (int i = 0; i < inline.length; i++) {
+            if (key.equals(inline[i].getDataKey())) {
+                Dependency<K, V> previous = (Dependency<K, V>) inline[i];
+                if (previous != value) {
+                    Dependency<?, ?>[] copy = inline.clone();
+                    copy[i] = value;
+                    this.members = copy;
+                }
+                return previous;
+            }
+        }
+        if (inline.length < INLINE_LIMIT) {
+            Dependency<?, ?>[] copy = Arrays.copyOf(inline, inline.length + 1);
+            copy[inline.length] = value;
+            this.members = copy;
+        } else {
+            Map<K, Dependency<K, V>> table = new ConcurrentHashMap<>(4 * INLINE_LIMIT);
+            for (Dependency<?, ?> member : inline) table.put((K) member.getDataKey(), (Dependency<K, V>) member);
+            table.put(key, value);
+            this.members = table;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Dependency<K, V> remove(Object key) {
+        Dependency<K, V> removed = get(key);
+        if (removed != null) delete(removed);
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        Dependency<K, V> removed = get(key);
+        if (removed == null || !removed.equals(value)) return false;
+        delete(removed);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        members = EMPTY;
+    }
+
+    private void delete(Dependency<K, V> removed) {
+        Object members = this.members;
+        if (members instanceof Dependency<?, ?>[] inline) {
+            if (inline.length == 1) {
+                this.members = EMPTY;
+                return;
+            }
+            Dependency<?, ?>[] copy = new Dependency<?, ?>[inline.length - 1];
+            int n = 0;
+            for (Dependency<?, ?> member : inline) {
+                if (member != removed) copy[n++] = member;
+            }
+            this.members = copy;
+            return;
+        }
+
+        Map<K, Dependency<K, V>> table = table(members);
+        table.remove(removed.getDataKey(), removed);
+        if (table.size() <= INLINE_LIMIT / 2) this.members = table.values().toArray(new Dependency<?, ?>[0]);
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super Dependency<K, V>> action) {
+        for (Dependency<K, V> dependency : values()) action.accept(dependency.getDataKey(), dependency);
+    }
+
+    @Override
+    public Collection<Dependency<K, V>> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Dependency<K, V>> iterator() {
+                return new Members();
+            }
+
+            @Override
+            public int size() {
+                return AdjacencyMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o);
+            }
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<K> iterator() {
+                Members members = new Members();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return members.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return members.next().getDataKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        members.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return AdjacencyMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<K, Dependency<K, V>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<K, Dependency<K, V>>> iterator() {
+                Members members = new Members();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return members.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, Dependency<K, V>> next() {
+                        Dependency<K, V> dependency = members.next();
+                        return new SimpleImmutableEntry<>(dependency.getDataKey(), dependency);
+                    }
+
+                    @Override
+                    public void remove() {
+                        members.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return AdjacencyMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the members as they were when it was created: an inline array as it stood, or a table as
+     * ConcurrentHashMap iterates, weakly consistently. Removing goes through the map, so it can move back inline.
+     */
+    private final class Members implements Iterator<Dependency<K, V>> {
+        private final Iterator<? extends Dependency<?, ?>> source;
+        private Dependency<K, V> last;
+
+        Members() {
+            Object members = AdjacencyMap.this.members;
+            source = members instanceof Dependency<?, ?>[] inline
+                    ? Arrays.asList(inline).iterator()
+                    : table(members).values().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return source.hasNext();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Dependency<K, V> next() {
+            last = (Dependency<K, V>) source.next();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) throw new IllegalStateException();
+            AdjacencyMap.this.remove(last.getDataKey(), last);
+            last = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<K, Dependency<K, V>> table(Object members) {
+        return (Map<K, Dependency<K, V>>) members;
+    }
+}
@@ -0,0 +1,399 @@
+package com.ddt.dependencyutils;
+
+import com.ddt.dependencyutils.exception.CircularDependenciesException;
+
+import java.util.*;
+
+/**
+ * Adds a batch of edges to a DependencyForest as a single transaction. The edges are staged, the part of the forest
+ * they can reach is checked for cycles with one linear-time topological sort and, only if there are none, the
+ * edges are wired in and the forest's root, leaf and ordering state is brought up to date in one pass.
+ * <p>
+ * Unlike Dependency.addDependency, an edge which duplicates a route that already exists through other
+ * dependencies is accepted. Only edges which would close a cycle are rejected.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class BulkEdgeLoader<K, V> {
+    private static final int[] NONE = new int[0];
+
+    private final DependencyForest<K, V> forest;
+    private final Map<Dependency<K, V>, Dependency<K, V>> canonical = new IdentityHashMap<>();
+    private final Map<K, Dependency<K, V>> stagedByKey = new HashMap<>();
+    private final List<DependencyForest.Edge<K, V>> staged = new ArrayList<>();
+    private final List<DependencyForest.Edge<K, V>> selfDependencies = new ArrayList<>();
+
+    // The ends of the staged edges, numbered as they are first staged.
+    private final Map<Dependency<K, V>, Integer> ids = new IdentityHashMap<>();
+    private final List<Dependency<K, V>> nodes = new ArrayList<>();
+
+    // The ends of each edge staged, by number, repeats included.
+    private int[] edgeDependants = new int[16];
+    private int[] edgeDependencies = new int[16];
+    private int edgeCount;
+
+    // The staged dependencies and dependants of each end, by number, once every edge has been staged.
+    private int[][] stagedDependencies;
+    private int[][] stagedDependants;
+
+    BulkEdgeLoader(DependencyForest<K, V> forest) {
+        this.forest = forest;
+    }
+
+    /**
+     * Validates and adds the edges.
+     * <p>
+     * Only the part of the forest the staged edges can upset is looked at. An edge whose dependency already comes
+     * before its dependant in the forest's topological order can neither close a cycle nor upset the order. Any
+     * cycle runs through one of the other, backward, edges and stays within the window of order values between
+     * the lowest dependant and the highest dependency of those edges, so the nodes within the window downstream of
+     * a backward edge's dependant and upstream of a backward edge's dependency are the only ones sorted. They and
+     * the nodes between them and the edges are then given the order values they already hold between them, so
+     * nothing outside the window moves (Pearce-Kelly, for a batch of edges).
+     * </p>
+     *
+     * @param edges the edges to add.
+     * @throws CircularDependenciesException listing every edge lying on a cycle. Nothing is added if it is thrown.
+     * @throws IllegalArgumentException      if an edge names a Dependency with the same data key as a different
+     *                                       forest member, or as a different Dependency earlier in the batch.
+     *                                       Nothing is added if it is thrown.
+     */
+    void load(Collection<DependencyForest.Edge<K, V>> edges) throws CircularDependenciesException {
+        for (DependencyForest.Edge<K, V> edge : edges) stage(edge);
+        group();
+        if (staged.isEmpty() && selfDependencies.isEmpty()) return;
+
+        // Order every end, along with any unordered Dependency objects connected to it. Dependencies go first, so
+        // a batch of new Dependency objects listed roots first doesn't need re-ordering.
+        TopologicalOrder<K, V> order = forest.getTopologicalOrder();
+        for (DependencyForest.Edge<K, V> edge : staged) {
+            order.orderOf(edge.dependency());
+            order.orderOf(edge.dependant());
+        }
+
+        List<Dependency<K, V>> dependants = new ArrayList<>();
+        List<Dependency<K, V>> dependencies = new ArrayList<>();
+        int low = Integer.MAX_VALUE;
+        int high = Integer.MIN_VALUE;
+        for (DependencyForest.Edge<K, V> edge : staged) {
+            int dependantOrder = edge.dependant().topologicalOrder();
+            int dependencyOrder = edge.dependency().topologicalOrder();
+            if (dependencyOrder < dependantOrder) continue;
+            dependants.add(edge.dependant());
+            dependencies.add(edge.dependency());
+            low = Math.min(low, dependantOrder);
+            high = Math.max(high, dependencyOrder);
+        }
+
+        Set<Dependency<K, V>> downstream = reach(dependants, true, high);
+        Set<Dependency<K, V>> upstream = reach(dependencies, false, low);
+
+        // Every cycle lies on both sides.
+        Map<Dependency<K, V>, Integer> regionIds = new IdentityHashMap<>();
+        List<Dependency<K, V>> region = new ArrayList<>();
+        for (Dependency<K, V> node : downstream) {
+            if (upstream.contains(node)) {
+                regionIds.put(node, region.size());
+                region.add(node);
+            }
+        }
+
+        // Successors run from each dependency to its dependants, existing and staged.
+        int[][] successors = new int[region.size()][];
+        for (int i = 0; i < region.size(); i++) {
+            Dependency<K, V> node = region.get(i);
+            List<Dependency<K, V>> next = new ArrayList<>();
+            if (node.hasDependants()) next.addAll(node.getDependants().values());
+            Integer id = ids.get(node);
+            if (id != null) {
+                for (int dependant : stagedDependants[id]) next.add(nodes.get(dependant));
+            }
+            successors[i] = next.stream().map(regionIds::get).filter(Objects::nonNull)
+                    .mapToInt(Integer::intValue).toArray();
+        }
+
+        List<Dependency<K, V>> sorted = topologicalSort(region, successors);
+        if (sorted.size() < region.size() || !selfDependencies.isEmpty()) {
+            int[] components = stronglyConnectedComponents(successors);
+            List<DependencyForest.Edge<?, ?>> circular = new ArrayList<>(selfDependencies);
+            for (DependencyForest.Edge<K, V> edge : staged) {
+                Integer dependant = regionIds.get(edge.dependant());
+                Integer dependency = regionIds.get(edge.dependency());
+                if (dependant != null && dependency != null && components[dependant] == components[dependency]) {
+                    circular.add(edge);
+                }
+            }
+            throw new CircularDependenciesException(circular);
+        }
+
+        // Upstream only nodes keep their relative order and go first, downstream only nodes go last.
+        Comparator<Dependency<K, V>> byOrder = Comparator.comparingInt(Dependency::topologicalOrder);
+        List<Dependency<K, V>> reordered = new ArrayList<>();
+        upstream.stream().filter(node -> !regionIds.containsKey(node)).sorted(byOrder).forEach(reordered::add);
+        reordered.addAll(sorted);
+        downstream.stream().filter(node -> !regionIds.containsKey(node)).sorted(byOrder).forEach(reordered::add);
+
+        commit(reordered);
+    }
+
+    /**
+     * Collects the ordered nodes reachable from starts through existing and staged edges, within the window.
+     *
+     * @param starts     the nodes to start from.
+     * @param downstream true to follow dependants, only as far as bound; false to follow dependencies, only as far
+     *                   back as bound.
+     * @param bound      the order value bounding the window.
+     * @return the nodes reached, including starts.
+     */
+    private Set<Dependency<K, V>> reach(List<Dependency<K, V>> starts, boolean downstream, int bound) {
+        TopologicalOrder<K, V> order = forest.getTopologicalOrder();
+        Set<Dependency<K, V>> reached = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        for (Dependency<K, V> start : starts) {
+            if (reached.add(start)) stack.push(start);
+        }
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            List<Dependency<K, V>> next = new ArrayList<>();
+            Map<K, Dependency<K, V>> existing = downstream ? node.getDependants() : node.getDependencies();
+            if (existing != null) next.addAll(existing.values());
+            Integer id = ids.get(node);
+            if (id != null) {
+                for (int added : (downstream ? stagedDependants : stagedDependencies)[id]) next.add(nodes.get(added));
+            }
+            for (Dependency<K, V> neighbour : next) {
+                if (!order.isOrdered(neighbour)) continue;
+                int value = neighbour.topologicalOrder();
+                if (downstream ? value > bound : value < bound) continue;
+                if (reached.add(neighbour)) stack.push(neighbour);
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Maps both ends of an edge on to the Dependency objects the forest or the batch already hold, so that the
+     * same node loaded twice is only wired in once.
+     */
+    private void stage(DependencyForest.Edge<K, V> edge) {
+        Dependency<K, V> dependant = canonical(edge.dependant());
+        Dependency<K, V> dependency = canonical(edge.dependency());
+        if (dependant == dependency) {
+            selfDependencies.add(edge);
+            return;
+        }
+
+        if (dependant.hasDependencies() && dependant.getDependencies().get(dependency.getDataKey()) == dependency)
+            return;
+
+        if (edgeCount == edgeDependants.length) {
+            edgeDependants = Arrays.copyOf(edgeDependants, edgeCount * 2);
+            edgeDependencies = Arrays.copyOf(edgeDependencies, edgeCount * 2);
+        }
+        edgeDependants[edgeCount] = id(dependant);
+        edgeDependencies[edgeCount] = id(dependency);
+        edgeCount++;
+    }
+
+    private int id(Dependency<K, V> node) {
+        Integer id = ids.get(node);
+        if (id != null) return id;
+        ids.put(node, nodes.size());
+        nodes.add(node);
+        return nodes.size() - 1;
+    }
+
+    /**
+     * Groups the staged edges by their ends once they have all been staged, dropping repeats of the same edge.
+     * The edges keep the order they were given in.
+     */
+    private void group() {
+        int size = nodes.size();
+
+        // Counting sort of the edges by dependant.
+        int[] start = new int[size + 1];
+        for (int k = 0; k < edgeCount; k++) start[edgeDependants[k] + 1]++;
+        for (int i = 0; i < size; i++) start[i + 1] += start[i];
+        int[] byDependant = new int[edgeCount];
+        int[] cursor = Arrays.copyOf(start, size);
+        for (int k = 0; k < edgeCount; k++) byDependant[cursor[edgeDependants[k]]++] = k;
+
+        BitSet repeated = new BitSet(edgeCount);
+        int[] lastDependant = new int[size];
+        Arrays.fill(lastDependant, -1);
+        int[] dependencyCount = new int[size];
+        int[] dependantCount = new int[size];
+        for (int i = 0; i < size; i++) {
+            for (int p = start[i]; p < start[i + 1]; p++) {
+                int dependency = edgeDependencies[byDependant[p]];
+                if (lastDependant[dependency] == i) {
+                    repeated.set(byDependant[p]);
+                    continue;
+                }
+                lastDependant[dependency] = i;
+                dependencyCount[i]++;
+                dependantCount[dependency]++;
+            }
+        }
+
+        stagedDependencies = new int[size][];
+        stagedDependants = new int[size][];
+        for (int i = 0; i < size; i++) {
+            stagedDependencies[i] = dependencyCount[i] == 0 ? NONE : new int[dependencyCount[i]];
+            stagedDependants[i] = dependantCount[i] == 0 ? NONE : new int[dependantCount[i]];
+            dependencyCount[i] = 0;
+            dependantCount[i] = 0;
+        }
+        for (int k = 0; k < edgeCount; k++) {
+            if (repeated.get(k)) continue;
+            int dependant = edgeDependants[k];
+            int dependency = edgeDependencies[k];
+            stagedDependencies[dependant][dependencyCount[dependant]++] = dependency;
+            stagedDependants[dependency][dependantCount[dependency]++] = dependant;
+            staged.add(new DependencyForest.Edge<>(nodes.get(dependant), nodes.get(dependency)));
+        }
+        edgeDependants = null;
+        edgeDependencies = null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a different forest member, or a different Dependency earlier in the
+     *                                  batch, has the same data key. Only one of them could be held under it.
+     */
+    private Dependency<K, V> canonical(Dependency<K, V> dependency) {
+        Dependency<K, V> known = canonical.get(dependency);
+        if (known != null) return known;
+
+        known = forest.get(dependency.getDataKey());
+        if (known == null) known = stagedByKey.putIfAbsent(dependency.getDataKey(), dependency);
+        if (known == null) {
+            known = dependency;
+        } else if (!dependency.equals(known)) {
+            throw new IllegalArgumentException("Dependency " + dependency.getDataKey()
+                    + " has the same data key as a different Dependency");
+        }
+        canonical.put(dependency, known);
+        return known;
+    }
+
+    /**
+     * Kahn's algorithm. Nodes on or downstream of a cycle are left out of the result.
+     */
+    private List<Dependency<K, V>> topologicalSort(List<Dependency<K, V>> nodes, int[][] successors) {
+        int[] inDegree = new int[nodes.size()];
+        for (int[] next : successors) {
+            for (int node : next) inDegree[node]++;
+        }
+
+        int[] ready = new int[nodes.size()];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < inDegree.length; i++) {
+            if (inDegree[i] == 0) ready[tail++] = i;
+        }
+
+        List<Dependency<K, V>> sorted = new ArrayList<>(nodes.size());
+        while (head < tail) {
+            int node = ready[head++];
+            sorted.add(nodes.get(node));
+            for (int next : successors[node]) {
+                if (--inDegree[next] == 0) ready[tail++] = next;
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Iterative Tarjan.
+     *
+     * @return the component number of every node.
+     */
+    private int[] stronglyConnectedComponents(int[][] successors) {
+        int size = successors.length;
+        int[] index = new int[size];
+        int[] lowLink = new int[size];
+        int[] component = new int[size];
+        int[] edgeCursor = new int[size];
+        boolean[] onStack = new boolean[size];
+        Arrays.fill(index, -1);
+
+        int[] sccStack = new int[size];
+        int sccTop = 0;
+        int[] callStack = new int[size];
+        int callTop = 0;
+        int nextIndex = 0;
+        int nextComponent = 0;
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] != -1) continue;
+            callStack[callTop++] = root;
+            index[root] = lowLink[root] = nextIndex++;
+            sccStack[sccTop++] = root;
+            onStack[root] = true;
+
+            while (callTop > 0) {
+                int node = callStack[callTop - 1];
+                if (edgeCursor[node] < successors[node].length) {
+                    int next = successors[node][edgeCursor[node]++];
+                    if (index[next] == -1) {
+                        index[next] = lowLink[next] = nextIndex++;
+                        sccStack[sccTop++] = next;
+                        onStack[next] = true;
+                        callStack[callTop++] = next;
+                    } else if (onStack[next]) {
+                        lowLink[node] = Math.min(lowLink[node], index[next]);
+                    }
+                    continue;
+                }
+
+                callTop--;
+                if (callTop > 0) {
+                    int parent = callStack[callTop - 1];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                }
+                if (lowLink[node] == index[node]) {
+                    int member;
+                    do {
+                        member = sccStack[--sccTop];
+                        onStack[member] = false;
+                        component[member] = nextComponent;
+                    } while (member != node);
+                    nextComponent++;
+                }
+            }
+        }
+        return component;
+    }
+
+    /**
+     * Wires in the staged edges, then brings the forest up to date.
+     *
+     * @param reordered the nodes whose order values are to be shared out again, dependencies first.
+     */
+    private void commit(List<Dependency<K, V>> reordered) {
+        // Edges whose dependant joins the forest are reported as it joins, so only the rest are reported here.
+        List<DependencyForest.Edge<K, V>> added = new ArrayList<>();
+        for (DependencyForest.Edge<K, V> edge : staged) {
+            if (edge.dependant().getDependencyForest() == forest) added.add(edge);
+            edge.dependant().linkDependency(edge.dependency());
+        }
+
+        Set<Dependency<K, V>> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (DependencyForest.Edge<K, V> edge : staged) {
+            touched.add(edge.dependant());
+            touched.add(edge.dependency());
+        }
+        for (Dependency<K, V> node : touched) {
+            if (node.getDependencyForest() != forest) node.setDependencyForest(forest);
+            forest.updateDependency(node);
+        }
+
+        forest.getTopologicalOrder().reassign(reordered);
+        ReachabilityIndex<K, V> index = forest.getReachabilityIndex();
+        if (index != null) index.invalidate();
+
+        for (DependencyForest.Edge<K, V> edge : added) forest.edgeAdded(edge.dependant(), edge.dependency());
+    }
+}
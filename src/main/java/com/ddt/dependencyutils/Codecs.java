@@ -0,0 +1,134 @@
+package com.ddt.dependencyutils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+
+/**
+ * The built-in DependencyCodec implementations.
+ */
+final class Codecs {
+    private Codecs() {
+    }
+
+    /**
+     * Used where no codec has been given: writes toString() and reads the text of a value.
+     */
+    static final DependencyCodec<Object> TEXT = new DependencyCodec<>() {
+        @Override
+        public void write(Object value, JsonGenerator gen) throws IOException {
+            if (value == null) {
+                gen.writeNull();
+            } else {
+                gen.writeString(value.toString());
+            }
+        }
+
+        @Override
+        public Object read(JsonParser jp) throws IOException {
+            return text(jp);
+        }
+    };
+
+    static final DependencyCodec<String> STRINGS = new DependencyCodec<>() {
+        @Override
+        public void write(String value, JsonGenerator gen) throws IOException {
+            gen.writeString(value);
+        }
+
+        @Override
+        public String read(JsonParser jp) throws IOException {
+            return jp.currentToken() == JsonToken.VALUE_NULL ? null : text(jp);
+        }
+    };
+
+    static final DependencyCodec<Long> LONGS = new DependencyCodec<>() {
+        @Override
+        public void write(Long value, JsonGenerator gen) throws IOException {
+            if (value == null) {
+                gen.writeNull();
+            } else {
+                gen.writeNumber(value);
+            }
+        }
+
+        @Override
+        public Long read(JsonParser jp) throws IOException {
+            return switch (jp.currentToken()) {
+                case VALUE_NUMBER_INT -> jp.getLongValue();
+                case VALUE_NULL -> null;
+                default -> {
+                    try {
+                        yield Long.valueOf(text(jp));
+                    } catch (NumberFormatException nfe) {
+                        throw new JsonParseException(jp, "Expected a whole number but found " + jp.getText());
+                    }
+                }
+            };
+        }
+    };
+
+    static final DependencyCodec<Integer> INTEGERS = new DependencyCodec<>() {
+        @Override
+        public void write(Integer value, JsonGenerator gen) throws IOException {
+            if (value == null) {
+                gen.writeNull();
+            } else {
+                gen.writeNumber(value);
+            }
+        }
+
+        @Override
+        public Integer read(JsonParser jp) throws IOException {
+            return switch (jp.currentToken()) {
+                case VALUE_NUMBER_INT -> jp.getIntValue();
+                case VALUE_NULL -> null;
+                default -> {
+                    try {
+                        yield Integer.valueOf(text(jp));
+                    } catch (NumberFormatException nfe) {
+                        throw new JsonParseException(jp, "Expected a whole number but found " + jp.getText());
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * Binds values with the shared ObjectMapper. The reader and writer are built once per codec and are
+     * thread-safe.
+     */
+    static final class Bound<T> implements DependencyCodec<T> {
+        private final ObjectReader reader;
+        private final ObjectWriter writer;
+
+        Bound(Class<T> type) {
+            reader = DependencyJson.mapper().readerFor(type);
+            // The generator is flushed once, when the whole document has been written.
+            writer = DependencyJson.mapper().writerFor(type).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        }
+
+        @Override
+        public void write(T value, JsonGenerator gen) throws IOException {
+            writer.writeValue(gen, value);
+        }
+
+        @Override
+        public T read(JsonParser jp) throws IOException {
+            return jp.currentToken() == JsonToken.VALUE_NULL ? null : reader.readValue(jp);
+        }
+    }
+
+    private static String text(JsonParser jp) throws IOException {
+        if (!jp.currentToken().isScalarValue()) {
+            throw new JsonParseException(jp, "Expected a single value but found " + jp.currentToken());
+        }
+        return jp.getText();
+    }
+}
@@ -1,22 +1,28 @@
 package com.ddt.dependencyutils;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.ddt.dependencyutils.exception.CircularDependencyException;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import com.fasterxml.jackson.databind.module.SimpleModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.annotation.Order;
-import org.springframework.lang.NonNull;
 
 /**
  * TODO: Implement recursive equals such that the comparison checks whether the comparators have identical
@@ -59,21 +65,63 @@ public class Dependency<K, V> {
     @JsonProperty("dependants")
     private Map<K, Dependency<K, V>> dependants = null;
     @JsonProperty("finished")
-    private boolean finished = false;
+    private volatile boolean finished = false;
     @JsonIgnore
     private boolean isADependency = false;
+    // The forest's count of unfinished dependencies, -1 until it has counted them. Kept by ReadySet.
+    @JsonIgnore
+    private int unfinishedDependencies = -1;
+    // The order value given by a forest's TopologicalOrder, valid while orderedBy is that order.
+    @JsonIgnore
+    private TopologicalOrder<K, V> orderedBy;
+    @JsonIgnore
+    private int topologicalOrder;
 
     public DependencyForest<K, V> getDependencyForest() {
         return dependencyForest;
     }
 
-    public List<List<Dependency<K, V>>> routesToRootNodes;
     @JsonIgnore
-    private DependencyForest<K, V> dependencyForest;
+    private volatile DependencyForest<K, V> dependencyForest;
 
     @JsonIgnore
     private DependencyForest.SerializingScheme serializingScheme = DependencyForest.SerializingScheme.DEPENDANTS;
 
+    @JsonIgnore
+    private volatile RouteStatistics<K, V> routeStatistics;
+
+    /**
+     * Memoized facts about the routes from a Dependency to its root nodes. They are dropped, along with those of
+     * every transitive dependant, when a dependency is added to or removed from the Dependency.
+     *
+     * @param routeCount        the number of routes, saturating at Long.MAX_VALUE.
+     * @param minDepth          the length of the shortest route.
+     * @param maxDepth          the length of the longest route.
+     * @param deepestDependency the direct dependency the longest route passes through, null for a root node.
+     */
+    private record RouteStatistics<K, V>(long routeCount, int minDepth, int maxDepth,
+                                         Dependency<K, V> deepestDependency) {
+    }
+
+    /**
+     * A memoized count, valid while no dependency has been added or removed since version was read from source.
+     */
+    private record CachedCount(AtomicLong source, long version, int count) {
+        boolean isCurrent(AtomicLong source) {
+            return this.source == source && version == source.get();
+        }
+    }
+
+    @JsonIgnore
+    private volatile CachedCount ancestorCount;
+
+    @JsonIgnore
+    private volatile CachedCount descendantCount;
+
+    // Bumped after every change to the dependencies of a Dependency outside any forest. Members of a forest use
+    // the forest's own counter, so a change in one forest doesn't invalidate the memoized counts of another.
+    private static final AtomicLong looseEdgeVersion = new AtomicLong();
+
     private static List<Dependency<?,?>> outermostLeafDependencies;
     private static List<Dependency<?,?>> dependenciesWithNoDependencies;
 
@@ -88,18 +136,49 @@ public class Dependency<K, V> {
     }
 
     /**
-     * If a Dependency is added, then the Dependency it is added to is in turn added as a Dependant.
+     * If a Dependency is added, then the Dependency it is added to is in turn added as a Dependant. Records how to
+     * take both sides out again should the transaction making the change fail.
      *
-     * @param dependant the Dependency to add as a Dependant.
+     * @param dependency the Dependency to add as a dependency, which gets this Dependency as a dependant.
      */
-    private void addDependant(Dependency<K,V> dependant){
-        if (this.hasForest()) {
-            dependant.setDependencyForest(getDependencyForest());
+    private void wire(Dependency<K, V> dependency) {
+        if (dependencies == null) {
+            dependencies = new AdjacencyMap<>();
         }
-        if(this.dependants==null){
-            this.dependants = new ConcurrentHashMap<>();
+        if (dependency.dependants == null) {
+            dependency.dependants = new AdjacencyMap<>();
+        }
+        Dependency<K, V> replacedDependency = dependencies.put(dependency.getDataKey(), dependency);
+        Dependency<K, V> replacedDependant = dependency.dependants.put(getDataKey(), this);
+        boolean wasADependency = dependency.isADependency;
+        dependency.setIsADependency(true);
+        ForestLock.undo(() -> unwire(dependency, replacedDependency, replacedDependant, wasADependency));
+    }
+
+    /**
+     * Takes back wire, putting back whatever the new edge replaced.
+     */
+    private void unwire(Dependency<K, V> dependency, Dependency<K, V> replacedDependency,
+                        Dependency<K, V> replacedDependant, boolean wasADependency) {
+        edgesChanged(this, dependency);
+        restore(dependencies, dependency.getDataKey(), dependency, replacedDependency);
+        restore(dependency.dependants, getDataKey(), this, replacedDependant);
+        dependency.setIsADependency(wasADependency);
+        edgesChanged(this, dependency);
+        dropRouteStatistics(this);
+        for (Dependency<K, V> end : Arrays.asList(this, dependency)) {
+            DependencyForest<K, V> forest = end.dependencyForest;
+            if (forest != null) forest.restored(end, false);
+        }
+    }
+
+    private static <K, V> void restore(Map<K, Dependency<K, V>> map, K key, Dependency<K, V> added,
+                                       Dependency<K, V> replaced) {
+        if (replaced != null) {
+            map.put(key, replaced);
+        } else {
+            map.remove(key, added);
         }
-        this.dependants.put(dependant.getDataKey(),dependant);
     }
 
     /**
@@ -112,7 +191,17 @@ public class Dependency<K, V> {
     public void addDependency(Dependency<K, V> dependency)
             throws CircularDependencyException, NullPointerException {
         if (dependency == null) return;
+        transaction(dependency, () -> {
+            insertDependency(dependency);
+            return null;
+        });
+    }
 
+    /**
+     * Validates and wires in a dependency, and brings the forest up to date. Runs as a single transaction so that
+     * no other change to the forest can come between validating the new edge and adding both of its sides.
+     */
+    private void insertDependency(Dependency<K, V> dependency) throws CircularDependencyException {
         /**
          * Order is crucial. Even if we have no dependencies, the new dependency may still have this Dependency
          * as an ancestor dependency, so we have to check first.
@@ -122,96 +211,332 @@ public class Dependency<K, V> {
         validateNewDependency(this,dependency);
 
         // If we get here, we didn't throw a CircularReferenceException so the new dependency is valid.
-        if (dependencies == null) {
-            dependencies = new ConcurrentHashMap<>();
-        }
-
         // Save time if it's already been added.
-        if (dependencies.containsKey(dependency.getDataKey())
+        if (dependencies != null && dependencies.containsKey(dependency.getDataKey())
                 && dependencies.get(dependency.getDataKey()).equals(dependency)) return;
 
-        dependencies.put(dependency.getDataKey(), dependency);
+        // A Dependency joining the forest has its edges, the new one included, reported as it joins.
+        DependencyForest<K, V> previousForest = dependencyForest;
+        edgesChanged(this, dependency);
+        wire(dependency);
+        if (dependency.hasForest()) {
+            setDependencyForest(dependency.getDependencyForest());
+        }
+        edgesChanged(this, dependency);
+        dropRouteStatistics(this);
 
-        dependency.setIsADependency(true);
-        dependency.addDependant(this);
-        setRoutesToRootNodes();
+        ReachabilityIndex<K, V> index = reachabilityIndex();
+        if (index != null) index.dependencyAdded(this, dependency);
 
-        // We now have dependencies.
+        // We now have dependencies. Only the two ends of the new edge can have changed root or leaf status.
         if (hasForest()) {
             dependency.setDependencyForest(dependencyForest);
-            dependency.setSerializingScheme(dependencyForest.getSerializingScheme());
-            dependencyForest.updateAllDependencies();
+            dependencyForest.updateDependency(this);
+            dependencyForest.updateDependency(dependency);
+            if (dependencyForest == previousForest) dependencyForest.edgeAdded(this, dependency);
         }
     }
 
     /**
-     * Sorts the routesToRootNodes by size of route to all ancestor root nodes from this Dependency
-     * and returns the resulting sorted List<Dependency<K,V>>
+     * Wires in a dependency, and the matching dependant on the other side, without validating it or updating a
+     * DependencyForest. Used by callers which validate and update in bulk.
+     *
+     * @param dependency the Dependency to add.
+     */
+    void linkDependency(Dependency<K, V> dependency) {
+        edgesChanged(this, dependency);
+        wire(dependency);
+        edgesChanged(this, dependency);
+        dropRouteStatistics(this);
+    }
+
+    /**
+     * @return the counter bumped by changes to the dependencies of this Dependency: its forest's, or the one shared
+     * by every Dependency outside a forest.
+     */
+    private AtomicLong edgeVersion() {
+        DependencyForest<K, V> forest = dependencyForest;
+        return forest == null ? looseEdgeVersion : forest.getEdgeVersion();
+    }
+
+    /**
+     * Drops the memoized route statistics of a Dependency whose dependencies have changed, and those of its
+     * transitive dependants. Statistics are only ever worked out for a Dependency once they are known for all of
+     * its dependencies, so a Dependency without statistics has no dependant with any and the walk stops there. Only
+     * the dependants which have been asked about since the last change are visited.
+     */
+    private static <K, V> void dropRouteStatistics(Dependency<K, V> changed) {
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        stack.push(changed);
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            if (node.routeStatistics == null) continue;
+            node.routeStatistics = null;
+            if (node.hasDependants()) node.getDependants().values().forEach(stack::push);
+        }
+    }
+
+    /**
+     * Invalidates the memoized counts depending on an edge between two Dependency objects,
+     * which may not yet belong to the same forest. Called both before and after the edge changes, so that anything
+     * worked out from a graph half way through the change carries a version which is already out of date.
+     */
+    private static void edgesChanged(Dependency<?, ?> dependant, Dependency<?, ?> dependency) {
+        AtomicLong first = dependant.edgeVersion();
+        AtomicLong second = dependency.edgeVersion();
+        first.incrementAndGet();
+        if (second != first) second.incrementAndGet();
+    }
+
+    /**
+     * Returns every route from this Dependency to its root nodes, shortest routes first. Each route starts with a
+     * direct dependency of this Dependency and ends with a root node. Routes are worked out when asked for, so
+     * the result always reflects the current tree. The number of routes can grow exponentially with the number
+     * of shared dependencies; use getRoutesToRootNodes(int) or streamRoutesToRootNodes when only some are needed.
      *
      * @return List of sorted routes to root nodes from this Dependency.
      */
     public List<List<Dependency<K, V>>> getRoutesToRootNodes() {
-        if (routesToRootNodes != null) {
-            // This is called every time because there is no guarantee Dependency objects have not been added
-            // or removed since the last time the routes were generated.
-            setRoutesToRootNodes();
-            routesToRootNodes.sort(Comparator.comparingInt(List::size));
+        return getRoutesToRootNodes(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns at most limit of the shortest routes from this Dependency to its root nodes. Only as much of the
+     * tree as is needed to find them is explored.
+     *
+     * @param limit the maximum number of routes to return.
+     * @return List of the shortest routes to root nodes from this Dependency.
+     */
+    public List<List<Dependency<K, V>>> getRoutesToRootNodes(int limit) {
+        List<List<Dependency<K, V>>> routes = new ArrayList<>();
+        Iterator<List<Dependency<K, V>>> iterator = new RouteIterator<>(this, true);
+        while (routes.size() < limit && iterator.hasNext()) {
+            routes.add(iterator.next());
         }
+        return routes;
+    }
+
+    /**
+     * Streams the routes from this Dependency to its root nodes. Routes are found lazily as the stream is
+     * consumed, so limiting the stream limits the work done.
+     *
+     * @param shortestFirst true to stream routes in order of increasing length, false to stream them depth first,
+     *                      which needs memory only in proportion to the depth of the tree.
+     * @return a sequential Stream of routes.
+     */
+    public Stream<List<Dependency<K, V>>> streamRoutesToRootNodes(boolean shortestFirst) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                new RouteIterator<>(this, shortestFirst), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
 
-        return routesToRootNodes;
+
+    /**
+     * Counts the routes from this Dependency to its root nodes without enumerating them. The count is worked out
+     * once for each ancestor in a single pass and remembered until a dependency is added to or removed from this
+     * Dependency or one of its ancestors.
+     *
+     * @return the number of routes, or Long.MAX_VALUE if there are more than that.
+     */
+    public long countRoutesToRoots() {
+        return routeStatistics().routeCount();
     }
 
     /**
-     * Builds a list of this Dependency's routes to its root nodes. This is useful for display purposes. If we
-     * know which nodes are the furthest away from their roots, we can better display the Dependency tree.
+     * @return the length of the shortest route from this Dependency to a root node, 0 for a root node.
      */
-    private void setRoutesToRootNodes() {
-        if (routesToRootNodes == null) {
-            routesToRootNodes = new CopyOnWriteArrayList<>();
-        } else {
-            routesToRootNodes.clear();
+    public int minDepth() {
+        return routeStatistics().minDepth();
+    }
+
+    /**
+     * @return the length of the longest route from this Dependency to a root node, 0 for a root node.
+     */
+    public int maxDepth() {
+        return routeStatistics().maxDepth();
+    }
+
+    /**
+     * Returns the longest route from this Dependency to a root node, in the same form as the routes returned by
+     * getRoutesToRootNodes. Only the nodes on the route are visited once the depths are known.
+     *
+     * @return the longest route, empty for a root node.
+     */
+    public List<Dependency<K, V>> longestRouteToRoot() {
+        List<Dependency<K, V>> route = new ArrayList<>(maxDepth());
+        for (Dependency<K, V> node = routeStatistics().deepestDependency(); node != null;
+             node = node.routeStatistics().deepestDependency()) {
+            route.add(node);
         }
-        setRoutesToRootNodes(routesToRootNodes, null);
+        return route;
     }
 
     /**
-     * Recursively builds routes to root nodes and adds them to the routes List as each root node is detected.
-     * @param routes the List in which to store routes.
-     * @param route the current route being derived.
+     * Returns the memoized route statistics of this Dependency, working out those of any ancestor which doesn't
+     * have them yet, dependencies first, with an explicit stack.
+     * <p>
+     * Within a DependencyForest they are worked out under the forest's read lock, so no transaction can change the
+     * graph part way through and a change, which drops the statistics it affects under the write lock, can't be
+     * followed by statistics worked out from the graph as it was before.
+     * </p>
      */
-    private void setRoutesToRootNodes(List<List<Dependency<K, V>>> routes, ArrayList<Dependency<K, V>> route) {
-        // Always add this node to the route so that all routes have at least one node, that being the root
-        // node of the given route.
-        if (route != null) {
-            route.add(this);
+    private RouteStatistics<K, V> routeStatistics() {
+        RouteStatistics<K, V> cached = routeStatistics;
+        if (cached != null) return cached;
+
+        while (true) {
+            DependencyForest<K, V> forest = dependencyForest;
+            if (forest == null) return workOutRouteStatistics();
+            RouteStatistics<K, V> statistics = forest.getLock().read(
+                    () -> dependencyForest == forest ? workOutRouteStatistics() : null);
+            // It joined another forest while waiting for the lock.
+            if (statistics != null) return statistics;
         }
+    }
 
-        ArrayList<Dependency<K, V>> routeToAdd = (route == null) ? new ArrayList<>() : route;
+    private RouteStatistics<K, V> workOutRouteStatistics() {
+        RouteStatistics<K, V> result = null;
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.peek();
+            RouteStatistics<K, V> known = node.routeStatistics;
+            if (known != null) {
+                stack.pop();
+                if (node == this) result = known;
+                continue;
+            }
+            if (node.isRootNode()) {
+                RouteStatistics<K, V> statistics = new RouteStatistics<>(1, 0, 0, null);
+                node.routeStatistics = statistics;
+                stack.pop();
+                if (node == this) result = statistics;
+                continue;
+            }
 
-        if (isRootNode()) {
-            // This means we have arrived at a root node. By this time, routeToAdd will have been recursively
-            // populated with all the nodes connected from the leaf node that originally called the method.
-            // We add the list to the list of routes and exit the recursion loop.
-            routes.add(routeToAdd);
-            return;
+            boolean ready = true;
+            long routeCount = 0;
+            int minDepth = Integer.MAX_VALUE;
+            int maxDepth = -1;
+            Dependency<K, V> deepest = null;
+            for (Dependency<K, V> dependency : node.getDependencies().values()) {
+                RouteStatistics<K, V> statistics = dependency.routeStatistics;
+                if (statistics == null) {
+                    ready = false;
+                    stack.push(dependency);
+                } else if (ready) {
+                    routeCount = routeCount > Long.MAX_VALUE - statistics.routeCount()
+                            ? Long.MAX_VALUE
+                            : routeCount + statistics.routeCount();
+                    minDepth = Math.min(minDepth, statistics.minDepth() + 1);
+                    if (statistics.maxDepth() + 1 > maxDepth) {
+                        maxDepth = statistics.maxDepth() + 1;
+                        deepest = dependency;
+                    }
+                }
+            }
+            if (ready) {
+                RouteStatistics<K, V> statistics = new RouteStatistics<>(routeCount, minDepth, maxDepth, deepest);
+                node.routeStatistics = statistics;
+                stack.pop();
+                if (node == this) result = statistics;
+            }
         }
+        return result;
+    }
 
-        // Recursively call setRoutesToRootNodes for all dependencies.
-        getDependencies().values().forEach(dependency -> {
-            // Why do this? Because if we have hit a node on which several branches converge, we have effectively
-            // hit a node at which the route splits into 'n' separate routes. We want, therefore, to create a new
-            // list for each route so that when it finally reaches its ancestor rootNode, it will be added to
-            // the routes list as a distinct route rather than a nonsensical collection of nodes. This works even
-            // if the node is not a convergence but has just one ancestor on the way to the root. In that case,
-            // it's just one unnecessary instantiation but these structures will typically not be very costly so
-            // it doesn't really matter.
-            ArrayList<Dependency<K, V>> onwardRoute = new ArrayList<>(routeToAdd);
+    /**
+     * @return true if the route statistics of this Dependency are memoized.
+     */
+    boolean hasRouteStatistics() {
+        return routeStatistics != null;
+    }
 
-            // Send the list of nodes in the route on its way up the recursion.
-            dependency.setRoutesToRootNodes(routes, onwardRoute);
-        });
+    /**
+     * Returns the number of distinct Dependency objects in the tree below this one in the direction of its
+     * serializing scheme, counting this one. Unlike size, a Dependency reached by more than one route is counted
+     * once, and each one is visited once.
+     *
+     * @return the number of distinct Dependency objects in this tree.
+     */
+    public int distinctSize() {
+        DependencyForest.SerializingScheme scheme = getSerializingScheme();
+        if (scheme == null) return 1;
+        return 1 + countReachable(scheme == DependencyForest.SerializingScheme.DEPENDENCIES);
+    }
+
+    /**
+     * @return the number of distinct Dependency objects this Dependency depends on, directly or indirectly.
+     */
+    public int countAncestors() {
+        return countReachable(true);
+    }
+
+    /**
+     * @return the number of distinct Dependency objects which depend on this Dependency, directly or indirectly.
+     */
+    public int countDescendants() {
+        return countReachable(false);
+    }
+
+    /**
+     * Memoized countAncestors for Dependency objects asked about repeatedly. The count is remembered until a
+     * dependency is next added or removed in the same forest.
+     *
+     * @return the number of distinct Dependency objects this Dependency depends on, directly or indirectly.
+     */
+    public int cachedAncestorCount() {
+        AtomicLong source = edgeVersion();
+        long version = source.get();
+        CachedCount cached = ancestorCount;
+        if (cached != null && cached.isCurrent(source)) return cached.count();
+
+        int count = countAncestors();
+        ancestorCount = new CachedCount(source, version, count);
+        return count;
     }
 
+    /**
+     * Memoized countDescendants for Dependency objects asked about repeatedly. The count is remembered until a
+     * dependency is next added or removed in the same forest.
+     *
+     * @return the number of distinct Dependency objects which depend on this Dependency, directly or indirectly.
+     */
+    public int cachedDescendantCount() {
+        AtomicLong source = edgeVersion();
+        long version = source.get();
+        CachedCount cached = descendantCount;
+        if (cached != null && cached.isCurrent(source)) return cached.count();
+
+        int count = countDescendants();
+        descendantCount = new CachedCount(source, version, count);
+        return count;
+    }
+
+    /**
+     * Counts the Dependency objects reachable from this one in one direction, not counting this one.
+     *
+     * @param throughDependencies true to walk up through dependencies, false to walk down through dependants.
+     * @return the number of distinct Dependency objects reached.
+     */
+    private int countReachable(boolean throughDependencies) {
+        VisitedSet visited = VisitedSet.acquire();
+        try {
+            Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+            visited.add(this);
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                Dependency<K, V> node = stack.pop();
+                Map<K, Dependency<K, V>> next = throughDependencies ? node.getDependencies() : node.getDependants();
+                if (next == null) continue;
+                for (Dependency<K, V> neighbour : next.values()) {
+                    if (visited.add(neighbour)) stack.push(neighbour);
+                }
+            }
+            return visited.size() - 1;
+        } finally {
+            visited.release();
+        }
+    }
 
     private void setIsADependency(boolean isADependency){
         this.isADependency=isADependency;
@@ -223,21 +548,113 @@ public class Dependency<K, V> {
 
     /**
      * Sets the direction in which to serialize this Dependency and all its dependencies. This method acts
-     * recursively on all dependencies. The serializing scheme must be set to avoid infinite recursion when
-     * serializing the Dependency. If the dependency was serialized in both direction, the recursion would
-     * never end so it must either stop when it hits the roots or when it reaches the leaves.
+     * on all ancestor dependencies, visiting each one once. The serializing scheme must be set to avoid infinite
+     * recursion when serializing the Dependency. If the dependency was serialized in both direction, the
+     * recursion would never end so it must either stop when it hits the roots or when it reaches the leaves.
+     * <p>
+     * Members of a DependencyForest use the forest's serializing scheme instead, so switching the direction of
+     * a whole forest doesn't touch its nodes. Set it with DependencyForest.setSerializingScheme, or pass the
+     * direction for a single call to toJson, writeJson or treeToString; see also DependencyForest.view.
+     * </p>
      * @param serializingScheme the serializing scheme to set.
+     * @throws IllegalStateException if this Dependency belongs to a DependencyForest.
      */
     public void setSerializingScheme(DependencyForest.SerializingScheme serializingScheme) {
-        this.serializingScheme = serializingScheme;
-        if (hasDependencies()) {
-            getDependencies().values().forEach(dep -> dep.setSerializingScheme(getSerializingScheme()));
+        if (hasForest()) {
+            throw new IllegalStateException("Dependency " + dataKey
+                    + " belongs to a DependencyForest, which decides its serializing scheme");
+        }
+        for (Dependency<K, V> node : collect(true)) {
+            node.serializingScheme = serializingScheme;
         }
     }
 
+    /**
+     * Collects this Dependency and every Dependency reachable from it in one direction, each one once.
+     *
+     * @param throughDependencies true to walk up through dependencies, false to walk down through dependants.
+     * @return the Dependency objects found, this one first.
+     */
+    private List<Dependency<K, V>> collect(boolean throughDependencies) {
+        List<Dependency<K, V>> found = new ArrayList<>();
+        VisitedSet visited = VisitedSet.acquire();
+        try {
+            Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+            visited.add(this);
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                Dependency<K, V> node = stack.pop();
+                found.add(node);
+                Map<K, Dependency<K, V>> next = throughDependencies ? node.getDependencies() : node.getDependants();
+                if (next == null) continue;
+                for (Dependency<K, V> neighbour : next.values()) {
+                    if (visited.add(neighbour)) stack.push(neighbour);
+                }
+            }
+        } finally {
+            visited.release();
+        }
+        return found;
+    }
+
+    /**
+     * Marks this Dependency finished or unfinished. If it belongs to a DependencyForest, the forest's ready set is
+     * adjusted for this Dependency and its dependants.
+     * @param finished true if finished.
+     */
     public void setFinished(boolean finished){
+        DependencyForest<K, V> forest = dependencyForest;
+        if (forest == null) {
+            this.finished = finished;
+            return;
+        }
+        forest.getLock().read(() -> {
+            // It may have left the forest while waiting for the lock.
+            if (dependencyForest == forest) {
+                forest.getReadySet().setFinished(this, finished);
+            } else {
+                this.finished = finished;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Changes the finished flag without telling the forest. Only called by the forest's ready set.
+     */
+    void assignFinished(boolean finished) {
         this.finished = finished;
     }
+
+    /**
+     * @return the count of unfinished dependencies kept by the forest's ready set, or -1 if it has none.
+     */
+    int unfinishedDependencies() {
+        return unfinishedDependencies;
+    }
+
+    void assignUnfinishedDependencies(int unfinishedDependencies) {
+        this.unfinishedDependencies = unfinishedDependencies;
+    }
+
+    /**
+     * @return the TopologicalOrder which gave this Dependency its order value, or null.
+     */
+    TopologicalOrder<K, V> orderedBy() {
+        return orderedBy;
+    }
+
+    int topologicalOrder() {
+        return topologicalOrder;
+    }
+
+    /**
+     * Only called by TopologicalOrder, under its lock.
+     */
+    void assignTopologicalOrder(TopologicalOrder<K, V> orderedBy, int topologicalOrder) {
+        this.orderedBy = orderedBy;
+        this.topologicalOrder = topologicalOrder;
+    }
     public boolean isFinished(){
         return this.finished;
     }
@@ -262,116 +679,196 @@ public class Dependency<K, V> {
         return Objects.equals(data, that.data);
     }
 
+    /**
+     * Hashes the key and data of this Dependency. The finished flag takes part in equals but not in the hash
+     * code, so equal Dependency objects still hash alike while setFinished does not move a Dependency within a
+     * hash based collection.
+     *
+     * @return the hash code of this Dependency.
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(dataKey, data);
+    }
+
+    /**
+     * @return the serializing scheme of this Dependency's forest if it belongs to one, else its own.
+     */
     public DependencyForest.SerializingScheme getSerializingScheme() {
-        return serializingScheme;
+        DependencyForest<K, V> forest = dependencyForest;
+        return forest == null ? serializingScheme : forest.getSerializingScheme();
     }
 
     /**
-     * Tests whether this Dependency has any parent or ancestor Dependency with dataKey.equals(key)
+     * Tests whether this Dependency has any child or descendant dependant equal to dependant. If this Dependency
+     * belongs to a DependencyForest with a reachability index, the index is used instead of searching.
      *
      * @param dependant the dependant Dependency to check.
      * @return true if dependant exists in the tree else false.
      */
     public boolean hasDependant(Dependency<K, V> dependant) {
+        return query(() -> reachesDependant(dependant));
+    }
+
+    private boolean reachesDependant(Dependency<K, V> dependant) {
         if (!hasDependants()) return false;
 
-        if (getDependants().values().stream().anyMatch(val -> val.equals(dependant))) return true;
+        ReachabilityIndex<K, V> index = reachabilityIndex();
+        if (index != null && index.covers(this, dependant)) return index.dependsOn(dependant, this);
 
-        for (Dependency<K, V> _dependant : getDependants().values()) {
-            if (dependant.hasDependant(_dependant)) {
-                return true;
-            }
-        }
-        return false;
+        return findRelative(dependant, false) != null;
     }
 
 
 
     /**
-     * Tests if this Dependency has any parent or ancestor dependency with dataKey.equals(key).
+     * Tests if this Dependency has any parent or ancestor dependency equal to dependency. If this Dependency
+     * belongs to a DependencyForest with a reachability index, the index is used instead of searching.
      *
-     * @param dependency
-     * @return
+     * @param dependency the Dependency to check.
+     * @return true if dependency exists in the tree else false.
      */
     public boolean hasDependency(Dependency<K, V> dependency) {
+        return query(() -> reachesDependency(dependency));
+    }
+
+    private boolean reachesDependency(Dependency<K, V> dependency) {
         if (!hasDependencies()) return false;
 
-        if (getDependencies().values().stream().anyMatch(value -> value.equals(dependency))) return true;
+        ReachabilityIndex<K, V> index = reachabilityIndex();
+        if (index != null && index.covers(this, dependency)) return index.dependsOn(this, dependency);
 
-        for (Dependency<K, V> _dependency : getDependencies().values()) {
-            if (_dependency.hasDependency(dependency)) {
-                return true;
-            }
-        }
-
-        return false;
+        return findRelative(dependency, true) != null;
     }
 
     /**
-     * Traverses the dependency tree and returns the node with getDataKey().equals(key) else null if not found.
+     * Traverses the dependency tree and returns the node equal to dependency else null if not found.
      *
-     * @param dependency
-     * @return
+     * @param dependency the Dependency to look for.
+     * @return this tree's instance of dependency, or null.
      */
     public Dependency<K, V> getDependency(Dependency<K, V> dependency) {
-        if (!hasDependency(dependency)) return null;
+        return query(() -> findDependency(dependency));
+    }
 
-        if (getDependencies().containsKey(dependency.getDataKey())) {
-            return getDependencies().get(dependency.getDataKey());
-        }
+    private Dependency<K, V> findDependency(Dependency<K, V> dependency) {
+        if (!hasDependencies()) return null;
 
-        for (Dependency _dependency : getDependencies().values()) {
-            return dependency.getDependency(_dependency);
-        }
+        Dependency<K, V> direct = getDependencies().get(dependency.getDataKey());
+        if (dependency.equals(direct)) return direct;
 
-        //Should never get here.
-        return null;
+        ReachabilityIndex<K, V> index = reachabilityIndex();
+        if (index != null && index.covers(this, dependency))
+            return index.dependsOn(this, dependency) ? dependency : null;
+
+        return findRelative(dependency, true);
     }
 
     /**
-     * Traverses the dependants tree of this Dependency and returns the node with getDataKey().equals(key) else
-     * null if not found.
+     * Traverses the dependants tree of this Dependency and returns the node equal to dependant else null if
+     * not found.
      *
-     * @param dependant
-     * @return
+     * @param dependant the dependant to look for.
+     * @return this tree's instance of dependant, or null.
      */
     public Dependency<K, V> getDependant(Dependency<K, V> dependant) {
-        if (!hasDependant(dependant)) return null;
+        return query(() -> findDependant(dependant));
+    }
 
-        if (getDependants().containsKey(dependant.getDataKey())) {
-            return getDependants().get(getDataKey());
-        }
+    private Dependency<K, V> findDependant(Dependency<K, V> dependant) {
+        if (!hasDependants()) return null;
+
+        Dependency<K, V> direct = getDependants().get(dependant.getDataKey());
+        if (dependant.equals(direct)) return direct;
+
+        ReachabilityIndex<K, V> index = reachabilityIndex();
+        if (index != null && index.covers(this, dependant))
+            return index.dependsOn(dependant, this) ? dependant : null;
+
+        return findRelative(dependant, false);
+    }
+
+    /**
+     * @return the reachability index of this Dependency's DependencyForest, or null if there isn't one.
+     */
+    private ReachabilityIndex<K, V> reachabilityIndex() {
+        return hasForest() ? dependencyForest.getReachabilityIndex() : null;
+    }
 
-        for (Dependency _dependant : getDependants().values()) {
-            return dependant.getDependant(_dependant);
+    /**
+     * Runs a query of the graph around this Dependency. Within a DependencyForest it runs optimistically, and is
+     * re-run under the forest's read lock if the forest changed while it was running.
+     */
+    private <T> T query(Supplier<T> query) {
+        DependencyForest<K, V> forest = dependencyForest;
+        return forest == null ? query.get() : forest.getLock().optimisticRead(query);
+    }
+
+    /**
+     * Runs a change to the shape of the graph as a transaction of the DependencyForest this Dependency belongs to,
+     * and of the one other belongs to if that is a different forest, as the change may move members from one to the
+     * other. If either one joins or leaves a forest while waiting for the locks, it waits for the locks of the
+     * forests they are in now. Dependency objects outside any forest are not locked.
+     */
+    private <E extends Exception> void transaction(Dependency<K, V> other, ForestLock.Transaction<Void, E> change)
+            throws E {
+        while (true) {
+            DependencyForest<K, V> mine = dependencyForest;
+            DependencyForest<K, V> theirs = other == null ? null : other.dependencyForest;
+            boolean ran = ForestLock.write(lockOf(mine), lockOf(theirs), () -> {
+                if (dependencyForest != mine || (other != null && other.dependencyForest != theirs)) return false;
+                change.run();
+                return true;
+            });
+            if (ran) return;
         }
+    }
 
-        //Should never get here.
-        return null;
+    private static ForestLock lockOf(DependencyForest<?, ?> forest) {
+        return forest == null ? null : forest.getLock();
     }
 
     /**
-     * Removes a dependant from the tree, setting all its dependencies
+     * Removes a Dependency from the tree of this Dependency, grafting its dependants on to its dependencies. It is
+     * only removed if it is one of this Dependency's dependencies, directly or through other dependencies; to remove
+     * a member of a DependencyForest wherever it lies, use DependencyForest.removeDependency. A Dependency removed
+     * from a tree within a forest leaves the forest too.
+     * <p>
+     * Removal itself follows the removed Dependency's own dependencies and dependants, so only its neighbours are
+     * touched.
+     * </p>
      *
      * @param dependency The Dependency to remove.
      */
     public void removeDependency(Dependency<K, V> dependency) {
-        // If the Dependency doesn't exist in this tree, do nothing (nothing to remove).
-        if (!hasDependency(dependency)) return;
+        if (dependency == null) return;
+        transaction(dependency, () -> {
+            removeNow(dependency);
+            return null;
+        });
+    }
 
+    private void removeNow(Dependency<K, V> dependency) {
         // This is not nonsensical. If K,V of this Dependency were String,String and the caller did this:
         // Dependency<String,String> dep = new Dependency("KeyValue","ValueValue"); Their Dependency object value
-        // may exactly match one of ours but have the same Object ref. getDependency() returns the correct
-        // Object ref for us to remove.
+        // may exactly match one of ours but have the same Object ref. We need the correct Object ref to remove.
         Dependency<K, V> dependencyToRemove = getDependency(dependency);
+        if (dependencyToRemove == null || dependencyToRemove == this) return;
 
-        // Get the victim's parents and children and set the parents of all the children to all the parents.
-        // Note that sometimes, this will result in a CircularDependencyException because the Dependency
-        // being removed is not the only parent of its child Dependencies. These in turn may share a common
-        // ancestor with the Dependency being removed in which case, they cannot be re-added as a Dependency.
-        // But it's also ok NOT to add these Dependencies as parents of the children because they will not
-        // be orphaned from the tree if this is the case. This will result in only orphaned children being
-        // grafted back on to the tree with the removed Dependency's parents.
+        dependencyToRemove.detach();
+    }
+
+    /**
+     * Takes this Dependency out of the graph and out of its DependencyForest, setting the parents of all its
+     * children to all its parents.
+     */
+    void detach() {
+        // Note that a child is not always re-grafted onto every parent, because the Dependency being removed is
+        // not necessarily the only route from the child to that parent. The child may share a common ancestor
+        // with the Dependency being removed, in which case adding the parent again would duplicate a route.
+        // It's ok NOT to add these Dependencies as parents of the children because they will not be orphaned
+        // from the tree if this is the case. This will result in only orphaned children being grafted back on
+        // to the tree with the removed Dependency's parents.
         // If we are going to remove dependency 3 (dataKey.equals("3"), this looks like this:
         //
         // Before:
@@ -408,66 +905,75 @@ public class Dependency<K, V> {
         //  |          |-g+ (Dependencies: e)
         //  |             |-h (Dependencies: f,g)
         //  |-qq (Dependencies: A,B)
+        DependencyForest<K, V> forest = dependencyForest;
 
+        // Logged first, as re-grafting the children below logs the dependencies it adds.
+        if (forest != null) forest.removing(this);
 
         // Children / dependants - objects that are dependANT on 'me', that I'm a dependency OF.
-        Map<K, Dependency<K, V>> children = dependencyToRemove.getDependants();
-        if (children != null && !children.isEmpty()) {
-            children.values().forEach(child -> logger.info("child: {}", child.getDataKey()));
+        List<Dependency<K, V>> children = hasDependants() ? new ArrayList<>(dependants.values()) : List.of();
+        // Parents / dependencies - objects <b>I</b> depend on.
+        List<Dependency<K, V>> parents = hasDependencies() ? new ArrayList<>(dependencies.values()) : List.of();
+
+        // Unlink from each neighbour through the back-pointers, then rip the node from the tree. The children lose a
+        // dependency, so the route statistics from here down are dropped while the children are still reachable.
+        dropRouteStatistics(this);
+        edgeVersion().incrementAndGet();
+        for (Dependency<K, V> child : children) {
+            if (child.dependencies != null) child.dependencies.remove(dataKey, this);
+        }
+        for (Dependency<K, V> parent : parents) {
+            if (parent.dependants != null) parent.dependants.remove(dataKey, this);
+        }
+        Map<K, Dependency<K, V>> unlinkedDependencies = dependencies;
+        Map<K, Dependency<K, V>> unlinkedDependants = dependants;
+        dependencies = null;
+        dependants = null;
+        edgeVersion().incrementAndGet();
+        ForestLock.undo(() -> relink(unlinkedDependencies, unlinkedDependants));
+
+        ReachabilityIndex<K, V> index = reachabilityIndex();
+        if (forest != null) forest.unregister(this);
+
+        // Now the node has been removed set its parents to be the new parents of all its former children, leaving
+        // out the edges which would duplicate a route the child already has or is about to get.
+        List<DependencyForest.Edge<K, V>> grafted = Regrafter.graft(children, parents, forest);
+        logger.debug("Re-grafted {} of {} child/parent pairs after removing {}", grafted.size(),
+                children.size() * parents.size(), dataKey);
+        for (Dependency<K, V> parent : parents) {
+            if (!parent.hasDependants()) parent.setIsADependency(false);
         }
+        if (index != null) index.removed(this, children);
 
-        // Parents / dependencies - objects <b>I</b> depend on.
-        Map<K, Dependency<K, V>> parents = dependencyToRemove.getDependencies();
-
-        // Now we have the parents and children stored, we can rip the node from the tree.
-        removeDependency(getDependencies(), dependencyToRemove);
-
-        // Now the node has been removed set its parents to be the new parents of all its former children.
-        if (children != null && !children.isEmpty()) {
-            // Always remove the dependency-to-remove from its children's lists of dependencies (parents).
-            children.values().forEach(child -> child.getDependencies().remove(dependencyToRemove.getDataKey()));
-
-            if (parents != null && !parents.isEmpty()) {
-                // Remove the dependency-to-remove from its parent dependencies dependants arrays.
-                parents.values().forEach(parent -> parent.getDependants().remove(dependencyToRemove.getDataKey()));
-
-                // For each child, add all the parents that were previously the parents of the Dependency
-                // that was removed.
-                children.values().forEach(child -> parents.values().forEach(parent -> {
-                    try {
-                        logger.debug("Adding dependency {} to child {}", parent.getDataKey(), child.getDataKey());
-                        Map<K, Dependency<K, V>> parentRootNodes = parent.getRootNodes();
-                        Map<K, Dependency<K, V>> childRootNodes = child.getRootNodes();
-
-                        // addDependency() will also take care of setting the parent as a dependant of the given child.
-                        child.addDependency(parent);
-                    } catch (CircularDependencyException ce) {
-                        logger.debug("child dependency key {} and parent dependency key {} share common ancestor dependency. Not adding to avoid circular reference.", child.getDataKey(), parent.getDataKey());
-                    }
-                }));
-            }
+        // The children have lost a dependency and the parents a dependant.
+        if (forest != null) {
+            children.forEach(forest::updateDependency);
+            parents.forEach(forest::updateDependency);
         }
     }
 
     /**
-     * Recursively searches the Dependency tree, finds the dependency to remove and removes it from its array.
-     *
-     * @param dependencies       List of Dependency objects to search for removal of dependency.
-     * @param dependencyToRemove The Dependency object to remove.
+     * Takes back the unlinking done by detach, once the Dependency has rejoined its forest.
      */
-    private void removeDependency(@NonNull Map<K, Dependency<K, V>> dependencies, @NonNull Dependency<K, V> dependencyToRemove) {
-        // If this list contains the one we want to remove then remove it and return.
-        if (dependencies.containsValue(dependencyToRemove)) {
-            dependencies.remove(dependencyToRemove.getDataKey());
-            return;
+    private void relink(Map<K, Dependency<K, V>> unlinkedDependencies, Map<K, Dependency<K, V>> unlinkedDependants) {
+        dependencies = unlinkedDependencies;
+        dependants = unlinkedDependants;
+        List<Dependency<K, V>> children = hasDependants() ? new ArrayList<>(dependants.values()) : List.of();
+        List<Dependency<K, V>> parents = hasDependencies() ? new ArrayList<>(dependencies.values()) : List.of();
+        for (Dependency<K, V> child : children) child.dependencies.put(dataKey, this);
+        for (Dependency<K, V> parent : parents) {
+            parent.dependants.put(dataKey, this);
+            parent.setIsADependency(true);
         }
-
-        // Recurse further to keep looking for the object.
-        dependencies.values().forEach(dep -> {
-            if (dep.hasDependencies()) {
-                removeDependency(dep.getDependencies(), dependencyToRemove);
-            }
-        });
+        edgeVersion().incrementAndGet();
+        dropRouteStatistics(this);
+
+        // The edges put back may run against the order worked out since they were taken out.
+        DependencyForest<K, V> forest = dependencyForest;
+        if (forest == null) return;
+        forest.restored(this, true);
+        children.forEach(child -> forest.restored(child, false));
+        parents.forEach(parent -> forest.restored(parent, false));
     }
 
     /**
@@ -490,80 +996,33 @@ public class Dependency<K, V> {
 
     /**
      * Builds a ConcurrentHashMap<K,Dependency<K,V>> of leaf nodes (!hasDependants()) on all nodes below this
-     * Dependency on its tree or in its DependencyForest.
+     * Dependency on its tree or in its DependencyForest. This method does not yield ALL leaf nodes in the tree,
+     * only those which depend on this Dependency, or this Dependency itself if it is a leaf node.
      *
      * @return a Map of leaf nodes.
      */
     public Map<K, Dependency<K, V>> getLeafNodes() {
-        return getLeafNodes(null);
-    }
-
-    /**
-     * Builds a list of all leaf nodes from where this Dependency is positioned in its tree or DependencyForest.
-     * This method does not yield ALL leaf nodes in the tree.
-     *
-     * @param leafNodes the Map of leaf nodes built so far.
-     * @return Map of leaf nodes.
-     */
-    private Map<K, Dependency<K, V>> getLeafNodes(Map<K, Dependency<K, V>> leafNodes) {
-        Map<K, Dependency<K, V>> leaves = (leafNodes != null) ? leafNodes : new ConcurrentHashMap<>();
-
-        // If we are a leaf node then we must be the only leaf node. Really this is just a way of calling
-        // hasDependants().
-        if (isLeafNode()) {
-            leaves.put(getDataKey(), this);
-            return leaves;
-        }
-
-        // If we are here, isLeafNode() is false (i.e. hasDependants() is true) and we aren't a leaf node.
-        // So we recurse DOWN the dependency tree (from roots - or wherever we are - to leaves), until we find
-        // all the leaf nodes.
-        for (Dependency<K, V> dependant : getDependants().values()) {
-            dependant.getRootNodes(leaves);
+        Map<K, Dependency<K, V>> leaves = new ConcurrentHashMap<>();
+        for (Dependency<K, V> node : collect(false)) {
+            if (node.isLeafNode()) leaves.put(node.getDataKey(), node);
         }
-
         return leaves;
     }
 
     /**
      * Builds a ConcurrentHashMap<K,Dependency<K,V>> of all ancestor nodes of this Dependency which themselves
      * have no dependencies or in other words, are root nodes. Remember that one Dependency leaf node or branch
-     * node can have multiple root nodes. This method acts as an initializer for the private method:
-     * private Map<K,Dependency<K,V>> getRootNode(Map<K,Dependency<K,V>> rootNodes) by passing a null value
-     * to that method so that it knows it is the first call. If this Dependency is part of a DependencyForest
-     * object, only its root nodes will be returned. To get all roots of the forest, the DependencyForest instnace
-     * methods must be used.
+     * node can have multiple root nodes. If this Dependency is part of a DependencyForest object, only its root
+     * nodes will be returned. To get all roots of the forest, the DependencyForest instnace methods must be used.
+     * Each ancestor is visited once however many routes lead to it.
      *
      * @return a Map containing all root Dependency nodes.
      */
     public Map<K, Dependency<K, V>> getRootNodes() {
-        return getRootNodes(null);
-    }
-
-    /**
-     * Builds a ConcurrentHashMap<K,Dependency<K,V>> of all ancestor nodes of this Dependency which themselves
-     * have no dependencies or in other words, are root nodes. Remember that one Dependency leaf node or branch
-     * node can have multiple root nodes. If param is null, a new ConcurrentHashMap is instantiated.
-     *
-     * @param rootNodes Map in which to store root nodes.
-     * @return a Map containing all root nodes of this Dependency.
-     */
-    private Map<K, Dependency<K, V>> getRootNodes(Map<K, Dependency<K, V>> rootNodes) {
-        Map<K, Dependency<K, V>> roots = (rootNodes != null) ? rootNodes : new ConcurrentHashMap<>();
-
-        // If we are the root node then we must be the only root node. Really this is just a way if calling
-        // hasDependencies().
-        if (isRootNode()) {
-            roots.put(getDataKey(), this);
-            return roots;
+        Map<K, Dependency<K, V>> roots = new ConcurrentHashMap<>();
+        for (Dependency<K, V> node : collect(true)) {
+            if (node.isRootNode()) roots.put(node.getDataKey(), node);
         }
-
-        // If we are here, hasDependencies() is true and we aren't a root node. So we recurse UP the
-        // dependency tree (from leaves to roots), until we find all the root nodes.
-        for (Dependency<K, V> dependency : getDependencies().values()) {
-            dependency.getRootNodes(roots);
-        }
-
         return roots;
     }
 
@@ -571,16 +1030,65 @@ public class Dependency<K, V> {
         return dependencyForest != null;
     }
 
+    /**
+     * Makes this Dependency, and every Dependency connected to it in either direction, a member of
+     * dependencyForest. Each one is registered with the forest and uses the forest's serializing scheme for as
+     * long as it belongs to it.
+     *
+     * @param dependencyForest the DependencyForest to join.
+     */
     public void setDependencyForest(DependencyForest<K, V> dependencyForest) {
         if (this.dependencyForest == dependencyForest || dependencyForest == null) return;
+        dependencyForest.getLock().write(() -> {
+            join(dependencyForest);
+            return null;
+        });
+    }
 
-        this.dependencyForest = dependencyForest;
-        if (this.hasDependencies()) {
-            this.getDependencies().values().forEach(dep -> dep.setDependencyForest(dependencyForest));
-        }
-        if (this.hasDependants()) {
-            this.getDependants().values().forEach(dep -> dep.setDependencyForest(dependencyForest));
+    private void join(DependencyForest<K, V> dependencyForest) {
+        if (this.dependencyForest == dependencyForest) return;
+
+        // The edges of the Dependency objects joining are reported once they have all been reported.
+        List<Dependency<K, V>> joined = new ArrayList<>();
+
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            if (node.dependencyForest == dependencyForest) continue;
+
+            DependencyForest<K, V> previousForest = node.dependencyForest;
+            int previousUnfinished = node.unfinishedDependencies;
+            node.dependencyForest = dependencyForest;
+            ForestLock.undo(() -> {
+                node.dependencyForest = previousForest;
+                node.unfinishedDependencies = previousUnfinished;
+            });
+            dependencyForest.register(node);
+            joined.add(node);
+
+            if (node.hasDependencies()) node.getDependencies().values().forEach(stack::push);
+            if (node.hasDependants()) node.getDependants().values().forEach(stack::push);
         }
+        dependencyForest.edgesJoined(joined);
+    }
+
+    /**
+     * Called by a DependencyForest which is being cleared.
+     */
+    void leaveForest() {
+        // Keeps the direction it was last serialized in.
+        DependencyForest<K, V> forest = dependencyForest;
+        DependencyForest.SerializingScheme previousScheme = serializingScheme;
+        int previousUnfinished = unfinishedDependencies;
+        if (forest != null) this.serializingScheme = forest.getSerializingScheme();
+        this.dependencyForest = null;
+        this.unfinishedDependencies = -1;
+        ForestLock.undo(() -> {
+            serializingScheme = previousScheme;
+            dependencyForest = forest;
+            unfinishedDependencies = previousUnfinished;
+        });
     }
 
     public boolean hasDependencies() {
@@ -589,18 +1097,58 @@ public class Dependency<K, V> {
     public boolean hasDependants() { return this.getDependants()!=null && this.getDependants().size() > 0;
     }
 
+    /**
+     * Returns the number of Dependency objects in the tree below this one in the direction of its serializing
+     * scheme, counting this one. A Dependency reached by more than one route is counted once per route, as it
+     * would appear when serialized. Each Dependency's count is worked out once and reused, so the cost is linear
+     * in the number of distinct Dependency objects. Counts too large for an int are capped at Integer.MAX_VALUE.
+     *
+     * @return the number of Dependency objects in this tree.
+     */
     public int size() {
-        int[] size = {1};
+        DependencyForest.SerializingScheme scheme = getSerializingScheme();
+        Map<Dependency<K, V>, Long> sizes = new IdentityHashMap<>();
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.peek();
+            if (sizes.containsKey(node)) {
+                stack.pop();
+                continue;
+            }
 
-        if (serializingScheme == DependencyForest.SerializingScheme.DEPENDANTS && getDependants() != null) {
-            getDependants().forEach((dependantKey, dependantValue) -> size[0] += dependantValue.size());
-        }
+            Map<K, Dependency<K, V>> children = node.sizeChildren(scheme);
+            boolean ready = true;
+            if (children != null) {
+                for (Dependency<K, V> child : children.values()) {
+                    if (!sizes.containsKey(child)) {
+                        stack.push(child);
+                        ready = false;
+                    }
+                }
+            }
+            if (!ready) continue;
 
-        if (serializingScheme == DependencyForest.SerializingScheme.DEPENDENCIES && getDependencies() != null) {
-            getDependencies().forEach((dependencyKey, dependencyValue) -> size[0] += dependencyValue.size());
+            long size = 1;
+            if (children != null) {
+                for (Dependency<K, V> child : children.values()) {
+                    size = Math.min(size + sizes.get(child), Integer.MAX_VALUE);
+                }
+            }
+            sizes.put(node, size);
+            stack.pop();
         }
+        return (int) (long) sizes.get(this);
+    }
 
-        return size[0];
+    /**
+     * @return the dependants or dependencies counted by size, according to the serializing scheme of the top of
+     * the tree.
+     */
+    private Map<K, Dependency<K, V>> sizeChildren(DependencyForest.SerializingScheme scheme) {
+        if (scheme == DependencyForest.SerializingScheme.DEPENDANTS) return getDependants();
+        if (scheme == DependencyForest.SerializingScheme.DEPENDENCIES) return getDependencies();
+        return null;
     }
 
     @Override
@@ -608,56 +1156,147 @@ public class Dependency<K, V> {
         return this.toJson();
     }
 
+    /**
+     * Generates the 'ASCII art' tree described by treeToString, always walking down through the dependants.
+     *
+     * @return a String containing the 'ASCII art' Dependency tree.
+     */
     public String dependantTreeToString(){
-        return dependantTreeToString(0,this);
-    }
-
-    private String dependantTreeToString(int recursionLevel, Dependency<K,V> dependency){
-        StringBuffer sb = null;
-        if(recursionLevel==0){
-            String title = "===> ["
-                    + dependency.getDataKey()
-                    + " dependants=("
-                    + (dependency.getDependants()==null? 0 : dependency.getDependants().size())
-                    + ")] <===";
-            sb = new StringBuffer(title);
-        } else {
-            sb = new StringBuffer("-".repeat(recursionLevel)+ dependency.toString()
-                    + "("
-                    + (dependency.getDependants() == null ? 0 : dependency.getDependants().size())
-                    + ")");
+        return renderToString(false, " dependants=(");
+    }
+
+    /**
+     * Converts this object to JSON.
+     *
+     * @return the JSON.
+     * @throws UncheckedIOException if the tree can't be written, e.g. because a codec fails.
+     */
+    public String toJson(){
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        } catch (IOException ioe) {
+            // A StringWriter doesn't throw, so the tree itself couldn't be written.
+            logger.error("Writing Dependency {} as JSON failed", dataKey, ioe);
+            throw new UncheckedIOException(ioe);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Converts this object to JSON, nesting every Dependency in the direction given rather than that of
+     * getSerializingScheme().
+     *
+     * @param serializingScheme the direction to walk the tree in.
+     * @return the JSON.
+     */
+    public String toJson(DependencyForest.SerializingScheme serializingScheme) {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer, serializingScheme);
+        } catch (IOException ioe) {
+            // A StringWriter doesn't throw.
+            throw new UncheckedIOException(ioe);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes this Dependency tree as JSON, in the same form as toJson, without building it in memory first. The
+     * writer is flushed but not closed.
+     *
+     * @param writer the Writer to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        writeJson(writer, getSerializingScheme());
+    }
+
+    /**
+     * Writes this Dependency tree as JSON, as for toJson(SerializingScheme). The writer is flushed but not closed.
+     *
+     * @param writer            the Writer to write to.
+     * @param serializingScheme the direction to walk the tree in.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(Writer writer, DependencyForest.SerializingScheme serializingScheme) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(writer)) {
+            writeJson(gen, serializingScheme);
         }
-        if(!dependency.hasDependants()) return sb.toString() + "\n"+"-".repeat(recursionLevel)+"<< NO DEPENDANTS >>\n";
+    }
 
-        sb.append("\n");
+    /**
+     * Writes this Dependency tree as UTF-8 JSON, in the same form as toJson, without building it in memory first.
+     * The stream is flushed but not closed.
+     *
+     * @param out the OutputStream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        writeJson(out, getSerializingScheme());
+    }
 
-        for(K dependantKey : dependency.getDependants().keySet()){
-            sb.append(dependantTreeToString(recursionLevel+1, dependency.getDependants().get(dependantKey)));
+    /**
+     * Writes this Dependency tree as UTF-8 JSON, as for toJson(SerializingScheme). The stream is flushed but not
+     * closed.
+     *
+     * @param out               the OutputStream to write to.
+     * @param serializingScheme the direction to walk the tree in.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(OutputStream out, DependencyForest.SerializingScheme serializingScheme)
+            throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(out)) {
+            writeJson(gen, serializingScheme);
         }
+    }
 
-        return sb.toString();
+    /**
+     * Writes this Dependency tree as JSON to a generator, e.g. as one value within a larger document. Data keys and
+     * data are written with the codecs of this Dependency's forest, or using toString() if it has none.
+     *
+     * @param gen the generator to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(JsonGenerator gen) throws IOException {
+        writeJson(gen, getSerializingScheme());
     }
 
     /**
-     * Converts this object to JSON.
+     * Writes this Dependency tree as JSON to a generator, as for writeJson(JsonGenerator), nesting every Dependency
+     * in the direction given.
      *
-     * @return
+     * @param gen               the generator to write to.
+     * @param serializingScheme the direction to walk the tree in.
+     * @throws IOException if writing fails.
      */
-    public String toJson(){
-        try {
-            DependencySerializer serializer = new DependencySerializer();
-            ObjectMapper objectMapper = new ObjectMapper();
-            SimpleModule module = new SimpleModule();
-            module.addSerializer(Dependency.class,serializer);
-            objectMapper.registerModule(module);
-            return objectMapper.writeValueAsString(this);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "";
+    public void writeJson(JsonGenerator gen, DependencyForest.SerializingScheme serializingScheme)
+            throws IOException {
+        DependencyForest<K, V> forest = getDependencyForest();
+        if (forest == null) {
+            DependencySerializer.write(this, gen, Codecs.TEXT, Codecs.TEXT, serializingScheme);
+        } else {
+            DependencySerializer.write(this, gen, forest.getKeyCodec(), forest.getValueCodec(), serializingScheme);
         }
     }
 
     /**
+     * Writes this Dependency tree as JSON to a generator, writing data keys and data with the codecs given.
+     *
+     * @param gen        the generator to write to.
+     * @param keyCodec   writes each data key.
+     * @param valueCodec writes each Dependency's data.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(JsonGenerator gen, DependencyCodec<? super K> keyCodec,
+                          DependencyCodec<? super V> valueCodec) throws IOException {
+        DependencySerializer.write(this, gen, keyCodec, valueCodec);
+    }
+
+    /**
+     * Reads Dependency objects from JSON in either format. From a Dependency tree, or an array of them, the top
+     * level Dependency of each tree is returned. From a graph document (see DependencyForest.JsonFormat.GRAPH)
+     * every Dependency in its node table is returned, already wired to the others.
      *
      * @param Json
      * @return
@@ -666,11 +1305,24 @@ public class Dependency<K, V> {
      */
     public static Collection<Dependency> fromJson(String Json)
             throws JsonProcessingException, JsonMappingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        SimpleModule module = new SimpleModule();
-        module.addDeserializer(Collection.class, new DependencyDeserializer());
-        objectMapper.registerModule(module);
-        return objectMapper.readValue(Json, Collection.class);
+        return DependencyJson.collectionReader().readValue(Json);
+    }
+
+    /**
+     * Reads Dependency objects from JSON in either format, as for fromJson(String), reading data keys and data
+     * with the codecs given rather than as Strings.
+     *
+     * @param json       the JSON to read.
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return the Dependency objects read.
+     * @throws JsonProcessingException if the JSON can't be read.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> Collection<Dependency<K, V>> fromJson(String json, DependencyCodec<K> keyCodec,
+                                                               DependencyCodec<V> valueCodec)
+            throws JsonProcessingException {
+        return (Collection<Dependency<K, V>>) DependencyJson.collectionReader(keyCodec, valueCodec).readValue(json);
     }
 
 
@@ -680,80 +1332,171 @@ public class Dependency<K, V> {
      * getSerializationScheme() is DependencyForest.SerializationScheme.DEPENDENCIES or down through the Dependency hierarchy of
      * dependants to the leaf nodes if GetSerializationScheme() is DependencyForest.SerializationScheme.DEPENDANTS.
      * <p>
-     * In practice, the method acts as the public top-level call to the recursive private method which contains
-     * the actual String building functionality. It calls the private method with recursion level 0 to start the
-     * process.
+     * Each line shows a single Dependency's own data key, data and finished flag. A Dependency reached by more
+     * than one route is only expanded the first time; later appearances are marked as back-references.
      * </p>
      * @return a String containing the 'ASCII art' Dependency tree.
      */
     public String treeToString(){
-        return treeToString(0,this);
+        return treeToString(getSerializingScheme());
     }
 
-
     /**
-     * Generates a convenient representation of the Dependency tree per the documentation for the public version
-     * of the method.
-     * @param recursionLevel used to determine indentation and whether we are at the top level of the tree for display purposes.
-     * @param dependency the Dependency whose tree to generate.
-     * @return a String containing a user-friendly representation of the Dependency tree.
+     * Generates the tree described by treeToString(), walking it in the direction given rather than that of
+     * getSerializingScheme().
+     *
+     * @param serializingScheme the direction to walk the tree in.
+     * @return a String containing the 'ASCII art' Dependency tree.
      */
-    private String treeToString(int recursionLevel, Dependency<K, V> dependency) {
-        StringBuilder sb = null;
+    public String treeToString(DependencyForest.SerializingScheme serializingScheme) {
+        return switch (serializingScheme) {
+            case DEPENDENCIES -> renderToString(true, " dependencies=(");
+            case DEPENDANTS -> renderToString(false, " dependencies=(");
+        };
+    }
 
+    /**
+     * Writes the tree generated by treeToString to an Appendable as it is walked, so a large tree is never held
+     * in memory.
+     *
+     * @param out      where to write the tree.
+     * @param maxDepth the deepest level to expand; the Dependency objects at this level are written but not their
+     *                 children. Integer.MAX_VALUE for no limit.
+     * @param maxNodes the number of Dependency objects after which the output is cut short. Integer.MAX_VALUE for
+     *                 no limit.
+     * @throws IOException if out throws it.
+     */
+    public void writeTree(Appendable out, int maxDepth, int maxNodes) throws IOException {
         switch (getSerializingScheme()) {
-            case DEPENDENCIES -> {
-                if (recursionLevel == 0) {
-                    String title = "===> ["
-                            + dependency.getDataKey()
-                            + " dependencies=("
-                            + (dependency.getDependencies() == null ? 0 : dependency.getDependencies().size())
-                            + ")] <===";
-                    sb = new StringBuilder(title);
-                } else {
-                    sb = new StringBuilder("-".repeat(recursionLevel) + dependency.toString()
-                            + "("
-                            + (dependency.getDependencies() == null ? 0 : dependency.getDependencies().size())
-                            + ")");
-                }
+            case DEPENDENCIES -> renderTree(out, true, " dependencies=(", maxDepth, maxNodes);
+            case DEPENDANTS -> renderTree(out, false, " dependencies=(", maxDepth, maxNodes);
+        }
+    }
 
-                if (!dependency.hasDependencies())
-                    return sb.toString() + "\n" + "-".repeat(recursionLevel) + "<< NO DEPENDENCIES >>\n";
+    /**
+     * Writes the tree generated by dependantTreeToString to an Appendable as it is walked.
+     *
+     * @param out      where to write the tree.
+     * @param maxDepth the deepest level to expand. Integer.MAX_VALUE for no limit.
+     * @param maxNodes the number of Dependency objects after which the output is cut short. Integer.MAX_VALUE for
+     *                 no limit.
+     * @throws IOException if out throws it.
+     */
+    public void writeDependantTree(Appendable out, int maxDepth, int maxNodes) throws IOException {
+        renderTree(out, false, " dependants=(", maxDepth, maxNodes);
+    }
 
-                sb.append("\n");
+    String renderToString(boolean throughDependencies, String titleLabel) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            renderTree(sb, throughDependencies, titleLabel, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            // A StringBuilder doesn't throw it.
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
 
-                for (K dependencyKey : dependency.getDependencies().keySet()) {
-                    sb.append(treeToString(recursionLevel + 1, dependency.getDependencies().get(dependencyKey)));
-                }
+    /**
+     * Generates the representation of the Dependency tree described by treeToString. Every Dependency is expanded
+     * at most once, so the output is linear in the size of the graph however many routes lead to each node.
+     * @param out where to write the tree.
+     * @param throughDependencies true to walk up through dependencies, false to walk down through dependants.
+     * @param titleLabel the label of the child count in the title line.
+     * @param maxDepth the deepest level to expand.
+     * @param maxNodes the number of Dependency objects after which the output is cut short.
+     * @throws IOException if out throws it.
+     */
+    void renderTree(Appendable out, boolean throughDependencies, String titleLabel, int maxDepth,
+                            int maxNodes) throws IOException {
+        record Frame<K, V>(Dependency<K, V> dependency, int level) {
+        }
 
+        Set<Dependency<K, V>> expanded = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Frame<K, V>> stack = new ArrayDeque<>();
+        stack.push(new Frame<>(this, 0));
+        int written = 0;
+        while (!stack.isEmpty()) {
+            if (written == maxNodes) {
+                out.append("<< TRUNCATED AFTER ").append(String.valueOf(written)).append(" NODES >>\n");
+                return;
+            }
+            written++;
+
+            Frame<K, V> frame = stack.pop();
+            Dependency<K, V> dependency = frame.dependency();
+            int level = frame.level();
+            Map<K, Dependency<K, V>> children = throughDependencies
+                    ? dependency.getDependencies() : dependency.getDependants();
+            int count = children == null ? 0 : children.size();
+
+            if (level == 0) {
+                out.append("===> [").append(String.valueOf(dependency.getDataKey())).append(titleLabel)
+                        .append(String.valueOf(count)).append(")] <===");
+            } else {
+                indent(out, level);
+                dependency.appendLabel(out);
+                out.append('(').append(String.valueOf(count)).append(')');
             }
-            case DEPENDANTS -> {
-                if (recursionLevel == 0) {
-                    String title = "===> ["
-                            + dependency.getDataKey()
-                            + " dependencies=("
-                            + (dependency.getDependants() == null ? 0 : dependency.getDependants().size())
-                            + ")] <===";
-                    sb = new StringBuilder(title);
-                } else {
-                    sb = new StringBuilder("-".repeat(recursionLevel) + dependency.toString()
-                            + "("
-                            + (dependency.getDependants() == null ? 0 : dependency.getDependants().size())
-                            + ")");
-                }
-
-                if (!dependency.hasDependants())
-                    return sb.toString() + "\n" + "-".repeat(recursionLevel) + "<< NO DEPENDANTS >>\n";
 
-                sb.append("\n");
+            if (count == 0) {
+                out.append('\n');
+                indent(out, level);
+                out.append(throughDependencies ? "<< NO DEPENDENCIES >>\n" : "<< NO DEPENDANTS >>\n");
+                continue;
+            }
+            // Only a Dependency whose children are written counts as expanded, so one cut off by maxDepth is still
+            // expanded if it is reached again higher up.
+            if (level >= maxDepth) {
+                out.append(" ...\n");
+                continue;
+            }
+            if (!expanded.add(dependency)) {
+                out.append(" ^ SEE ABOVE\n");
+                continue;
+            }
+            out.append('\n');
 
-                for (K dependencyKey : dependency.getDependants().keySet()) {
-                    sb.append(treeToString(recursionLevel + 1, dependency.getDependants().get(dependencyKey)));
-                }
+            // Pushed in reverse so that children come off the stack in map order.
+            List<Dependency<K, V>> ordered = new ArrayList<>(children.values());
+            for (int i = ordered.size() - 1; i >= 0; i--) {
+                stack.push(new Frame<>(ordered.get(i), level + 1));
             }
         }
+    }
 
-        return sb.toString();
+    /**
+     * Writes this Dependency's own fields, without any of the Dependency objects around it.
+     */
+    private void appendLabel(Appendable out) throws IOException {
+        out.append('[').append(String.valueOf(dataKey)).append("] ").append(String.valueOf(data));
+        if (finished) out.append(" (finished)");
+    }
+
+    private static void indent(Appendable out, int level) throws IOException {
+        if (level > 0) out.append(new Indent(level));
+    }
+
+    /**
+     * The dashes indenting a line of a rendered tree, appended in one call however deep the line is.
+     */
+    private record Indent(int length) implements CharSequence {
+        @Override
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            return '-';
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Objects.checkFromToIndex(start, end, length);
+            return new Indent(end - start);
+        }
+
+        @Override
+        public String toString() {
+            return "-".repeat(length);
+        }
     }
 
     /**
@@ -776,6 +1519,10 @@ public class Dependency<K, V> {
     public Map<K, Dependency<K,V>> getDependants(){ return this.dependants; }
 
     /**
+     * Validates a new dependency before it is added. Members of a DependencyForest are validated against the
+     * forest's incrementally maintained topological order, which only examines the nodes between the two ends of
+     * the new edge. Dependency objects outside of any forest fall back to searching the graph.
+     *
      * @param dependant The candidate for addition newDependency as a Dependency. When this call is made, this
      *                  parameter will be the Dependency on whose addDependency method was called.
      * @param newDependency the Dependency to check against for circular references.
@@ -783,39 +1530,59 @@ public class Dependency<K, V> {
      */
     private void validateNewDependency(Dependency<K, V> dependant, Dependency<K, V> newDependency)
             throws CircularDependencyException {
-        validateNewDependency(dependant, newDependency, true);
-    }
-
-
-    /**
-     * This checks for circular dependencies from the node being added downwards. But it serves as an overall
-     * check for the entire tree from head to outermost leaf because it gets called every time a child is
-     * added.
-     * @param newDependency The new Dependency candidate for adding as a Dependency to dependantDependency
-     * @throws CircularDependencyException if newDependency is already a parent or other ancestor Dependency of
-     * dependantDependency.
-     */
-    private void validateNewDependency(
-            Dependency<K, V> dependantDependency,
-            Dependency<K, V> newDependency,
-            boolean first)
-    throws CircularDependencyException {
         // Trying to add itself as a dependency. Circular reference.
-        if (newDependency == dependantDependency) throw new CircularDependencyException(newDependency);
-
-        // Stop right there. We are trying to add a Dependency to ourselves which already has ourselves as a dependency.
-        if (first
-                && newDependency.hasDependencies()
-                && newDependency.hasDependency(dependantDependency))
-            throw new CircularDependencyException(newDependency);
+        if (newDependency == dependant) throw new CircularDependencyException(newDependency);
 
         // It's ok to re-add a dependency, although it will overwrite the original.
-        if (first && dependantDependency.hasDependencies()
-                && dependantDependency.getDependencies().values().stream().anyMatch(dep -> dep.equals(newDependency)))
+        if (dependant.hasDependencies()
+                && newDependency.equals(dependant.getDependencies().get(newDependency.getDataKey())))
             return;
 
+        DependencyForest<K, V> forest = dependant.hasForest()
+                ? dependant.getDependencyForest()
+                : newDependency.getDependencyForest();
+
+        if (forest != null) {
+            forest.getTopologicalOrder().validateNewDependency(dependant, newDependency);
+            return;
+        }
+
+        // Stop right there. We are trying to add a Dependency to ourselves which already has ourselves as a
+        // dependency. Nothing can depend on the dependant unless it has dependants, so only search if it does.
+        if (dependant.hasDependants() && newDependency.findRelative(dependant, true) != null)
+            throw new CircularDependencyException(newDependency);
+
         // If we get here then it's definitely a circular dependency because the new dependency is an ancestor dependency.
-        if (dependantDependency.hasDependency(newDependency)) throw new CircularDependencyException(newDependency);
+        if (dependant.findRelative(newDependency, true) != null) throw new CircularDependencyException(newDependency);
+    }
+
+    /**
+     * Searches the ancestor dependencies (or descendant dependants) of this Dependency for one equal to relative.
+     * Each node is only visited once no matter how many routes lead to it.
+     *
+     * @param relative the Dependency to look for.
+     * @param throughDependencies true to search ancestor dependencies, false to search descendant dependants.
+     * @return the first node found equal to relative, or null.
+     */
+    private Dependency<K, V> findRelative(Dependency<K, V> relative, boolean throughDependencies) {
+        VisitedSet visited = VisitedSet.acquire();
+        try {
+            Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+            stack.push(this);
+
+            while (!stack.isEmpty()) {
+                Dependency<K, V> node = stack.pop();
+                Map<K, Dependency<K, V>> next = throughDependencies ? node.getDependencies() : node.getDependants();
+                if (next == null) continue;
+                for (Dependency<K, V> neighbour : next.values()) {
+                    if (neighbour.equals(relative)) return neighbour;
+                    if (visited.add(neighbour)) stack.push(neighbour);
+                }
+            }
+            return null;
+        } finally {
+            visited.release();
+        }
     }
 }
 
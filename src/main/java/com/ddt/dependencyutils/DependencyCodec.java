@@ -0,0 +1,61 @@
+package com.ddt.dependencyutils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+/**
+ * Writes a Dependency's data key or data to JSON and reads it back, so that keys and data need not be Strings. A
+ * codec writes its value as a single JSON value, whether a string, a number or an object, and reads back exactly
+ * that value.
+ * <p>
+ * Without a codec, data keys and data are written using toString() and read back as Strings.
+ * </p>
+ *
+ * @param <T> the type of value written and read.
+ */
+public interface DependencyCodec<T> {
+    /**
+     * @param value the value to write, which may be null.
+     * @param gen   the generator to write it to.
+     * @throws IOException if writing fails.
+     */
+    void write(T value, JsonGenerator gen) throws IOException;
+
+    /**
+     * @param jp the parser, positioned on the first token of the value. It is left on the value's last token.
+     * @return the value read, or null for a JSON null.
+     * @throws IOException if the value can't be read.
+     */
+    T read(JsonParser jp) throws IOException;
+
+    /**
+     * @return a codec writing Strings as JSON strings.
+     */
+    static DependencyCodec<String> strings() {
+        return Codecs.STRINGS;
+    }
+
+    /**
+     * @return a codec writing Longs as JSON numbers. Strings holding a number are read too.
+     */
+    static DependencyCodec<Long> longs() {
+        return Codecs.LONGS;
+    }
+
+    /**
+     * @return a codec writing Integers as JSON numbers. Strings holding a number are read too.
+     */
+    static DependencyCodec<Integer> integers() {
+        return Codecs.INTEGERS;
+    }
+
+    /**
+     * @param type the class values are bound to.
+     * @return a codec writing values as the JSON Jackson binds them to, for example a POJO as a JSON object.
+     */
+    static <T> DependencyCodec<T> json(Class<T> type) {
+        return new Codecs.Bound<>(type);
+    }
+}
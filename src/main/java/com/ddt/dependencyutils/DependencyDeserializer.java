@@ -1,27 +1,37 @@
 package com.ddt.dependencyutils;
 
 import com.ddt.dependencyutils.exception.CircularDependencyException;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.List;
 
+/**
+ * Reads Dependency trees, or a graph document, straight from the parser's tokens. Dependency objects are built as
+ * their JSON objects close, using an explicit stack of the objects still open, so no JsonNode tree is built and
+ * the depth of a tree is not limited by the call stack. Both the "dependencies" nesting and the "dependants"
+ * nesting written by DependencySerializer are understood.
+ */
 public class DependencyDeserializer extends StdDeserializer<Collection<Dependency>> {
     private final static Logger logger = LoggerFactory.getLogger(DependencyDeserializer.class);
     private DependencyForest.SerializingScheme serializingScheme = DependencyForest.SerializingScheme.DEPENDANTS;
 
+    private static final String DEPENDENCIES = "dependencies";
+    private static final String DEPENDANTS = "dependants";
+
     public DependencyDeserializer() {
         super(Collection.class);
     }
@@ -37,72 +47,181 @@ public class DependencyDeserializer extends StdDeserializer<Collection<Dependenc
     @Override
     public Collection<Dependency> deserialize(JsonParser jp, DeserializationContext ctxt)
             throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
         Collection<Dependency> dependencies = new ArrayList<>();
+        DependencyCodec<?> keyCodec = DependencyJson.codec(ctxt, DependencyJson.KEY_CODEC);
+        DependencyCodec<?> valueCodec = DependencyJson.codec(ctxt, DependencyJson.VALUE_CODEC);
 
         try {
-            JsonNode rootNode = jp.getCodec().readTree(jp);
-            if (rootNode.isArray()) {
-                for (JsonNode dependencyTree : rootNode) {
-                    dependencies.add(parseSingleTree(jp, ctxt, dependencyTree));
+            if (jp.currentToken() == JsonToken.START_ARRAY) {
+                for (JsonToken token = jp.nextToken(); token != JsonToken.END_ARRAY; token = jp.nextToken()) {
+                    if (token == JsonToken.START_OBJECT) {
+                        dependencies.add(parseSingleTree(jp, builder(ctxt), keyCodec, valueCodec));
+                    } else {
+                        jp.skipChildren();
+                        dependencies.add(null);
+                    }
                 }
-            } else {
-                dependencies.add(parseSingleTree(jp, ctxt, rootNode));
+                return dependencies;
+            }
+
+            if (jp.currentToken() != JsonToken.START_OBJECT) return dependencies;
+            jp.nextToken();
+        } catch (JsonProcessingException jpe) {
+            throw invalidTree(jp, jpe);
+        }
+
+        if (jp.currentToken() == JsonToken.FIELD_NAME && GraphJson.isGraphField(jp.currentName())) {
+            // An invalid graph is reported to the caller rather than partially loaded.
+            try {
+                dependencies.addAll(GraphJson.read(jp, keyCodec, valueCodec));
+            } catch (CircularDependencyException | IllegalArgumentException e) {
+                ctxt.reportInputMismatch(Dependency.class, "Invalid dependency graph: " + e.getMessage());
             }
+            return dependencies;
+        }
 
+        try {
+            dependencies.add(parseSingleTree(jp, builder(ctxt), keyCodec, valueCodec));
         } catch (JsonProcessingException jpe) {
-            jpe.printStackTrace();
+            throw invalidTree(jp, jpe);
         }
         return dependencies;
     }
 
+    /**
+     * @return the exception which stopped a Dependency tree being read, as a JsonMappingException for the caller
+     * to throw.
+     */
+    private static JsonMappingException invalidTree(JsonParser jp, JsonProcessingException jpe) {
+        if (jpe instanceof JsonMappingException jme) return jme;
+        return JsonMappingException.from(jp, "Invalid dependency tree: " + jpe.getOriginalMessage(), jpe);
+    }
+
+    /**
+     * Turns each JSON object read into a Dependency once the object, and everything nested inside it, has been
+     * read.
+     */
+    interface TreeBuilder<K, V> {
+        /**
+         * @param dataKey      the object's dataKey.
+         * @param data         the object's data.
+         * @param finished     the object's finished flag.
+         * @param dependencies the Dependency objects built from its dependencies array.
+         * @param dependants   the Dependency objects built from its dependants array.
+         * @return the Dependency for the object.
+         */
+        Dependency<K, V> build(K dataKey, V data, boolean finished, List<Dependency<K, V>> dependencies,
+                               List<Dependency<K, V>> dependants) throws IOException;
+    }
+
+    /**
+     * A JSON object which has been opened but not yet closed.
+     */
+    private static class Frame<K, V> {
+        private K dataKey;
+        private V data;
+        private boolean finished;
+        private String openArray;
+        private final List<Dependency<K, V>> dependencies = new ArrayList<>();
+        private final List<Dependency<K, V>> dependants = new ArrayList<>();
+    }
+
     /**
      * Parses JSON containing a dependency tree with a single root node and converts back into a nested set
      * of dependencies.
      *
-     * @param jp
-     * @param ctxt
-     * @param node
-     * @return
+     * @param jp         the parser, positioned on the tree's START_OBJECT or on the token following it. It is left
+     *                   on the tree's END_OBJECT.
+     * @param builder    creates the Dependency for each object read.
+     * @param keyCodec   reads each dataKey.
+     * @param valueCodec reads each object's data.
+     * @return the Dependency at the top of the tree, or null if it has no dataKey.
      * @throws IOException
      */
-    private Dependency parseSingleTree(JsonParser jp, DeserializationContext ctxt, JsonNode node)
-            throws IOException {
-        ObjectMapper objectMapper = new ObjectMapper();
-
-        // The node itself can be != null even though it contains no data or children.
-        JsonNode interimDataKey = node.get("dataKey");
-        if (interimDataKey == null) return null;
-
-        String dataKey = interimDataKey.asText();
-        String data = node.get("data").asText();
-        boolean finished = node.get("finished").asBoolean();
-
-        // Create a new Dependency object using the constructor
-        Dependency dependency = new Dependency(dataKey, data);
-        dependency.setFinished(finished);
+    static <K, V> Dependency<K, V> parseSingleTree(JsonParser jp, TreeBuilder<K, V> builder,
+                                                   DependencyCodec<? extends K> keyCodec,
+                                                   DependencyCodec<? extends V> valueCodec) throws IOException {
+        Deque<Frame<K, V>> stack = new ArrayDeque<>();
+        stack.push(new Frame<>());
+        JsonToken token = jp.currentToken() == JsonToken.START_OBJECT ? jp.nextToken() : jp.currentToken();
+
+        while (true) {
+            Frame<K, V> frame = stack.peek();
+
+            if (frame.openArray != null) {
+                // Inside a dependencies or dependants array.
+                switch (token) {
+                    case START_OBJECT -> stack.push(new Frame<>());
+                    case END_ARRAY -> frame.openArray = null;
+                    case VALUE_NULL -> {
+                    }
+                    default -> jp.skipChildren();
+                }
+                token = jp.nextToken();
+                continue;
+            }
 
-        JsonNode dependenciesNode = node.get("dependencies");
+            if (token == JsonToken.FIELD_NAME) {
+                String field = jp.currentName();
+                JsonToken value = jp.nextToken();
+                switch (field) {
+                    case "dataKey" -> frame.dataKey = keyCodec.read(jp);
+                    case "data" -> frame.data = valueCodec.read(jp);
+                    case "finished" -> frame.finished = jp.getValueAsBoolean();
+                    case DEPENDENCIES, DEPENDANTS -> {
+                        if (value == JsonToken.START_ARRAY) {
+                            frame.openArray = field;
+                        } else {
+                            jp.skipChildren();
+                        }
+                    }
+                    default -> jp.skipChildren();
+                }
+                token = jp.nextToken();
+                continue;
+            }
 
-        if (dependenciesNode != null && dependenciesNode.isArray()) {
+            if (token != JsonToken.END_OBJECT) {
+                throw new JsonParseException(jp, "Unexpected token " + token + " in Dependency");
+            }
 
-            // Deserialize and add dependencies
-            for (JsonNode dependencyNode : dependenciesNode) {
+            // The object can be present even though it contains no data or children.
+            Dependency<K, V> dependency = frame.dataKey == null ? null : builder.build(frame.dataKey, frame.data,
+                    frame.finished, frame.dependencies, frame.dependants);
+            stack.pop();
+            if (stack.isEmpty()) return dependency;
 
-                Dependency _dependency = parseSingleTree(jp, ctxt, dependencyNode);
+            Frame<K, V> parent = stack.peek();
+            if (dependency != null) {
+                (DEPENDENCIES.equals(parent.openArray) ? parent.dependencies : parent.dependants).add(dependency);
+            }
+            token = jp.nextToken();
+        }
+    }
 
-                try {
+    /**
+     * Creates a new Dependency for every object read, linking it to the Dependency objects nested inside it. A
+     * Dependency appearing more than once in the JSON is created once per appearance.
+     */
+    private static TreeBuilder<Object, Object> builder(DeserializationContext ctxt) {
+        return (dataKey, data, finished, dependencies, dependants) -> {
+            // Create a new Dependency object using the constructor
+            Dependency<Object, Object> dependency = new Dependency<>(dataKey, data);
+            dependency.setFinished(finished);
+
+            try {
+                for (Dependency<Object, Object> _dependency : dependencies) {
                     dependency.addDependency(_dependency);
-                } catch (CircularDependencyException e) {
-                    // Handle circular dependency exception
-                    // You can decide how to handle validation errors
-                    ctxt.reportInputMismatch(Dependency.class, "Circular reference exception adding [" + dependency.getDataKey() + "]");
-                    e.printStackTrace();
                 }
-
+                for (Dependency<Object, Object> dependant : dependants) {
+                    dependant.addDependency(dependency);
+                }
+            } catch (CircularDependencyException e) {
+                // Handle circular dependency exception
+                // You can decide how to handle validation errors
+                ctxt.reportInputMismatch(Dependency.class, "Circular reference exception adding [" + dependency.getDataKey() + "]");
             }
-
-        }
-        return dependency;
+            return dependency;
+        };
     }
 }
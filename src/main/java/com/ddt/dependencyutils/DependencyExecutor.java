@@ -0,0 +1,224 @@
+package com.ddt.dependencyutils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task for every unfinished Dependency in a DependencyForest, each one as soon as all of its dependencies
+ * are finished. Each Dependency has a counter of its unfinished dependencies which is decremented as they
+ * complete, so nothing is ever rescanned. A Dependency whose task succeeds is marked finished.
+ * <p>
+ * If a task fails, every Dependency which depends on it, directly or indirectly, is skipped. Cancelling a run
+ * lets running tasks complete but starts no new ones. Either way the run completes with a Report giving the
+ * outcome and latency of every task and the overall throughput.
+ * </p>
+ * <p>
+ * Tasks run on the Executor supplied, or on the common ForkJoinPool by default. Blocking tasks should be given an
+ * Executor sized for them.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class DependencyExecutor<K, V> {
+    private final static Logger logger = LoggerFactory.getLogger(DependencyExecutor.class);
+
+    private final DependencyForest<K, V> dependencyForest;
+    private final Executor executor;
+    private final Set<Run> runs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The work to do for each Dependency.
+     *
+     * @param <K> key type
+     * @param <V> value type
+     */
+    @FunctionalInterface
+    public interface Task<K, V> {
+        void run(Dependency<K, V> dependency) throws Exception;
+    }
+
+    public enum Outcome {SUCCEEDED, FAILED, SKIPPED, CANCELLED}
+
+    /**
+     * The result of a run.
+     *
+     * @param outcomes  the outcome of every Dependency which was unfinished when the run started.
+     * @param latencies how long each task that ran took.
+     * @param failures  the exception thrown by each task which failed.
+     * @param elapsed   how long the whole run took.
+     * @param <K>       key type
+     */
+    public record Report<K>(Map<K, Outcome> outcomes, Map<K, Duration> latencies, Map<K, Throwable> failures,
+                            Duration elapsed) {
+        /**
+         * @return the number of tasks which succeeded.
+         */
+        public long succeeded() {
+            return outcomes.values().stream().filter(outcome -> outcome == Outcome.SUCCEEDED).count();
+        }
+
+        /**
+         * @return tasks succeeded per second.
+         */
+        public double throughput() {
+            double seconds = elapsed.toNanos() / 1e9;
+            return seconds == 0 ? 0 : succeeded() / seconds;
+        }
+    }
+
+    public DependencyExecutor(DependencyForest<K, V> dependencyForest) {
+        this(dependencyForest, ForkJoinPool.commonPool());
+    }
+
+    public DependencyExecutor(DependencyForest<K, V> dependencyForest, Executor executor) {
+        this.dependencyForest = dependencyForest;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts running task for every unfinished Dependency in the forest.
+     *
+     * @param task the task to run.
+     * @return a future completed with the Report once every Dependency has an outcome. Cancelling the future
+     * cancels the run.
+     */
+    public CompletableFuture<Report<K>> execute(Task<K, V> task) {
+        Run run = new Run(task);
+        runs.add(run);
+        run.future.whenComplete((report, throwable) -> {
+            runs.remove(run);
+            if (run.future.isCancelled()) run.cancel();
+        });
+        run.start();
+        return run.future;
+    }
+
+    /**
+     * Cancels every run in progress. Tasks already running complete, no new ones are started.
+     */
+    public void cancel() {
+        runs.forEach(Run::cancel);
+    }
+
+    /**
+     * The state of a single execution.
+     */
+    private class Run {
+        private final Task<K, V> task;
+        private final CompletableFuture<Report<K>> future = new CompletableFuture<>();
+        private final Map<Dependency<K, V>, AtomicInteger> unfinishedDependencies = new IdentityHashMap<>();
+        private final Map<Dependency<K, V>, Boolean> claimed = new ConcurrentHashMap<>();
+        private final Map<K, Outcome> outcomes = new ConcurrentHashMap<>();
+        private final Map<K, Duration> latencies = new ConcurrentHashMap<>();
+        private final Map<K, Throwable> failures = new ConcurrentHashMap<>();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private long startTime;
+
+        Run(Task<K, V> task) {
+            this.task = task;
+        }
+
+        void start() {
+            startTime = System.nanoTime();
+
+            // Every unfinished Dependency connected to the forest's members takes part.
+            Deque<Dependency<K, V>> stack = new ArrayDeque<>(dependencyForest.getAllNodes().values());
+            Set<Dependency<K, V>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            while (!stack.isEmpty()) {
+                Dependency<K, V> node = stack.pop();
+                if (!seen.add(node)) continue;
+                if (!node.isFinished()) unfinishedDependencies.put(node, new AtomicInteger());
+                if (node.hasDependencies()) stack.addAll(node.getDependencies().values());
+                if (node.hasDependants()) stack.addAll(node.getDependants().values());
+            }
+
+            List<Dependency<K, V>> ready = new ArrayList<>();
+            for (Map.Entry<Dependency<K, V>, AtomicInteger> entry : unfinishedDependencies.entrySet()) {
+                Dependency<K, V> node = entry.getKey();
+                if (node.hasDependencies()) {
+                    for (Dependency<K, V> dependency : node.getDependencies().values()) {
+                        if (unfinishedDependencies.containsKey(dependency)) entry.getValue().incrementAndGet();
+                    }
+                }
+                if (entry.getValue().get() == 0) ready.add(node);
+            }
+
+            remaining.set(unfinishedDependencies.size());
+            if (unfinishedDependencies.isEmpty()) complete();
+            ready.forEach(this::submit);
+        }
+
+        private void submit(Dependency<K, V> node) {
+            try {
+                executor.execute(() -> runTask(node));
+            } catch (RejectedExecutionException ree) {
+                if (claimed.putIfAbsent(node, Boolean.TRUE) == null) fail(node, ree);
+            }
+        }
+
+        private void runTask(Dependency<K, V> node) {
+            if (cancelled || claimed.putIfAbsent(node, Boolean.TRUE) != null) return;
+
+            long taskStart = System.nanoTime();
+            try {
+                task.run(node);
+            } catch (Throwable t) {
+                latencies.put(node.getDataKey(), Duration.ofNanos(System.nanoTime() - taskStart));
+                fail(node, t);
+                return;
+            }
+            latencies.put(node.getDataKey(), Duration.ofNanos(System.nanoTime() - taskStart));
+            node.setFinished(true);
+            record(node, Outcome.SUCCEEDED);
+
+            if (!node.hasDependants()) return;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                AtomicInteger counter = unfinishedDependencies.get(dependant);
+                if (counter != null && counter.decrementAndGet() == 0 && !cancelled) submit(dependant);
+            }
+        }
+
+        /**
+         * Records a failure and skips every Dependency which depends on the one which failed.
+         */
+        private void fail(Dependency<K, V> node, Throwable t) {
+            logger.debug("Task for [{}] failed", node.getDataKey(), t);
+            failures.put(node.getDataKey(), t);
+
+            Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+            if (node.hasDependants()) stack.addAll(node.getDependants().values());
+            while (!stack.isEmpty()) {
+                Dependency<K, V> dependant = stack.pop();
+                if (!unfinishedDependencies.containsKey(dependant)) continue;
+                if (claimed.putIfAbsent(dependant, Boolean.TRUE) != null) continue;
+                record(dependant, Outcome.SKIPPED);
+                if (dependant.hasDependants()) stack.addAll(dependant.getDependants().values());
+            }
+            record(node, Outcome.FAILED);
+        }
+
+        void cancel() {
+            cancelled = true;
+            for (Dependency<K, V> node : unfinishedDependencies.keySet()) {
+                if (claimed.putIfAbsent(node, Boolean.TRUE) == null) record(node, Outcome.CANCELLED);
+            }
+        }
+
+        private void record(Dependency<K, V> node, Outcome outcome) {
+            outcomes.put(node.getDataKey(), outcome);
+            if (remaining.decrementAndGet() == 0) complete();
+        }
+
+        private void complete() {
+            future.complete(new Report<>(Map.copyOf(outcomes), Map.copyOf(latencies), Map.copyOf(failures),
+                    Duration.ofNanos(System.nanoTime() - startTime)));
+        }
+    }
+}
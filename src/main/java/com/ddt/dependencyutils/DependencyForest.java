@@ -1,19 +1,39 @@
 package com.ddt.dependencyutils;
 
+import com.ddt.dependencyutils.exception.CircularDependenciesException;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Dependency-aware container class for root nodes of multiple dependency trees.
+ * <p>
+ * A DependencyForest may be used from several threads at once. Adding and removing dependencies, whether through
+ * the forest or through its members, are atomic transactions run one at a time under a single write lock per
+ * forest, queries of the graph run optimistically without blocking and finished flags of different members change
+ * in parallel. See ForestLock for the details. Changes made straight to the dependency maps returned by a member
+ * are not covered.
+ * </p>
  *
  * @param <K>
  * @param <V>
@@ -21,26 +41,79 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public class DependencyForest<K, V> {
     private final static Logger logger = LoggerFactory.getLogger(DependencyForest.class);
 
-    private List<Dependency<K, V>> outermostLeafDependencies;
-    private List<Dependency<K, V>> dependenciesWithNoDependencies;
+    private final OrderedDependencySet<K, V> outermostLeafDependencies = new OrderedDependencySet<>();
+    private final OrderedDependencySet<K, V> dependenciesWithNoDependencies = new OrderedDependencySet<>();
 
     @JsonIgnore
     private Map<K, Dependency<K, V>> allNodes;
 
+    @JsonIgnore
+    private final TopologicalOrder<K, V> topologicalOrder = new TopologicalOrder<>();
+
+    @JsonIgnore
+    private volatile ReachabilityIndex<K, V> reachabilityIndex;
+
+    @JsonIgnore
+    private final ReadySet<K, V> readySet = new ReadySet<>(this);
+
+    // Makes changes to the graph atomic. See ForestLock.
+    private final ForestLock lock = new ForestLock();
+
+    // Bumped by every change to the dependencies of a member, invalidating the members' memoized counts.
+    private final AtomicLong edgeVersion = new AtomicLong();
+
     private String name;
 
     public enum SerializingScheme {DEPENDENCIES, DEPENDANTS}
 
+    /**
+     * How toJson and writeJson lay out a DependencyForest. TREES nests each Dependency inside its dependants or
+     * dependencies, according to the serializing scheme, so a shared Dependency is repeated once per route to it.
+     * GRAPH lists each Dependency once followed by the edges between them by data key, so output is linear in the
+     * size of the forest.
+     */
+    public enum JsonFormat {TREES, GRAPH}
+
+    /**
+     * An edge for bulk loading: dependant depends on dependency.
+     *
+     * @param dependant  the Dependency which depends on dependency.
+     * @param dependency the Dependency depended on.
+     * @param <K>        key type
+     * @param <V>        value type
+     */
+    public record Edge<K, V>(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        public Edge {
+            Objects.requireNonNull(dependant, "dependant");
+            Objects.requireNonNull(dependency, "dependency");
+        }
+    }
+
+    @JsonIgnore
+    private volatile SerializingScheme serializingScheme = SerializingScheme.DEPENDANTS;
+
+    @JsonIgnore
+    private JsonFormat jsonFormat = JsonFormat.TREES;
+
+    @JsonIgnore
+    private DependencyCodec<? super K> keyCodec = Codecs.TEXT;
+
+    @JsonIgnore
+    private DependencyCodec<? super V> valueCodec = Codecs.TEXT;
+
+    @JsonIgnore
+    private volatile DependencyJournal<K, V> journal;
+
+    // Created by the first call to snapshot.
     @JsonIgnore
-    private SerializingScheme serializingScheme = SerializingScheme.DEPENDANTS;
+    private volatile VersionTracker<K, V> versions;
 
     /**
      *
      */
     public DependencyForest() {
-        outermostLeafDependencies = new CopyOnWriteArrayList<>();
-        dependenciesWithNoDependencies = new CopyOnWriteArrayList<>();
         allNodes = new ConcurrentHashMap<>();
+        lock.onCommit(this::committed);
     }
 
     /**
@@ -52,13 +125,25 @@ public class DependencyForest<K, V> {
     }
 
     /**
+     * Sets the direction used by toJson, writeJson, getAllTrees and the tree rendering methods, and by each
+     * member Dependency. Members read the forest's scheme rather than holding a copy, so nothing else is written.
+     *
      * @param serializingScheme The serializing scheme to use.
      */
     public void setSerializingScheme(SerializingScheme serializingScheme) {
         this.serializingScheme = serializingScheme;
-        allNodes.values().forEach(v -> {
-            v.setSerializingScheme(getSerializingScheme());
-        });
+    }
+
+    /**
+     * Returns a read-only view of this forest which serializes and renders it in the direction given, whatever
+     * getSerializingScheme() is. Views don't write to the forest or its nodes, so threads can serialize the same
+     * forest in different directions at once.
+     *
+     * @param serializingScheme the direction of the view.
+     * @return the view.
+     */
+    public DependencyForestView<K, V> view(SerializingScheme serializingScheme) {
+        return new DependencyForestView<>(this, serializingScheme);
     }
 
     /**
@@ -68,6 +153,48 @@ public class DependencyForest<K, V> {
         return this.serializingScheme;
     }
 
+    /**
+     * @param jsonFormat the layout to use for toJson and writeJson.
+     */
+    public void setJsonFormat(JsonFormat jsonFormat) {
+        this.jsonFormat = jsonFormat;
+    }
+
+    /**
+     * @return the layout used for toJson and writeJson.
+     */
+    public JsonFormat getJsonFormat() {
+        return this.jsonFormat;
+    }
+
+    /**
+     * @param keyCodec writes data keys for toJson and writeJson, here and from each Dependency in this forest.
+     */
+    public void setKeyCodec(DependencyCodec<? super K> keyCodec) {
+        this.keyCodec = Objects.requireNonNull(keyCodec, "keyCodec");
+    }
+
+    /**
+     * @return the codec writing data keys. Unless one has been set, data keys are written using toString().
+     */
+    public DependencyCodec<? super K> getKeyCodec() {
+        return this.keyCodec;
+    }
+
+    /**
+     * @param valueCodec writes data for toJson and writeJson, here and from each Dependency in this forest.
+     */
+    public void setValueCodec(DependencyCodec<? super V> valueCodec) {
+        this.valueCodec = Objects.requireNonNull(valueCodec, "valueCodec");
+    }
+
+    /**
+     * @return the codec writing data. Unless one has been set, data is written using toString().
+     */
+    public DependencyCodec<? super V> getValueCodec() {
+        return this.valueCodec;
+    }
+
     /**
      * Returns the number of Dependency objects stored in this DependencyForest.
      * @return
@@ -123,7 +250,7 @@ public class DependencyForest<K, V> {
      * @return
      */
     public List<Dependency<K, V>> getAllTrees() {
-        return (getSerializingScheme() == SerializingScheme.DEPENDANTS) ? getDependenciesWithNoDependencies() : this.getOutermostLeafDependencies();
+        return view(getSerializingScheme()).getAllTrees();
     }
 
     /**
@@ -136,104 +263,586 @@ public class DependencyForest<K, V> {
     }
 
     /**
-     * Adds a new dependency to the forest.
+     * Adds a new dependency to the forest, along with every Dependency connected to it.
      * @param dependency
      */
     public void addDependency(Dependency<K, V> dependency) {
-        if (allNodes.values().stream().anyMatch(val -> val.equals(dependency))) return;
+        lock.write(() -> {
+            join(dependency);
+            return null;
+        });
+    }
+
+    private void join(Dependency<K, V> dependency) {
+        if (hasDependency(dependency)) return;
+
+        if (dependency.getDependencyForest() == this) {
+            // Already joined the forest but without being registered, e.g. a copy of a Dependency which has since
+            // been replaced.
+            register(dependency);
+            return;
+        }
 
+        // Joining the forest registers every connected Dependency in both the dependencies and dependants
+        // directions.
         dependency.setDependencyForest(this);
-        dependency.setSerializingScheme(getSerializingScheme());
+    }
+
+    /**
+     * Removes the member of this forest equal to dependency, grafting its dependants on to its dependencies. It
+     * is found by its key wherever it lies in the forest, unlike Dependency.removeDependency, which only looks
+     * among the dependencies of the Dependency it is called on. Only its own dependencies and dependants are
+     * touched.
+     *
+     * @param dependency the Dependency to remove.
+     */
+    public void removeDependency(Dependency<K, V> dependency) {
+        lock.write(() -> {
+            Dependency<K, V> member = get(dependency.getDataKey());
+            if (member != null && member.equals(dependency)) member.detach();
+            return null;
+        });
+    }
+
+    /**
+     * Adds a batch of edges as a single transaction. Rather than validating each edge as it is added, the edges
+     * are staged and the part of the forest they can reach is checked for cycles once with a linear-time
+     * topological sort, so a batch costs in proportion to its own size and to the part of the topological order
+     * it rearranges, not to the size of the forest. The root, leaf and ordering state of the forest is then
+     * updated in one pass.
+     * <p>
+     * Dependency objects equal to ones already in the forest, or to ones earlier in the batch, are replaced by
+     * those so that each node is only wired in once. Unlike Dependency.addDependency, an edge duplicating a route
+     * which exists through other dependencies is accepted.
+     * </p>
+     *
+     * @param edges the edges to add.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle. If it is thrown, none of
+     *                                       the edges are added.
+     * @throws IllegalArgumentException      if an edge names a Dependency whose data key is that of a different
+     *                                       member, or of a different Dependency earlier in the batch. If it is
+     *                                       thrown, none of the edges are added.
+     */
+    public void addAll(Collection<Edge<K, V>> edges) throws CircularDependenciesException {
+        lock.write(() -> {
+            new BulkEdgeLoader<>(this).load(edges);
+            return null;
+        });
+    }
+
+    /**
+     * Registers a Dependency which has just joined this forest. A Dependency equal to one already registered is
+     * not registered again.
+     * @param dependency the Dependency joining the forest.
+     */
+    void register(Dependency<K, V> dependency) {
+        Dependency<K, V> existing = allNodes.get(dependency.getDataKey());
+        if (dependency.equals(existing)) return;
+
         allNodes.put(dependency.getDataKey(), dependency);
-        updateAllDependencies();
+        ForestLock.undo(() -> forget(dependency, existing));
+        updateDependency(dependency);
+        nodeJoined(dependency);
+        if (reachabilityIndex != null) reachabilityIndex.joined(dependency);
+    }
 
+    /**
+     * Forgets a Dependency which has been taken out of the graph, dropping it from the key index, the root, leaf
+     * and ready sets and the topological order.
+     * @param dependency the Dependency leaving the forest.
+     */
+    void unregister(Dependency<K, V> dependency) {
+        if (allNodes.get(dependency.getDataKey()) != dependency) return;
 
-        //Add all nodes found in both the dependencies and dependants directions. This may mean surplus calls
-        //to add are made if nodes being added share common dependencies / dependants but see above.
-        if (dependency.hasDependants()) dependency.getDependants().values().forEach(this::addDependency);
-        if (dependency.hasDependencies()) dependency.getDependencies().values().forEach(this::addDependency);
+        allNodes.remove(dependency.getDataKey());
+        ForestLock.undo(() -> {
+            allNodes.put(dependency.getDataKey(), dependency);
+            restored(dependency, true);
+        });
+        dependenciesWithNoDependencies.remove(dependency);
+        outermostLeafDependencies.remove(dependency);
+        readySet.remove(dependency);
+        topologicalOrder.remove(dependency);
+        dependency.leaveForest();
     }
 
     /**
-     * This method maintains the lists of root and outermost leaf dependencies, checking all dependencies
-     * to see whether they belong in either list, removing them if they no longer do and adding them if they
-     * do.
+     * Takes back register, putting back the member it replaced, if any.
+     */
+    private void forget(Dependency<K, V> dependency, Dependency<K, V> replaced) {
+        if (replaced != null) {
+            allNodes.put(dependency.getDataKey(), replaced);
+        } else {
+            allNodes.remove(dependency.getDataKey(), dependency);
+        }
+        dependenciesWithNoDependencies.remove(dependency);
+        outermostLeafDependencies.remove(dependency);
+        readySet.remove(dependency);
+        topologicalOrder.remove(dependency);
+        if (reachabilityIndex != null) reachabilityIndex.invalidate();
+        if (replaced != null) refresh(replaced);
+    }
+
+    /**
+     * Brings a member up to date after a change to it has been taken back. Taking back a removal puts back edges
+     * which the order may have been rearranged without since, so then the order is forgotten, to be worked out
+     * again lazily.
+     *
+     * @param dependency the member.
+     * @param reorder    true if edges were put back.
+     */
+    void restored(Dependency<K, V> dependency, boolean reorder) {
+        if (reorder) topologicalOrder.clear();
+        if (reachabilityIndex != null) reachabilityIndex.invalidate();
+        refresh(dependency);
+    }
+    /**
+     * This method maintains the sets of root and outermost leaf dependencies, checking the given dependency
+     * to see whether it belongs in either, removing it if it no longer does and adding it if it does. Adding
+     * or removing a dependency only changes the status of its two ends, so only they need to be updated. The
+     * dependency's count of unfinished dependencies, which decides whether it is ready, is refreshed too.
      * @param dependency
      */
     public void updateDependency(Dependency<K, V> dependency) {
-        if (!containsKey(dependency.getDataKey())) return;
+        lock.write(() -> {
+            refresh(dependency);
+            return null;
+        });
+    }
 
-        // There is probably a much nicer way of doing all this too rather than just forcing it.
-        if (dependency.hasDependencies()) dependenciesWithNoDependencies.remove(dependency);
+    private void refresh(Dependency<K, V> dependency) {
+        if (allNodes.get(dependency.getDataKey()) != dependency) return;
 
-        if (!dependency.hasDependencies() && !dependenciesWithNoDependencies.contains(dependency))
+        if (dependency.hasDependencies()) {
+            dependenciesWithNoDependencies.remove(dependency);
+        } else {
             dependenciesWithNoDependencies.add(dependency);
+        }
 
-        if (dependency.hasDependants()) outermostLeafDependencies.remove(dependency);
-
-        if (!dependency.hasDependants() && !outermostLeafDependencies.contains(dependency))
+        if (dependency.hasDependants()) {
+            outermostLeafDependencies.remove(dependency);
+        } else {
             outermostLeafDependencies.add(dependency);
+        }
 
-        dependency.setSerializingScheme(getSerializingScheme());
+        readySet.refresh(dependency);
     }
 
+    /**
+     * Re-checks the root and leaf status of every Dependency in this forest.
+     */
     public void updateAllDependencies() {
-        allNodes.values().forEach(this::updateDependency);
+        lock.write(() -> {
+            allNodes.values().forEach(this::refresh);
+            return null;
+        });
     }
 
+    /**
+     * @return an immutable snapshot of the Dependencies with no dependants, in the order they became leaves.
+     */
     public List<Dependency<K, V>> getOutermostLeafDependencies() {
-        return outermostLeafDependencies;
+        return outermostLeafDependencies.snapshot();
     }
 
+    /**
+     * @return an immutable snapshot of the Dependencies with no dependencies, in the order they became roots.
+     */
     public List<Dependency<K, V>> getDependenciesWithNoDependencies() {
-        return dependenciesWithNoDependencies;
+        return dependenciesWithNoDependencies.snapshot();
+    }
+
+    /**
+     * Returns the Dependency objects which are not finished but whose dependencies all are, i.e. those which are
+     * ready to run. The set is kept up to date as dependencies are added and removed and as setFinished is called,
+     * so asking for it doesn't walk the forest.
+     *
+     * @return an immutable snapshot of the ready Dependencies, in the order they became ready.
+     */
+    public List<Dependency<K, V>> getReadyNodes() {
+        return readySet.snapshot();
+    }
+
+    /**
+     * Waits until at least one Dependency is ready to run.
+     *
+     * @param timeout how long to wait.
+     * @param unit    the unit of timeout.
+     * @return an immutable snapshot of the ready Dependencies, empty if none became ready in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public List<Dependency<K, V>> awaitReadyNodes(long timeout, TimeUnit unit) throws InterruptedException {
+        return readySet.await(timeout, unit);
+    }
+
+    /**
+     * Returns the length of the longest route from any Dependency in this forest to a root node. The longest
+     * routes always start at outermost leaves, so only they are asked for their memoized depths. Depths are
+     * memoized as they are worked out, so this runs under the read lock rather than optimistically.
+     *
+     * @return the depth of the deepest Dependency, 0 if every Dependency is a root node.
+     */
+    public int maxDepth() {
+        return lock.read(
+                () -> getOutermostLeafDependencies().stream().mapToInt(Dependency::maxDepth).max().orElse(0));
     }
 
     /**
      * Deletes all Dependency trees, effectively emptying the forest.
      */
     public void clear() {
+        lock.write(() -> {
+            empty();
+            return null;
+        });
+    }
+
+    private void empty() {
+        List<Dependency<K, V>> members = new ArrayList<>(allNodes.values());
+        ForestLock.undo(() -> members.forEach(member -> {
+            allNodes.put(member.getDataKey(), member);
+            restored(member, true);
+        }));
+        allNodes.values().forEach(Dependency::leaveForest);
         allNodes.clear();
         dependenciesWithNoDependencies.clear();
         outermostLeafDependencies.clear();
+        topologicalOrder.clear();
+        readySet.clear();
+        if (reachabilityIndex != null) reachabilityIndex.clear();
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.logClear();
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.cleared();
     }
 
     /**
-     * Converts this DependencyForest to a JSON array of JSON Dependency trees for all nodes currently held.
+     * Returns an immutable version of this forest as it was when the last change to it committed. Versions can be
+     * read from any thread without locking, and a version never changes, so a reader holding one doesn't see
+     * later changes half made. Readers which don't need the Dependency objects themselves can use versions rather
+     * than the forest to keep out of the way of writers.
+     * <p>
+     * The first call builds a version from the whole forest and from then on each change to the forest publishes
+     * a new version sharing everything it didn't change with the one before, so later calls cost a volatile read.
+     * Changes made by a transaction on the calling thread which hasn't yet committed aren't included.
+     * </p>
+     *
+     * @return the latest version.
+     */
+    public ForestVersion<K, V> snapshot() {
+        VersionTracker<K, V> versions = this.versions;
+        if (versions == null) {
+            versions = lock.write(() -> {
+                if (this.versions == null) {
+                    this.versions = new VersionTracker<>(this, VersionTracker.build(this));
+                }
+                return this.versions;
+            });
+        }
+        return versions.published();
+    }
+
+    /**
+     * Run as each transaction commits, before the write lock is released. Brings the reachability index up to date,
+     * so that queries only read it, publishes the version the transaction built and hands the records it logged to
+     * the journal's writer.
+     */
+    private void committed() {
+        if (reachabilityIndex != null) reachabilityIndex.commit();
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.publish();
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.commit();
+    }
+
+    /*
+     * Changes to the forest, made under its lock, are reported to the methods below, which pass them on to the
+     * journal and the published versions if there are any.
+     */
+
+    void nodeJoined(Dependency<K, V> dependency) {
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.logNode(dependency);
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.nodeJoined(dependency);
+    }
+
+    void edgeAdded(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.logEdge(dependant, dependency);
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.edgeAdded(dependant, dependency);
+    }
+
+    /**
+     * Reports every dependency of each of the Dependency objects given, which have just joined the forest.
+     */
+    void edgesJoined(Collection<Dependency<K, V>> dependants) {
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.logEdges(dependants);
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.edgesJoined(dependants);
+    }
+
+    /**
+     * Reported while the stripe of the Dependency is held.
+     */
+    void finishedChanged(Dependency<K, V> dependency) {
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.logFinished(dependency);
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.finishedChanged(dependency);
+    }
+
+    /**
+     * Reported before the Dependency is unlinked, as the removal reports the dependencies it grafts on in its
+     * place.
+     */
+    void removing(Dependency<K, V> dependency) {
+        DependencyJournal<K, V> journal = this.journal;
+        if (journal != null) journal.logRemove(dependency);
+        VersionTracker<K, V> versions = this.versions;
+        if (versions != null) versions.removing(dependency);
+    }
+
+    /**
+     * Turns the reachability index on or off. While it is on, hasDependency, hasDependant, getDependency and
+     * getDependant on members of this DependencyForest are answered from a transitive closure kept up to date as
+     * dependencies are added and removed, rather than by searching the graph. The closure costs n<sup>2</sup> bits
+     * for n nodes.
+     *
+     * @param reachabilityIndexed true to maintain the index.
+     */
+    public void setReachabilityIndexed(boolean reachabilityIndexed) {
+        lock.write(() -> {
+            if (reachabilityIndexed != isReachabilityIndexed()) {
+                this.reachabilityIndex = reachabilityIndexed ? new ReachabilityIndex<>(this) : null;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return true if this DependencyForest maintains a reachability index.
+     */
+    public boolean isReachabilityIndexed() {
+        return reachabilityIndex != null;
+    }
+
+    /**
+     * @return the reachability index, or null if it is turned off.
+     */
+    ReachabilityIndex<K, V> getReachabilityIndex() {
+        return reachabilityIndex;
+    }
+
+    /**
+     * @return the set of Dependencies ready to run.
+     */
+    ReadySet<K, V> getReadySet() {
+        return readySet;
+    }
+
+    /**
+     * @param journal the journal to log changes to this DependencyForest to, or null to stop logging them.
+     */
+    void setJournal(DependencyJournal<K, V> journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the counter bumped by every change to the dependencies of a member.
+     */
+    AtomicLong getEdgeVersion() {
+        return edgeVersion;
+    }
+
+    /**
+     * @return the lock making changes to this DependencyForest atomic.
+     */
+    ForestLock getLock() {
+        return lock;
+    }
+
+    /**
+     * @return the topological order used to validate new dependencies between members of this DependencyForest.
+     */
+    TopologicalOrder<K, V> getTopologicalOrder() {
+        return topologicalOrder;
+    }
+
+    /**
+     * Converts this DependencyForest to a JSON array of JSON Dependency trees for all nodes currently held, or to a
+     * graph document if getJsonFormat() is GRAPH.
      * @return
      */
     public String toJson() {
-        StringBuffer sb = new StringBuffer();
-        if (getSerializingScheme() == SerializingScheme.DEPENDANTS) {
-            sb.append("[");
-            boolean[] first = {true};
-            dependenciesWithNoDependencies.forEach(dep -> {
-                sb.append((!first[0]) ? "," : "").append(dep.toJson());
-                if (first[0]) first[0] = false;
-            });
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        } catch (IOException ioe) {
+            // A StringWriter doesn't throw.
+            throw new UncheckedIOException(ioe);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes this DependencyForest as JSON, in the same form as toJson. The JSON is
+     * streamed to the writer as it is generated, so memory use doesn't grow with the size of the output. The
+     * writer is flushed but not closed.
+     *
+     * @param writer the Writer to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(writer)) {
+            writeJson(gen);
+        }
+    }
 
-            sb.append("]");
+    /**
+     * Writes this DependencyForest as UTF-8 JSON, in the same form as toJson, streaming it as for
+     * writeJson(Writer). The stream is flushed but not closed.
+     *
+     * @param out the OutputStream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(out)) {
+            writeJson(gen);
         }
+    }
 
-        if (getSerializingScheme() == SerializingScheme.DEPENDENCIES) {
-            sb.append("[");
-            boolean[] first = {true};
-            outermostLeafDependencies.forEach(dep -> {
-                sb.append((!first[0]) ? "," : "").append(dep.toJson());
-                if (first[0]) first[0] = false;
-            });
+    /**
+     * Writes this DependencyForest as a JSON array of Dependency trees to a generator. The roots of the trees are
+     * those returned by getAllTrees. If getJsonFormat() is GRAPH, a graph document listing every Dependency once
+     * is written instead.
+     *
+     * @param gen the generator to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(JsonGenerator gen) throws IOException {
+        view(getSerializingScheme()).writeJson(gen);
+    }
+
+    /**
+     * Reads JSON in either format, nested trees or a graph document, into a new DependencyForest ready to be
+     * queried. A Dependency appearing several times in nested trees is created once, the first appearance
+     * supplying its data, and every edge to it is wired to that one object. Edges are trusted as they are read and
+     * the whole forest is checked for cycles once at the end, so loading is linear in the size of the JSON.
+     * <p>
+     * Trees nested through dependencies give a forest with the DEPENDENCIES serializing scheme, otherwise it is
+     * DEPENDANTS. A graph document gives a forest with the GRAPH JSON format.
+     * </p>
+     *
+     * @param json the JSON to read.
+     * @return a new DependencyForest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    public static DependencyForest<String, String> fromJson(String json)
+            throws IOException, CircularDependenciesException {
+        return fromJson(json, DependencyCodec.strings(), DependencyCodec.strings());
+    }
+
+    /**
+     * Reads JSON into a new DependencyForest as for fromJson(String), reading data keys and data with the codecs
+     * given rather than as Strings. The forest returned writes them with the same codecs.
+     *
+     * @param json       the JSON to read.
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return a new DependencyForest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    public static <K, V> DependencyForest<K, V> fromJson(String json, DependencyCodec<K> keyCodec,
+                                                         DependencyCodec<V> valueCodec)
+            throws IOException, CircularDependenciesException {
+        try (JsonParser jp = DependencyJson.factory().createParser(json)) {
+            return new ForestJsonReader<>(keyCodec, valueCodec).read(jp);
+        }
+    }
+
+    /**
+     * Reads JSON into a new DependencyForest as for fromJson(String), streaming it from a Reader. The reader is
+     * not closed.
+     *
+     * @param reader the Reader to read from.
+     * @return a new DependencyForest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    public static DependencyForest<String, String> fromJson(Reader reader)
+            throws IOException, CircularDependenciesException {
+        return fromJson(reader, DependencyCodec.strings(), DependencyCodec.strings());
+    }
 
-            sb.append("]");
+    /**
+     * Reads JSON into a new DependencyForest as for fromJson(String, DependencyCodec, DependencyCodec),
+     * streaming it from a Reader. The reader is not closed.
+     *
+     * @param reader     the Reader to read from.
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return a new DependencyForest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    public static <K, V> DependencyForest<K, V> fromJson(Reader reader, DependencyCodec<K> keyCodec,
+                                                         DependencyCodec<V> valueCodec)
+            throws IOException, CircularDependenciesException {
+        try (JsonParser jp = DependencyJson.factory().createParser(reader)) {
+            return new ForestJsonReader<>(keyCodec, valueCodec).read(jp);
+        }
+    }
+
+    /**
+     * Reads JSON into a new DependencyForest as for fromJson(String), streaming it from an InputStream. The
+     * stream is not closed.
+     *
+     * @param in the InputStream to read from.
+     * @return a new DependencyForest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    public static DependencyForest<String, String> fromJson(InputStream in)
+            throws IOException, CircularDependenciesException {
+        return fromJson(in, DependencyCodec.strings(), DependencyCodec.strings());
+    }
+
+    /**
+     * Reads JSON into a new DependencyForest as for fromJson(String, DependencyCodec, DependencyCodec),
+     * streaming it from an InputStream. The stream is not closed.
+     *
+     * @param in         the InputStream to read from.
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return a new DependencyForest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    public static <K, V> DependencyForest<K, V> fromJson(InputStream in, DependencyCodec<K> keyCodec,
+                                                         DependencyCodec<V> valueCodec)
+            throws IOException, CircularDependenciesException {
+        try (JsonParser jp = DependencyJson.factory().createParser(in)) {
+            return new ForestJsonReader<>(keyCodec, valueCodec).read(jp);
         }
-        return sb.toString();
     }
 
     public Map<K, Dependency<K, V>> getAllNodes() {
         return allNodes;
     }
 
+    /**
+     * Retrieves this forest's Dependency equal to _candiate, if there is one.
+     *
+     * @param _candiate the Dependency to look for.
+     * @return the equal Dependency held by this forest, or null.
+     */
     public Dependency<K, V> get(Dependency<K, V> _candiate) {
-        return hasDependency(_candiate) ? getDependency(_candiate) : null;
+        return getDependency(_candiate);
     }
 
     /**
@@ -244,18 +853,20 @@ public class DependencyForest<K, V> {
      * @return
      */
     public Dependency<K, V> getDependency(Dependency<K,V> dependency) {
-        if (!hasDependency(dependency)) return null;
-        return allNodes.get(dependency.getDataKey());
+        if (dependency == null) return null;
+        Dependency<K, V> candidate = allNodes.get(dependency.getDataKey());
+        return dependency.equals(candidate) ? candidate : null;
     }
 
     /**
-     * Checks to see if a dependency with identical values exists in this DependencyForest.
+     * Checks to see if a dependency with identical values exists in this DependencyForest. Equal Dependency
+     * objects share a data key and allNodes holds one Dependency per key, so this is a single hash lookup.
      *
      * @param dependency
      * @return true if dependency exists else false
      */
     public boolean hasDependency(Dependency<K,V> dependency) {
-        return allNodes.values().stream().anyMatch(val -> val.equals(dependency));
+        return dependency != null && dependency.equals(allNodes.get(dependency.getDataKey()));
     }
 
     /**
@@ -264,23 +875,20 @@ public class DependencyForest<K, V> {
      * @return a list of all root or leaf nodes according to getSerializingScheme().
      */
     public ArrayList<String> allTreesToStrings() {
-        ArrayList<String> trees = new ArrayList<>();
-
-        switch (getSerializingScheme()) {
-            case DEPENDANTS -> {
-                if (dependenciesWithNoDependencies == null || dependenciesWithNoDependencies.isEmpty()) break;
-                for (Dependency<K, V> dependency : dependenciesWithNoDependencies) {
-                    trees.add(dependency.dependantTreeToString());
-                }
-            }
-            case DEPENDENCIES -> {
-                if (outermostLeafDependencies == null || outermostLeafDependencies.isEmpty()) break;
-                for (Dependency<K, V> dependency : outermostLeafDependencies) {
-                    trees.add(dependency.treeToString());
-                }
-            }
-        }
+        return view(getSerializingScheme()).allTreesToStrings();
+    }
 
-        return trees;
+    /**
+     * Writes the trees generated by allTreesToStrings to an Appendable, one after the other, as they are walked.
+     * Every tree is limited separately.
+     *
+     * @param out      where to write the trees.
+     * @param maxDepth the deepest level of each tree to expand. Integer.MAX_VALUE for no limit.
+     * @param maxNodes the number of Dependency objects after which each tree is cut short. Integer.MAX_VALUE for
+     *                 no limit.
+     * @throws IOException if out throws it.
+     */
+    public void writeAllTrees(Appendable out, int maxDepth, int maxNodes) throws IOException {
+        view(getSerializingScheme()).writeAllTrees(out, maxDepth, maxNodes);
     }
 }
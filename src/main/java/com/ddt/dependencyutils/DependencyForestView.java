@@ -0,0 +1,166 @@
+package com.ddt.dependencyutils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a DependencyForest which serializes and renders it in a fixed direction, returned by
+ * DependencyForest.view. The direction is held by the view and passed down each walk of the graph rather than
+ * being written to the forest or its nodes, so creating a view costs nothing and any number of threads can use
+ * views in different directions over the same forest at once. Each walk holds the forest's read lock, so it sees
+ * the forest as it was between two changes.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class DependencyForestView<K, V> {
+    private final DependencyForest<K, V> forest;
+    private final DependencyForest.SerializingScheme serializingScheme;
+
+    DependencyForestView(DependencyForest<K, V> forest, DependencyForest.SerializingScheme serializingScheme) {
+        this.forest = forest;
+        this.serializingScheme = serializingScheme;
+    }
+
+    /**
+     * @return the forest being viewed.
+     */
+    public DependencyForest<K, V> getForest() {
+        return forest;
+    }
+
+    /**
+     * @return the direction of this view.
+     */
+    public DependencyForest.SerializingScheme getSerializingScheme() {
+        return serializingScheme;
+    }
+
+    /**
+     * Returns the Dependency objects at the top of each tree in this view's direction: the roots if it is
+     * DEPENDANTS, the outermost leaves if it is DEPENDENCIES.
+     *
+     * @return the tops of the trees.
+     */
+    public List<Dependency<K, V>> getAllTrees() {
+        return serializingScheme == DependencyForest.SerializingScheme.DEPENDANTS
+                ? forest.getDependenciesWithNoDependencies() : forest.getOutermostLeafDependencies();
+    }
+
+    /**
+     * Converts the forest to JSON as DependencyForest.toJson does, nesting in this view's direction.
+     *
+     * @return the JSON.
+     */
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        } catch (IOException ioe) {
+            // A StringWriter doesn't throw.
+            throw new UncheckedIOException(ioe);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Streams the forest as JSON, as for toJson. The writer is flushed but not closed.
+     *
+     * @param writer the Writer to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(writer)) {
+            writeJson(gen);
+        }
+    }
+
+    /**
+     * Streams the forest as UTF-8 JSON, as for toJson. The stream is flushed but not closed.
+     *
+     * @param out the OutputStream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(out)) {
+            writeJson(gen);
+        }
+    }
+
+    /**
+     * Writes the forest to a generator as a JSON array of Dependency trees nested in this view's direction, or
+     * as a graph document if the forest's JSON format is GRAPH. Data keys and data are written with the forest's
+     * codecs.
+     *
+     * @param gen the generator to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(JsonGenerator gen) throws IOException {
+        forest.getLock().read(() -> {
+            write(gen);
+            return null;
+        });
+    }
+
+    private void write(JsonGenerator gen) throws IOException {
+        if (forest.getJsonFormat() == DependencyForest.JsonFormat.GRAPH) {
+            GraphJson.write(forest.getAllNodes().values(), gen, forest.getKeyCodec(), forest.getValueCodec());
+            return;
+        }
+
+        gen.writeStartArray();
+        for (Dependency<K, V> dependency : getAllTrees()) {
+            DependencySerializer.write(dependency, gen, forest.getKeyCodec(), forest.getValueCodec(),
+                    serializingScheme);
+        }
+        gen.writeEndArray();
+    }
+
+    /**
+     * Renders every tree in this view's direction, as DependencyForest.allTreesToStrings does.
+     *
+     * @return one String per tree.
+     */
+    public ArrayList<String> allTreesToStrings() {
+        return forest.getLock().read(() -> {
+            ArrayList<String> trees = new ArrayList<>();
+            for (Dependency<K, V> dependency : getAllTrees()) {
+                trees.add(dependency.renderToString(throughDependencies(), label()));
+            }
+            return trees;
+        });
+    }
+
+    /**
+     * Writes every tree in this view's direction to an Appendable, as DependencyForest.writeAllTrees does.
+     *
+     * @param out      where to write the trees.
+     * @param maxDepth the deepest level of each tree to expand. Integer.MAX_VALUE for no limit.
+     * @param maxNodes the number of Dependency objects after which each tree is cut short. Integer.MAX_VALUE for
+     *                 no limit.
+     * @throws IOException if out throws it.
+     */
+    public void writeAllTrees(Appendable out, int maxDepth, int maxNodes) throws IOException {
+        forest.getLock().read(() -> {
+            for (Dependency<K, V> dependency : getAllTrees()) {
+                dependency.renderTree(out, throughDependencies(), label(), maxDepth, maxNodes);
+            }
+            return null;
+        });
+    }
+
+    private boolean throughDependencies() {
+        return serializingScheme == DependencyForest.SerializingScheme.DEPENDENCIES;
+    }
+
+    private String label() {
+        return throughDependencies() ? " dependencies=(" : " dependants=(";
+    }
+}
@@ -0,0 +1,575 @@
+package com.ddt.dependencyutils;
+
+import com.ddt.dependencyutils.exception.CircularDependenciesException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Makes a DependencyForest durable by logging every change to it to an append-only journal, rather than
+ * rewriting the whole forest after each change. The journal lives in a directory holding at most one
+ * DependencySnapshot and the journal segments written since it was taken:
+ * <pre>
+ * snapshot-N.bin   the forest as it was before segment N was started
+ * journal-M.log    the changes made while segment M was current, one JSON array per line
+ * </pre>
+ * Opening a journal loads the snapshot, if there is one, and replays every later segment on top of it. A final
+ * line left incomplete by a crash is cut off. The forest returned by getForest() then logs each dependency added
+ * or removed, each Dependency joining it, each change of finished flag and each clear.
+ * <p>
+ * Changes are logged with group commit: the thread making a change only encodes it and adds it to a buffer. A
+ * single writer thread appends whatever has built up in the buffer to the current segment and forces it to disk
+ * with one fsync, so many changes share the cost of each fsync. sync() waits until everything logged so far is on
+ * disk.
+ * </p>
+ * <p>
+ * compact() seals the current segment and starts a new one, then in the background loads the last snapshot and
+ * the sealed segments into a separate forest, writes that as the new snapshot and deletes the files it replaces.
+ * The live forest isn't read, so changes carry on being logged while it runs.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class DependencyJournal<K, V> implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(DependencyJournal.class);
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Record types, the first element of each record.
+    private static final String NODE = "N";
+    private static final String EDGE = "E";
+    private static final String FINISHED = "F";
+    private static final String REMOVE = "R";
+    private static final String CLEAR = "C";
+
+    private final Path directory;
+    private final DependencyCodec<K> keyCodec;
+    private final DependencyCodec<V> valueCodec;
+    private final DependencyForest<K, V> forest;
+
+    // Guarded by lock.
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long durable;
+    private CompletableFuture<Long> rotation;
+    private IOException failure;
+    private boolean closed;
+
+    // Records logged by the transaction running on the forest, handed to the writer as it commits. Only used by the
+    // thread holding the forest's write lock.
+    private final List<byte[]> uncommitted = new ArrayList<>();
+
+    // Only used by the writer thread once it has started.
+    private FileChannel segment;
+    private long generation;
+
+    private final Thread writer;
+    private final ExecutorService compactor;
+
+    private DependencyJournal(Path directory, DependencyCodec<K> keyCodec, DependencyCodec<V> valueCodec)
+            throws IOException, CircularDependenciesException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        Files.createDirectories(directory);
+
+        long snapshot = latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long base = Math.max(snapshot, 0);
+        long lastSegment = latest(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        deleteBefore(base);
+        forest = load(snapshot, lastSegment, true);
+
+        generation = Math.max(base, lastSegment + 1);
+        segment = openSegment(generation);
+        forest.setJournal(this);
+
+        writer = new Thread(this::writeLoop, "dependency-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dependency-journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the journal in a directory, creating it if need be, and recovers the forest it holds.
+     *
+     * @param directory  the journal's directory.
+     * @param keyCodec   encodes data keys.
+     * @param valueCodec encodes data.
+     * @return the open journal.
+     * @throws IOException                   if the journal can't be read or is corrupt.
+     * @throws CircularDependenciesException if replaying the journal creates a cycle.
+     */
+    public static <K, V> DependencyJournal<K, V> open(Path directory, DependencyCodec<K> keyCodec,
+                                                      DependencyCodec<V> valueCodec)
+            throws IOException, CircularDependenciesException {
+        return new DependencyJournal<>(directory, keyCodec, valueCodec);
+    }
+
+    /**
+     * Opens a journal whose data keys and data are Strings.
+     *
+     * @param directory the journal's directory.
+     * @return the open journal.
+     * @throws IOException                   if the journal can't be read or is corrupt.
+     * @throws CircularDependenciesException if replaying the journal creates a cycle.
+     */
+    public static DependencyJournal<String, String> open(Path directory)
+            throws IOException, CircularDependenciesException {
+        return open(directory, DependencyCodec.strings(), DependencyCodec.strings());
+    }
+
+    /**
+     * @return the recovered DependencyForest. Changes to it are logged until the journal is closed.
+     */
+    public DependencyForest<K, V> getForest() {
+        return forest;
+    }
+
+    /**
+     * Waits until every change logged so far is on disk.
+     *
+     * @throws IOException if writing the journal has failed.
+     */
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long target = appended;
+            while (durable < target && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the journal");
+                }
+            }
+            if (failure != null) throw new IOException("Writing the journal failed", failure);
+        }
+    }
+
+    /**
+     * Seals the current segment and compacts it, with the segments and snapshot before it, into a new snapshot.
+     * Changes made meanwhile go to the next segment.
+     *
+     * @return a future completed once the new snapshot has replaced the files it covers.
+     */
+    public CompletableFuture<Void> compact() {
+        CompletableFuture<Long> sealed;
+        synchronized (lock) {
+            if (closed) return CompletableFuture.failedFuture(new IllegalStateException("Journal is closed"));
+            if (rotation == null) rotation = new CompletableFuture<>();
+            sealed = rotation;
+            lock.notifyAll();
+        }
+        return sealed.thenAcceptAsync(this::compactThrough, compactor);
+    }
+
+    /**
+     * Stops logging changes to the forest, writes out everything already logged and waits for a compaction in
+     * progress to finish.
+     *
+     * @throws IOException if writing the journal has failed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            forest.setJournal(null);
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+            compactor.shutdown();
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing the journal");
+        }
+        synchronized (lock) {
+            if (failure != null) throw new IOException("Writing the journal failed", failure);
+        }
+    }
+
+    /**
+     * Logs a Dependency joining the forest.
+     */
+    void logNode(Dependency<K, V> dependency) {
+        append(gen -> {
+            gen.writeString(NODE);
+            keyCodec.write(dependency.getDataKey(), gen);
+            valueCodec.write(dependency.getData(), gen);
+            gen.writeBoolean(dependency.isFinished());
+        });
+    }
+
+    /**
+     * Logs that dependant depends on dependency.
+     */
+    void logEdge(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        append(gen -> {
+            gen.writeString(EDGE);
+            keyCodec.write(dependant.getDataKey(), gen);
+            keyCodec.write(dependency.getDataKey(), gen);
+        });
+    }
+
+    /**
+     * Logs every dependency of each of the Dependency objects given.
+     */
+    void logEdges(Collection<Dependency<K, V>> dependants) {
+        for (Dependency<K, V> dependant : dependants) {
+            if (!dependant.hasDependencies()) continue;
+            for (Dependency<K, V> dependency : dependant.getDependencies().values()) logEdge(dependant, dependency);
+        }
+    }
+
+    void logFinished(Dependency<K, V> dependency) {
+        append(gen -> {
+            gen.writeString(FINISHED);
+            keyCodec.write(dependency.getDataKey(), gen);
+            gen.writeBoolean(dependency.isFinished());
+        });
+    }
+
+    /**
+     * Logs a Dependency being removed from the forest. Logged before the removal, as the removal logs the
+     * dependencies it grafts on in its place.
+     */
+    void logRemove(Dependency<K, V> removed) {
+        append(gen -> {
+            gen.writeString(REMOVE);
+            keyCodec.write(removed.getDataKey(), gen);
+        });
+    }
+
+    void logClear() {
+        append(gen -> gen.writeString(CLEAR));
+    }
+
+    private interface Record {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    /**
+     * Encodes a record on the calling thread and leaves it for the writer thread. A record logged by a transaction
+     * is held back until the transaction commits, and dropped if it rolls back.
+     */
+    private void append(Record record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(bytes)) {
+            gen.writeStartArray();
+            record.write(gen);
+            gen.writeEndArray();
+        } catch (IOException ioe) {
+            // Only a codec can fail when writing to memory.
+            throw new UncheckedIOException(ioe);
+        }
+        bytes.write('\n');
+
+        synchronized (lock) {
+            if (failure != null) throw new UncheckedIOException("Writing the journal failed", failure);
+            if (closed) throw new IllegalStateException("Journal is closed");
+            if (forest.getLock().inTransaction()) {
+                int size = uncommitted.size();
+                uncommitted.add(bytes.toByteArray());
+                ForestLock.undo(() -> uncommitted.subList(size, uncommitted.size()).clear());
+                return;
+            }
+            pending.writeBytes(bytes.toByteArray());
+            appended++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Hands the records logged by a transaction to the writer thread as the transaction commits. Records are
+     * dropped if the journal was closed while the transaction was running.
+     */
+    void commit() {
+        if (uncommitted.isEmpty()) return;
+        synchronized (lock) {
+            if (failure == null && !closed) {
+                for (byte[] record : uncommitted) pending.writeBytes(record);
+                appended += uncommitted.size();
+                lock.notifyAll();
+            }
+        }
+        uncommitted.clear();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            byte[] batch;
+            long batchEnd;
+            CompletableFuture<Long> rotate;
+            boolean stop;
+            synchronized (lock) {
+                while (pending.size() == 0 && rotation == null && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        closed = true;
+                    }
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                batchEnd = appended;
+                rotate = rotation;
+                rotation = null;
+                stop = closed;
+            }
+
+            try {
+                if (batch.length > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(batch);
+                    while (buffer.hasRemaining()) segment.write(buffer);
+                    segment.force(false);
+                }
+                if (rotate != null) {
+                    segment.close();
+                    long sealed = generation++;
+                    segment = openSegment(generation);
+                    rotate.complete(sealed);
+                }
+                if (stop) segment.close();
+            } catch (IOException ioe) {
+                logger.error("Writing the journal failed", ioe);
+                if (rotate != null) rotate.completeExceptionally(ioe);
+                synchronized (lock) {
+                    failure = ioe;
+                    closed = true;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                durable = batchEnd;
+                lock.notifyAll();
+            }
+            if (stop) return;
+        }
+    }
+
+    /**
+     * Replaces the snapshot and segments up to and including sealed with a new snapshot.
+     */
+    private void compactThrough(long sealed) {
+        try {
+            DependencyForest<K, V> compacted = load(latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX), sealed, false);
+            Path temporary = directory.resolve(SNAPSHOT_PREFIX + (sealed + 1) + ".tmp");
+            DependencySnapshot.write(compacted, temporary);
+            Files.move(temporary, snapshotPath(sealed + 1), StandardCopyOption.ATOMIC_MOVE);
+            deleteBefore(sealed + 1);
+        } catch (IOException | CircularDependenciesException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Loads a snapshot and replays the segments after it into a new forest.
+     *
+     * @param snapshot    the snapshot's generation, or -1 to start from an empty forest.
+     * @param lastSegment the last segment to replay.
+     * @param repair      true to cut off an incomplete final record rather than fail.
+     */
+    private DependencyForest<K, V> load(long snapshot, long lastSegment, boolean repair)
+            throws IOException, CircularDependenciesException {
+        DependencyForest<K, V> loaded;
+        if (snapshot < 0) {
+            loaded = new DependencyForest<>();
+            loaded.setKeyCodec(keyCodec);
+            loaded.setValueCodec(valueCodec);
+        } else {
+            loaded = DependencySnapshot.open(snapshotPath(snapshot), keyCodec, valueCodec).toForest();
+        }
+
+        Replay replay = new Replay(loaded);
+        for (long segment = Math.max(snapshot, 0); segment <= lastSegment; segment++) {
+            Path path = segmentPath(segment);
+            if (Files.exists(path)) replay.segment(path, repair);
+        }
+        replay.flush();
+        return loaded;
+    }
+
+    /**
+     * Applies records to a forest in order. Runs of Dependency objects and edges are added with one call to
+     * DependencyForest.addAll, so the forest is checked for cycles once per run rather than once per edge. Finished
+     * flags are set as they come, on the Dependency objects still waiting to join too, and only removals and
+     * clearing end a run.
+     */
+    private final class Replay {
+        private final DependencyForest<K, V> target;
+        private final Map<K, Dependency<K, V>> joining = new LinkedHashMap<>();
+        private final List<DependencyForest.Edge<K, V>> edges = new ArrayList<>();
+
+        private Replay(DependencyForest<K, V> target) {
+            this.target = target;
+        }
+
+        private void segment(Path path, boolean repair) throws IOException, CircularDependenciesException {
+            long complete = 0;
+            long position = 0;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+                for (int b = in.read(); b != -1; b = in.read()) {
+                    position++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    apply(line.toByteArray());
+                    line.reset();
+                    complete = position;
+                }
+            }
+
+            if (line.size() > 0) {
+                if (!repair) throw new IOException("Incomplete record at the end of " + path);
+                logger.warn("Cutting off an incomplete record at the end of {}", path);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(complete);
+                }
+            }
+        }
+
+        private void apply(byte[] record) throws IOException, CircularDependenciesException {
+            try (JsonParser jp = DependencyJson.factory().createParser(record)) {
+                if (jp.nextToken() != JsonToken.START_ARRAY || jp.nextToken() != JsonToken.VALUE_STRING) {
+                    throw new JsonParseException(jp, "Not a journal record");
+                }
+                switch (jp.getText()) {
+                    case NODE -> {
+                        K key = next(jp, keyCodec);
+                        V data = next(jp, valueCodec);
+                        jp.nextToken();
+                        boolean finished = jp.getValueAsBoolean();
+                        if (target.get(key) == null && !joining.containsKey(key)) {
+                            Dependency<K, V> dependency = new Dependency<>(key, data);
+                            dependency.setFinished(finished);
+                            joining.put(key, dependency);
+                        }
+                    }
+                    case EDGE -> edges.add(new DependencyForest.Edge<>(node(next(jp, keyCodec)),
+                            node(next(jp, keyCodec))));
+                    case FINISHED -> {
+                        // A flag needs no flush: one still joining carries it in, and addAll counts it.
+                        Dependency<K, V> dependency = node(next(jp, keyCodec));
+                        jp.nextToken();
+                        dependency.setFinished(jp.getValueAsBoolean());
+                    }
+                    case REMOVE -> {
+                        flush();
+                        target.removeDependency(node(next(jp, keyCodec)));
+                    }
+                    case CLEAR -> {
+                        flush();
+                        target.clear();
+                    }
+                    default -> throw new JsonParseException(jp, "Unknown journal record " + jp.getText());
+                }
+            }
+        }
+
+        private <T> T next(JsonParser jp, DependencyCodec<T> codec) throws IOException {
+            jp.nextToken();
+            return codec.read(jp);
+        }
+
+        private Dependency<K, V> node(K key) throws IOException {
+            Dependency<K, V> dependency = joining.get(key);
+            if (dependency == null) dependency = target.get(key);
+            if (dependency == null) throw new IOException("Journal names unknown dataKey: " + key);
+            return dependency;
+        }
+
+        private void flush() throws CircularDependenciesException {
+            if (!edges.isEmpty()) target.addAll(edges);
+            for (Dependency<K, V> dependency : joining.values()) {
+                if (dependency.getDependencyForest() != target) target.addDependency(dependency);
+            }
+            edges.clear();
+            joining.clear();
+        }
+    }
+
+    private FileChannel openSegment(long generation) throws IOException {
+        return FileChannel.open(segmentPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path snapshotPath(long generation) {
+        return directory.resolve(SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX);
+    }
+
+    private Path segmentPath(long generation) {
+        return directory.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the highest generation of the files named prefix + generation + suffix, or -1 if there are none.
+     */
+    private long latest(String prefix, String suffix) throws IOException {
+        long latest = -1;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                latest = Math.max(latest, generation(file, prefix, suffix));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Deletes the snapshots and segments made obsolete by snapshot, and any snapshot left half written. Only one
+     * compaction runs at a time, so no snapshot is being written when this is called.
+     */
+    private void deleteBefore(long snapshot) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                long segment = generation(file, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+                long older = generation(file, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+                boolean temporary = generation(file, SNAPSHOT_PREFIX, ".tmp") >= 0;
+                if ((segment >= 0 && segment < snapshot) || (older >= 0 && older < snapshot) || temporary) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static long generation(Path file, String prefix, String suffix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.ddt.dependencyutils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import java.util.Collection;
+
+/**
+ * The ObjectMapper shared by every Dependency and DependencyForest for reading and writing JSON. An ObjectMapper
+ * is expensive to build but thread-safe once configured, so one is built here, with DependencySerializer and
+ * DependencyDeserializer registered, and used everywhere.
+ * <p>
+ * Generators and parsers created from it leave the Writer, OutputStream, Reader or InputStream they wrap open.
+ * Closing those is up to whoever opened them.
+ * </p>
+ */
+final class DependencyJson {
+    /**
+     * Deserialization attributes naming the codecs for data keys and data.
+     */
+    static final String KEY_CODEC = "com.ddt.dependencyutils.keyCodec";
+    static final String VALUE_CODEC = "com.ddt.dependencyutils.valueCodec";
+
+    private static final ObjectMapper mapper = createMapper();
+    private static final ObjectReader collectionReader = mapper.readerFor(Collection.class);
+
+    private DependencyJson() {
+    }
+
+    private static ObjectMapper createMapper() {
+        SimpleModule module = new SimpleModule();
+        module.addSerializer(Dependency.class, new DependencySerializer());
+        module.addDeserializer(Collection.class, new DependencyDeserializer());
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(module);
+        objectMapper.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        objectMapper.getFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+        // DependencyDeserializer doesn't recurse, so trees may nest as deeply as they like.
+        objectMapper.getFactory().setStreamReadConstraints(
+                StreamReadConstraints.builder().maxNestingDepth(Integer.MAX_VALUE).build());
+        return objectMapper;
+    }
+
+    static ObjectMapper mapper() {
+        return mapper;
+    }
+
+    static JsonFactory factory() {
+        return mapper.getFactory();
+    }
+
+    /**
+     * @return a reader which reads Dependency trees into a Collection of their top level Dependency objects.
+     */
+    static ObjectReader collectionReader() {
+        return collectionReader;
+    }
+
+    /**
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return a reader as for collectionReader(), reading data keys and data with the codecs given.
+     */
+    static ObjectReader collectionReader(DependencyCodec<?> keyCodec, DependencyCodec<?> valueCodec) {
+        return collectionReader.withAttribute(KEY_CODEC, keyCodec).withAttribute(VALUE_CODEC, valueCodec);
+    }
+
+    /**
+     * @return the codec held in a deserialization attribute, or Codecs.TEXT if there is none.
+     */
+    static DependencyCodec<?> codec(DeserializationContext ctxt, String attribute) {
+        Object codec = ctxt.getAttribute(attribute);
+        return codec == null ? Codecs.TEXT : (DependencyCodec<?>) codec;
+    }
+}
@@ -7,7 +7,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
 
+/**
+ * Writes a Dependency and, in the direction of its serializing scheme, the tree below it. The tree
+ * is walked with an explicit stack rather than by Jackson calling back into this serializer for every nested
+ * Dependency, so its depth is not limited by the call stack.
+ */
 public class DependencySerializer
         extends JsonSerializer<Dependency> {
     public final static Logger logger = LoggerFactory.getLogger(DependencySerializer.class);
@@ -18,49 +27,98 @@ public class DependencySerializer
     @Override
     public void serialize(Dependency dependency, JsonGenerator gen, SerializerProvider serializers)
             throws IOException {
+        write(dependency, gen, Codecs.TEXT, Codecs.TEXT);
+    }
+
+    /**
+     * Writes a Dependency tree straight to a generator. Nothing is asked of the generator's codec, so any
+     * generator will do.
+     *
+     * @param dependency the top of the tree.
+     * @param gen        the generator to write to.
+     * @param keyCodec   writes each data key.
+     * @param valueCodec writes each Dependency's data.
+     * @throws IOException if writing fails.
+     */
+    static <K, V> void write(Dependency<K, V> dependency, JsonGenerator gen, DependencyCodec<? super K> keyCodec,
+                             DependencyCodec<? super V> valueCodec) throws IOException {
+        write(dependency, gen, keyCodec, valueCodec, dependency.getSerializingScheme());
+    }
+
+    /**
+     * Writes a Dependency tree straight to a generator, nesting every Dependency in the direction given rather
+     * than the one of its serializing scheme. Nothing is written to the Dependency objects, so trees can be
+     * written in both directions at once.
+     *
+     * @param dependency        the top of the tree.
+     * @param gen               the generator to write to.
+     * @param keyCodec          writes each data key.
+     * @param valueCodec        writes each Dependency's data.
+     * @param serializingScheme the direction in which to nest, or null to write the top Dependency alone.
+     * @throws IOException if writing fails.
+     */
+    static <K, V> void write(Dependency<K, V> dependency, JsonGenerator gen, DependencyCodec<? super K> keyCodec,
+                             DependencyCodec<? super V> valueCodec,
+                             DependencyForest.SerializingScheme serializingScheme) throws IOException {
+        // Each entry iterates over the children still to be written inside an open array.
+        Deque<Iterator<Dependency<K, V>>> stack = new ArrayDeque<>();
+        Iterator<Dependency<K, V>> children = writeStart(dependency, gen, keyCodec, valueCodec, serializingScheme);
+        if (children != null) stack.push(children);
+
+        while (!stack.isEmpty()) {
+            Iterator<Dependency<K, V>> top = stack.peek();
+            if (top.hasNext()) {
+                Iterator<Dependency<K, V>> next = writeStart(top.next(), gen, keyCodec, valueCodec, serializingScheme);
+                if (next != null) stack.push(next);
+                continue;
+            }
+            stack.pop();
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes a Dependency's fields and opens the array of its children.
+     *
+     * @return an Iterator over the children to write, or null if the Dependency has been closed already because
+     * there are none.
+     */
+    private static <K, V> Iterator<Dependency<K, V>> writeStart(Dependency<K, V> dependency, JsonGenerator gen,
+                                                                DependencyCodec<? super K> keyCodec,
+                                                                DependencyCodec<? super V> valueCodec,
+                                                                DependencyForest.SerializingScheme serializingScheme)
+            throws IOException {
         gen.writeStartObject();
-        gen.writeStringField("dataKey", dependency.getDataKey().toString());
-        gen.writeStringField("data", dependency.getData().toString());
-        gen.writeBooleanField("finished",dependency.isFinished());
+        gen.writeFieldName("dataKey");
+        keyCodec.write(dependency.getDataKey(), gen);
+        gen.writeFieldName("data");
+        valueCodec.write(dependency.getData(), gen);
+        gen.writeBooleanField("finished", dependency.isFinished());
         // Add other fields you want to include in the JSON output
 
-        switch (dependency.getSerializingScheme()) {
+        if (serializingScheme == null) {
+            gen.writeEndObject();
+            return null;
+        }
+
+        Map<K, Dependency<K, V>> children = switch (serializingScheme) {
             case DEPENDENCIES -> {
                 gen.writeArrayFieldStart("dependencies");
-                if (!dependency.hasDependencies()) {
-                    gen.writeObject(null);
-                    gen.writeEndArray();
-                    break;
-                }
-                dependency.getDependencies().values().forEach(val -> {
-                    try {
-                        gen.writeObject(val);
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
-                    }
-                });
-                gen.writeEndArray();
+                yield dependency.hasDependencies() ? dependency.getDependencies() : null;
             }
             case DEPENDANTS -> {
                 gen.writeArrayFieldStart("dependants");
-                if (!dependency.hasDependants()) {
-                    gen.writeObject(null);
-                    gen.writeEndArray();
-                    break;
-                }
-
-                dependency.getDependants().values().forEach(val -> {
-                    try {
-                        gen.writeObject(val);
-                    } catch (IOException ioe) {
-                        ioe.printStackTrace();
-                    }
-                });
-
-                gen.writeEndArray();
+                yield dependency.hasDependants() ? dependency.getDependants() : null;
             }
-        }
+        };
 
-        gen.writeEndObject();
+        if (children == null) {
+            gen.writeNull();
+            gen.writeEndArray();
+            gen.writeEndObject();
+            return null;
+        }
+        return children.values().iterator();
     }
 }
@@ -0,0 +1,438 @@
+package com.ddt.dependencyutils;
+
+import com.ddt.dependencyutils.exception.CircularDependenciesException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A binary snapshot of a DependencyForest, opened by memory-mapping the file rather than parsing it. Each
+ * Dependency is given a node number, its position in the key table, and every edge is stored as a pair of node
+ * numbers in compressed sparse row (CSR) form, once for dependencies and once for dependants, so the neighbours of
+ * a node are a contiguous run of ints which can be read without touching the rest of the file. Finished flags are
+ * a bitmap. Data keys and data are encoded with the forest's codecs and kept in blobs, decoded only when asked
+ * for.
+ * <p>
+ * The file is a fixed size header followed by its sections:
+ * </p>
+ * <pre>
+ * header        magic, version, node count, edge count, serializing scheme, JSON format, then the offset and
+ *               length in bytes of each section
+ * KEYS          the encoded data keys, back to back
+ * KEY_OFFSETS   int[nodes + 1], where node i's key is KEYS[KEY_OFFSETS[i], KEY_OFFSETS[i + 1])
+ * DATA          the encoded data, back to back
+ * DATA_OFFSETS  int[nodes + 1], as for KEY_OFFSETS
+ * FINISHED      long[(nodes + 63) / 64], bit i set if node i is finished
+ * DEPENDENCY_ROWS, DEPENDENCIES   int[nodes + 1] and int[edges]: node i depends on
+ *                                 DEPENDENCIES[DEPENDENCY_ROWS[i], DEPENDENCY_ROWS[i + 1])
+ * DEPENDANT_ROWS, DEPENDANTS      the same for dependants
+ * </pre>
+ * Every section is mapped separately, so each is limited to 2GB. Reading from an open snapshot is thread-safe.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class DependencySnapshot<K, V> {
+    private static final int MAGIC = 0x44464f52; // "DFOR"
+    private static final int VERSION = 1;
+
+    private enum Section {KEYS, KEY_OFFSETS, DATA, DATA_OFFSETS, FINISHED, DEPENDENCY_ROWS, DEPENDENCIES,
+        DEPENDANT_ROWS, DEPENDANTS}
+
+    private static final int HEADER_SIZE = 24 + 16 * Section.values().length;
+
+    private final int nodeCount;
+    private final int edgeCount;
+    private final DependencyForest.SerializingScheme serializingScheme;
+    private final DependencyForest.JsonFormat jsonFormat;
+    private final DependencyCodec<K> keyCodec;
+    private final DependencyCodec<V> valueCodec;
+    private final MappedByteBuffer keys;
+    private final IntBuffer keyOffsets;
+    private final MappedByteBuffer data;
+    private final IntBuffer dataOffsets;
+    private final LongBuffer finished;
+    private final IntBuffer dependencyRows;
+    private final IntBuffer dependencies;
+    private final IntBuffer dependantRows;
+    private final IntBuffer dependants;
+    private volatile Map<K, Integer> nodesByKey;
+
+    private DependencySnapshot(FileChannel channel, ByteBuffer header, DependencyCodec<K> keyCodec,
+                               DependencyCodec<V> valueCodec) throws IOException {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        nodeCount = header.getInt(8);
+        edgeCount = header.getInt(12);
+        serializingScheme = DependencyForest.SerializingScheme.values()[header.get(16)];
+        jsonFormat = DependencyForest.JsonFormat.values()[header.get(17)];
+
+        MappedByteBuffer[] sections = new MappedByteBuffer[Section.values().length];
+        for (Section section : Section.values()) {
+            long offset = header.getLong(24 + 16 * section.ordinal());
+            long length = header.getLong(32 + 16 * section.ordinal());
+            if (offset < HEADER_SIZE || length < 0 || length > Integer.MAX_VALUE
+                    || offset + length > channel.size()) {
+                throw new IOException("Corrupt snapshot: section " + section + " is out of bounds");
+            }
+            sections[section.ordinal()] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        keys = sections[Section.KEYS.ordinal()];
+        keyOffsets = sections[Section.KEY_OFFSETS.ordinal()].asIntBuffer();
+        data = sections[Section.DATA.ordinal()];
+        dataOffsets = sections[Section.DATA_OFFSETS.ordinal()].asIntBuffer();
+        finished = sections[Section.FINISHED.ordinal()].asLongBuffer();
+        dependencyRows = sections[Section.DEPENDENCY_ROWS.ordinal()].asIntBuffer();
+        dependencies = sections[Section.DEPENDENCIES.ordinal()].asIntBuffer();
+        dependantRows = sections[Section.DEPENDANT_ROWS.ordinal()].asIntBuffer();
+        dependants = sections[Section.DEPENDANTS.ordinal()].asIntBuffer();
+
+        if (keyOffsets.limit() != nodeCount + 1 || dataOffsets.limit() != nodeCount + 1
+                || dependencyRows.limit() != nodeCount + 1 || dependantRows.limit() != nodeCount + 1
+                || dependencies.limit() != edgeCount || dependants.limit() != edgeCount
+                || finished.limit() != (nodeCount + 63) / 64) {
+            throw new IOException("Corrupt snapshot: section sizes don't match the header");
+        }
+    }
+
+    /**
+     * Writes a snapshot of a DependencyForest, encoding data keys and data with the forest's codecs. The forest's
+     * read lock is held while it is written, so changes to it wait until the snapshot is complete.
+     *
+     * @param forest the forest to write.
+     * @param path   the file to write, replaced if it exists.
+     * @throws IOException if writing fails.
+     */
+    public static <K, V> void write(DependencyForest<K, V> forest, Path path) throws IOException {
+        forest.getLock().read(() -> {
+            writeUnlocked(forest, path);
+            return null;
+        });
+    }
+
+    private static <K, V> void writeUnlocked(DependencyForest<K, V> forest, Path path) throws IOException {
+        List<Dependency<K, V>> nodes = new ArrayList<>(forest.getAllNodes().values());
+        int n = nodes.size();
+        Map<K, Integer> ids = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) ids.put(nodes.get(i).getDataKey(), i);
+
+        // Dependencies in CSR form, then dependants by counting the dependencies of each node.
+        int[] dependencyRows = new int[n + 1];
+        IntList dependencyList = new IntList();
+        for (int i = 0; i < n; i++) {
+            Dependency<K, V> node = nodes.get(i);
+            if (node.hasDependencies()) {
+                for (K key : node.getDependencies().keySet()) {
+                    Integer id = ids.get(key);
+                    if (id != null) dependencyList.add(id);
+                }
+            }
+            dependencyRows[i + 1] = dependencyList.size;
+        }
+        int[] dependencyTargets = dependencyList.toArray();
+
+        int[] dependantRows = new int[n + 1];
+        for (int target : dependencyTargets) dependantRows[target + 1]++;
+        for (int i = 0; i < n; i++) dependantRows[i + 1] += dependantRows[i];
+        int[] dependantTargets = new int[dependencyTargets.length];
+        int[] fill = Arrays.copyOf(dependantRows, n);
+        for (int i = 0; i < n; i++) {
+            for (int e = dependencyRows[i]; e < dependencyRows[i + 1]; e++) {
+                dependantTargets[fill[dependencyTargets[e]]++] = i;
+            }
+        }
+
+        long[] finishedBits = new long[(n + 63) / 64];
+        for (int i = 0; i < n; i++) {
+            if (nodes.get(i).isFinished()) finishedBits[i >>> 6] |= 1L << i;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            SectionWriter out = new SectionWriter(channel);
+
+            int[] keyOffsets = out.blob(Section.KEYS, nodes, Dependency::getDataKey, forest.getKeyCodec());
+            out.ints(Section.KEY_OFFSETS, keyOffsets);
+            int[] dataOffsets = out.blob(Section.DATA, nodes, Dependency::getData, forest.getValueCodec());
+            out.ints(Section.DATA_OFFSETS, dataOffsets);
+            out.begin(Section.FINISHED);
+            for (long word : finishedBits) out.stream.writeLong(word);
+            out.end(Section.FINISHED, 8L * finishedBits.length);
+            out.ints(Section.DEPENDENCY_ROWS, dependencyRows);
+            out.ints(Section.DEPENDENCIES, dependencyTargets);
+            out.ints(Section.DEPENDANT_ROWS, dependantRows);
+            out.ints(Section.DEPENDANTS, dependantTargets);
+            out.stream.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(dependencyTargets.length);
+            header.put((byte) forest.getSerializingScheme().ordinal()).put((byte) forest.getJsonFormat().ordinal());
+            header.position(24);
+            for (Section section : Section.values()) {
+                header.putLong(out.offsets[section.ordinal()]).putLong(out.lengths[section.ordinal()]);
+            }
+            header.flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Opens a snapshot whose data keys and data are Strings.
+     *
+     * @param path the snapshot file.
+     * @return the snapshot, mapped into memory.
+     * @throws IOException if the file can't be read or isn't a snapshot.
+     */
+    public static DependencySnapshot<String, String> open(Path path) throws IOException {
+        return open(path, DependencyCodec.strings(), DependencyCodec.strings());
+    }
+
+    /**
+     * Opens a snapshot by mapping it into memory. Nothing is decoded until it is asked for, so opening takes the
+     * same time however large the snapshot is.
+     *
+     * @param path       the snapshot file.
+     * @param keyCodec   decodes data keys.
+     * @param valueCodec decodes data.
+     * @return the snapshot, mapped into memory.
+     * @throws IOException if the file can't be read or isn't a snapshot.
+     */
+    public static <K, V> DependencySnapshot<K, V> open(Path path, DependencyCodec<K> keyCodec,
+                                                       DependencyCodec<V> valueCodec) throws IOException {
+        // The mappings stay valid once the channel is closed.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) break;
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a DependencyForest snapshot: " + path);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported snapshot version " + header.getInt(4) + ": " + path);
+            }
+            return new DependencySnapshot<>(channel, header, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * @return the number of Dependency objects in the snapshot.
+     */
+    public int size() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the number of edges in the snapshot.
+     */
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    public DependencyForest.SerializingScheme getSerializingScheme() {
+        return serializingScheme;
+    }
+
+    public DependencyForest.JsonFormat getJsonFormat() {
+        return jsonFormat;
+    }
+
+    /**
+     * @param node a node number, from 0 to size() - 1.
+     * @return the node's data key.
+     * @throws IOException if the key can't be decoded.
+     */
+    public K key(int node) throws IOException {
+        return decode(keys, keyOffsets, node, keyCodec);
+    }
+
+    /**
+     * @param node a node number, from 0 to size() - 1.
+     * @return the node's data.
+     * @throws IOException if the data can't be decoded.
+     */
+    public V data(int node) throws IOException {
+        return decode(data, dataOffsets, node, valueCodec);
+    }
+
+    /**
+     * @param node a node number, from 0 to size() - 1.
+     * @return true if the node is finished.
+     */
+    public boolean isFinished(int node) {
+        Objects.checkIndex(node, nodeCount);
+        return (finished.get(node >>> 6) & (1L << node)) != 0;
+    }
+
+    /**
+     * @param node a node number, from 0 to size() - 1.
+     * @return the node numbers of the node's dependencies.
+     */
+    public int[] dependencies(int node) {
+        return row(dependencyRows, dependencies, node);
+    }
+
+    /**
+     * @param node a node number, from 0 to size() - 1.
+     * @return the node numbers of the node's dependants.
+     */
+    public int[] dependants(int node) {
+        return row(dependantRows, dependants, node);
+    }
+
+    /**
+     * Finds a node by its data key. The first call decodes every key to build an index.
+     *
+     * @param key the data key.
+     * @return the node number, or -1 if there is no such key.
+     * @throws IOException if the keys can't be decoded.
+     */
+    public int indexOf(K key) throws IOException {
+        Map<K, Integer> index = nodesByKey;
+        if (index == null) {
+            index = new HashMap<>(nodeCount * 2);
+            for (int i = 0; i < nodeCount; i++) index.put(key(i), i);
+            nodesByKey = index;
+        }
+        return index.getOrDefault(key, -1);
+    }
+
+    /**
+     * Decodes the whole snapshot into a new DependencyForest, with the serializing scheme, JSON format and codecs
+     * it was written with. The edges are added as one batch, so the forest is checked for cycles once.
+     *
+     * @return a new DependencyForest holding every Dependency in the snapshot.
+     * @throws IOException                   if a key or data can't be decoded.
+     * @throws CircularDependenciesException if the snapshot's edges contain a cycle.
+     */
+    public DependencyForest<K, V> toForest() throws IOException, CircularDependenciesException {
+        List<Dependency<K, V>> nodes = new ArrayList<>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            Dependency<K, V> dependency = new Dependency<>(key(i), data(i));
+            dependency.setFinished(isFinished(i));
+            nodes.add(dependency);
+        }
+        List<DependencyForest.Edge<K, V>> edges = new ArrayList<>(edgeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            for (int e = dependencyRows.get(i); e < dependencyRows.get(i + 1); e++) {
+                edges.add(new DependencyForest.Edge<>(nodes.get(i), nodes.get(dependencies.get(e))));
+            }
+        }
+
+        DependencyForest<K, V> forest = new DependencyForest<>(serializingScheme);
+        forest.setJsonFormat(jsonFormat);
+        forest.setKeyCodec(keyCodec);
+        forest.setValueCodec(valueCodec);
+        forest.addAll(edges);
+        for (Dependency<K, V> node : nodes) {
+            if (node.getDependencyForest() != forest) forest.addDependency(node);
+        }
+        return forest;
+    }
+
+    private int[] row(IntBuffer rows, IntBuffer targets, int node) {
+        Objects.checkIndex(node, nodeCount);
+        int start = rows.get(node);
+        int[] row = new int[rows.get(node + 1) - start];
+        targets.get(start, row);
+        return row;
+    }
+
+    private static <T> T decode(ByteBuffer blob, IntBuffer offsets, int node, DependencyCodec<T> codec)
+            throws IOException {
+        int start = offsets.get(node);
+        byte[] bytes = new byte[offsets.get(node + 1) - start];
+        blob.get(start, bytes);
+        try (JsonParser jp = DependencyJson.factory().createParser(bytes)) {
+            jp.nextToken();
+            return codec.read(jp);
+        }
+    }
+
+    /**
+     * Writes sections one after another, keeping track of where each starts and how long it is.
+     */
+    private static final class SectionWriter {
+        private final DataOutputStream stream;
+        private final long[] offsets = new long[Section.values().length];
+        private final long[] lengths = new long[Section.values().length];
+        private long position = HEADER_SIZE;
+
+        private SectionWriter(FileChannel channel) {
+            stream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        }
+
+        private void begin(Section section) {
+            offsets[section.ordinal()] = position;
+        }
+
+        private void end(Section section, long length) {
+            lengths[section.ordinal()] = length;
+            position += length;
+        }
+
+        private void ints(Section section, int[] values) throws IOException {
+            begin(section);
+            for (int value : values) stream.writeInt(value);
+            end(section, 4L * values.length);
+        }
+
+        /**
+         * Writes one encoded value per node.
+         *
+         * @return the offsets of each value within the section, followed by the section's length.
+         */
+        private <K, V, T> int[] blob(Section section, List<Dependency<K, V>> nodes,
+                                     Function<Dependency<K, V>, T> value,
+                                     DependencyCodec<? super T> codec) throws IOException {
+            begin(section);
+            int[] offsets = new int[nodes.size() + 1];
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long length = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                buffer.reset();
+                try (JsonGenerator gen = DependencyJson.factory().createGenerator(buffer)) {
+                    codec.write(value.apply(nodes.get(i)), gen);
+                }
+                buffer.writeTo(stream);
+                length += buffer.size();
+                if (length > Integer.MAX_VALUE) throw new IOException("Section " + section + " exceeds 2GB");
+                offsets[i + 1] = (int) length;
+            }
+            end(section, length);
+            return offsets;
+        }
+    }
+
+    /**
+     * A growable int array.
+     */
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
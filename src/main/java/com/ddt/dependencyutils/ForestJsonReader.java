@@ -0,0 +1,116 @@
+package com.ddt.dependencyutils;
+
+import com.ddt.dependencyutils.exception.CircularDependenciesException;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reads JSON in either format straight into a new DependencyForest. Every Dependency is interned by data key as it
+ * is read, so a Dependency repeated throughout a nested export becomes a single object and each edge is recorded
+ * once, between the canonical objects at either end. Edges are not validated one by one as they are read; the
+ * whole batch is handed to DependencyForest.addAll, which checks it for cycles once.
+ * <p>
+ * The first appearance of a data key supplies its data and finished flag.
+ * </p>
+ */
+class ForestJsonReader<K, V> implements DependencyDeserializer.TreeBuilder<K, V> {
+    private final DependencyCodec<K> keyCodec;
+    private final DependencyCodec<V> valueCodec;
+    private final Map<K, Dependency<K, V>> interned = new LinkedHashMap<>();
+    private final Set<DependencyForest.Edge<K, V>> edges = new LinkedHashSet<>();
+    private boolean nestedThroughDependencies = false;
+    private boolean nestedThroughDependants = false;
+    private boolean graph = false;
+
+    /**
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     */
+    ForestJsonReader(DependencyCodec<K> keyCodec, DependencyCodec<V> valueCodec) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * @param jp a parser positioned before the start of the document.
+     * @return a forest holding every Dependency read.
+     * @throws IOException                   if the JSON can't be read.
+     * @throws CircularDependenciesException listing every edge which lies on a cycle.
+     */
+    DependencyForest<K, V> read(JsonParser jp) throws IOException, CircularDependenciesException {
+        JsonToken token = jp.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            for (token = jp.nextToken(); token != JsonToken.END_ARRAY; token = jp.nextToken()) {
+                if (token == JsonToken.START_OBJECT) {
+                    DependencyDeserializer.parseSingleTree(jp, this, keyCodec, valueCodec);
+                } else {
+                    jp.skipChildren();
+                }
+            }
+        } else if (token == JsonToken.START_OBJECT) {
+            token = jp.nextToken();
+            if (token == JsonToken.FIELD_NAME && GraphJson.isGraphField(jp.currentName())) {
+                readGraph(jp);
+            } else {
+                DependencyDeserializer.parseSingleTree(jp, this, keyCodec, valueCodec);
+            }
+        } else if (token != null) {
+            throw new JsonParseException(jp, "Expected a Dependency tree, an array of them or a graph document");
+        }
+
+        DependencyForest<K, V> forest = new DependencyForest<>(
+                nestedThroughDependencies && !nestedThroughDependants
+                        ? DependencyForest.SerializingScheme.DEPENDENCIES
+                        : DependencyForest.SerializingScheme.DEPENDANTS);
+        if (graph) forest.setJsonFormat(DependencyForest.JsonFormat.GRAPH);
+        forest.setKeyCodec(keyCodec);
+        forest.setValueCodec(valueCodec);
+
+        forest.addAll(edges);
+        for (Dependency<K, V> node : interned.values()) {
+            if (node.getDependencyForest() != forest) forest.addDependency(node);
+        }
+        return forest;
+    }
+
+    @Override
+    public Dependency<K, V> build(K dataKey, V data, boolean finished, List<Dependency<K, V>> dependencies,
+                                  List<Dependency<K, V>> dependants) {
+        Dependency<K, V> node = intern(dataKey, data, finished);
+        for (Dependency<K, V> dependency : dependencies) {
+            edges.add(new DependencyForest.Edge<>(node, dependency));
+        }
+        for (Dependency<K, V> dependant : dependants) {
+            edges.add(new DependencyForest.Edge<>(dependant, node));
+        }
+        nestedThroughDependencies |= !dependencies.isEmpty();
+        nestedThroughDependants |= !dependants.isEmpty();
+        return node;
+    }
+
+    private Dependency<K, V> intern(K dataKey, V data, boolean finished) {
+        return interned.computeIfAbsent(dataKey, key -> {
+            Dependency<K, V> dependency = new Dependency<>(key, data);
+            dependency.setFinished(finished);
+            return dependency;
+        });
+    }
+
+    private void readGraph(JsonParser jp) throws IOException {
+        graph = true;
+        try {
+            GraphJson.Document<K, V> document = GraphJson.readDocument(jp, keyCodec, valueCodec);
+            interned.putAll(document.nodes());
+            for (GraphJson.Link<K> link : document.links()) {
+                edges.add(new DependencyForest.Edge<>(document.node(link.dependant()),
+                        document.node(link.dependency())));
+            }
+        } catch (IllegalArgumentException iae) {
+            throw new JsonParseException(jp, iae.getMessage());
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.ddt.dependencyutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * The concurrency model of a DependencyForest.
+ * <p>
+ * Changes to the shape of the graph (adding and removing dependencies, nodes joining and leaving, clearing) are
+ * transactions run under the write lock of a StampedLock, so validating a new dependency and wiring in both of its
+ * sides happen together and no other writer can slip a cycle in between. Queries run optimistically: they read
+ * without locking and are only re-run under the read lock if a transaction committed while they were running.
+ * </p>
+ * <p>
+ * Changes which leave the shape alone, such as finished flags, run under the read lock, so they go ahead in
+ * parallel with each other and with queries, and are kept apart from each other by a lock striped by data key.
+ * A change touching several Dependency objects takes their stripes in index order, so it can't deadlock with
+ * another.
+ * </p>
+ * <p>
+ * There is one write lock per forest, not one per node: only one transaction changes the shape of a forest at a
+ * time, however far apart the Dependency objects it touches are. Validating a new dependency walks all the
+ * ancestors of one end, so a lock covering less than the whole forest couldn't keep a cycle out. Writers to the
+ * same forest therefore don't scale with cores; queries and finished flags, which make up most of a typical load,
+ * do. A change joining two forests holds both write locks, taken in order of identity hash.
+ * </p>
+ * <p>
+ * The write lock is reentrant for the thread holding it, so a transaction can call other locked methods. Nothing
+ * may be changed while only holding the read lock, as a read lock can't be upgraded.
+ * </p>
+ * <p>
+ * A transaction is all or nothing. Each change it makes to the graph, or to the journal and versions following it,
+ * records how to take itself back with undo, and if the transaction throws the changes are taken back in reverse
+ * order before the exception reaches the caller. A nested transaction which throws only takes back its own
+ * changes, so a caller which catches the exception carries on from where the nested transaction began. Finished
+ * flags are not part of a transaction.
+ * </p>
+ */
+final class ForestLock {
+    private static final int STRIPES = 64;
+    // Orders two forests whose identity hashes are equal.
+    private static final Object TIE = new Object();
+
+    private final StampedLock structure = new StampedLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private volatile Thread writer;
+    private volatile Runnable onCommit;
+
+    // The changes made by the transactions running on each thread, whichever forests they lock.
+    private static final ThreadLocal<UndoLog> UNDO_LOG = ThreadLocal.withInitial(UndoLog::new);
+
+    /**
+     * A unit of work run under the lock.
+     *
+     * @param <T> the result type
+     * @param <E> the checked exception it may throw
+     */
+    interface Transaction<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    ForestLock() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Runs a transaction changing the shape of the graph, excluding every other transaction and reader.
+     *
+     * @param transaction the transaction.
+     * @return the transaction's result.
+     * @throws E if the transaction throws it, once whatever it changed has been changed back.
+     */
+    <T, E extends Exception> T write(Transaction<T, E> transaction) throws E {
+        if (writer == Thread.currentThread()) return undoable(transaction);
+
+        long stamp = structure.writeLock();
+        writer = Thread.currentThread();
+        try {
+            return undoable(transaction);
+        } finally {
+            try {
+                Runnable onCommit = this.onCommit;
+                if (onCommit != null) onCommit.run();
+            } finally {
+                writer = null;
+                structure.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Runs a transaction under the write locks of two forests, either of which may be null or both the same. The
+     * locks are taken in order of identity hash, so two threads locking the same pair can't deadlock.
+     *
+     * @param a           a lock, or null.
+     * @param b           another lock, or null.
+     * @param transaction the transaction.
+     * @return the transaction's result.
+     * @throws E if the transaction throws it.
+     */
+    static <T, E extends Exception> T write(ForestLock a, ForestLock b, Transaction<T, E> transaction) throws E {
+        if (a == b || b == null) return a == null ? transaction.run() : a.write(transaction);
+        if (a == null) return b.write(transaction);
+
+        int ha = System.identityHashCode(a);
+        int hb = System.identityHashCode(b);
+        if (ha == hb) {
+            synchronized (TIE) {
+                return a.write(() -> b.write(transaction));
+            }
+        }
+        ForestLock first = ha < hb ? a : b;
+        ForestLock second = first == a ? b : a;
+        return first.write(() -> second.write(transaction));
+    }
+
+    /**
+     * Runs a transaction, taking back the changes it recorded if it throws.
+     */
+    private static <T, E extends Exception> T undoable(Transaction<T, E> transaction) throws E {
+        UndoLog log = UNDO_LOG.get();
+        int mark = log.actions.size();
+        log.depth++;
+        try {
+            T result = transaction.run();
+            if (log.depth == 1) log.actions.clear();
+            return result;
+        } catch (Throwable t) {
+            log.rollBack(mark, t);
+            throw t;
+        } finally {
+            log.depth--;
+        }
+    }
+
+    /**
+     * Records how to take back a change just made by the transaction running on the calling thread. Does nothing
+     * outside a transaction, or while a transaction is being rolled back.
+     *
+     * @param action changes the graph back, given that every change made after it has been taken back already.
+     */
+    static void undo(Runnable action) {
+        UndoLog log = UNDO_LOG.get();
+        if (log.depth > 0 && !log.rollingBack) log.actions.add(action);
+    }
+
+    /**
+     * The changes made by the transactions running on one thread, oldest first.
+     */
+    private static final class UndoLog {
+        private final List<Runnable> actions = new ArrayList<>();
+        private int depth;
+        private boolean rollingBack;
+
+        /**
+         * Takes back every change recorded after mark, newest first. An action which fails is skipped and its
+         * exception added to the one which caused the rollback.
+         */
+        void rollBack(int mark, Throwable cause) {
+            boolean nested = rollingBack;
+            rollingBack = true;
+            try {
+                while (actions.size() > mark) {
+                    Runnable action = actions.remove(actions.size() - 1);
+                    try {
+                        action.run();
+                    } catch (RuntimeException | Error e) {
+                        cause.addSuppressed(e);
+                    }
+                }
+            } finally {
+                rollingBack = nested;
+            }
+        }
+    }
+
+    /**
+     * @return true if the calling thread is running a transaction.
+     */
+    boolean inTransaction() {
+        return writer == Thread.currentThread();
+    }
+
+    /**
+     * @param onCommit run as each outermost transaction commits, before the write lock is released, or null.
+     */
+    void onCommit(Runnable onCommit) {
+        this.onCommit = onCommit;
+    }
+
+    /**
+     * Runs work which must see a graph whose shape doesn't change while it runs, e.g. a change to finished flags
+     * or a long walk of the graph.
+     *
+     * @param transaction the work.
+     * @return the work's result.
+     * @throws E if the work throws it.
+     */
+    <T, E extends Exception> T read(Transaction<T, E> transaction) throws E {
+        if (writer == Thread.currentThread()) return transaction.run();
+
+        long stamp = structure.readLock();
+        try {
+            return transaction.run();
+        } finally {
+            structure.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Runs a query without locking, re-running it under the read lock if a transaction committed in the meantime
+     * or if the query tripped over a change in progress. The query must not change anything.
+     *
+     * @param query the query.
+     * @return the query's result, as of a moment when no transaction was running.
+     */
+    <T> T optimisticRead(Supplier<T> query) {
+        if (writer == Thread.currentThread()) return query.get();
+
+        long stamp = structure.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = query.get();
+                if (structure.validate(stamp)) return result;
+            } catch (RuntimeException e) {
+                // Read half way through a transaction. The result is discarded either way.
+            }
+        }
+
+        stamp = structure.readLock();
+        try {
+            return query.get();
+        } finally {
+            structure.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Locks the stripes of the data keys of the Dependency objects given, in index order.
+     *
+     * @param dependency a Dependency to lock.
+     * @param others     more Dependency objects to lock, or null.
+     * @return the stripes locked, to be passed to unlock.
+     */
+    int[] lock(Dependency<?, ?> dependency, Collection<? extends Dependency<?, ?>> others) {
+        int[] indexes = new int[1 + (others == null ? 0 : others.size())];
+        int n = 0;
+        indexes[n++] = stripe(dependency.getDataKey());
+        if (others != null) {
+            for (Dependency<?, ?> other : others) {
+                if (n == indexes.length) break;
+                indexes[n++] = stripe(other.getDataKey());
+            }
+        }
+        indexes = Arrays.stream(indexes, 0, n).sorted().distinct().toArray();
+        for (int index : indexes) stripes[index].lock();
+        return indexes;
+    }
+
+    /**
+     * @param indexes the stripes returned by lock.
+     */
+    void unlock(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) stripes[indexes[i]].unlock();
+    }
+
+    private static int stripe(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
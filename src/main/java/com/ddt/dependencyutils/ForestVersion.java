@@ -0,0 +1,341 @@
+package com.ddt.dependencyutils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable version of a DependencyForest, returned by DependencyForest.snapshot. Nodes are identified by data
+ * key, and each holds the data, finished flag and the keys of the dependencies and dependants it had when the
+ * version was published.
+ * <p>
+ * A version never changes, so it can be read from any number of threads without locking and without seeing a
+ * change half made. Versions are kept in persistent hash maps: each change to the forest makes a new version
+ * sharing everything but the few trie nodes on the path to what changed with the version before it, so
+ * publishing a version costs O(changes) rather than a copy of the forest, and holding on to an old one only
+ * keeps the parts of it which have since changed.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class ForestVersion<K, V> {
+    private static final ForestVersion<?, ?> EMPTY = new ForestVersion<>(0, PersistentHashMap.empty(),
+            PersistentHashMap.empty(), PersistentHashMap.empty(), Codecs.TEXT, Codecs.TEXT);
+
+    private final long number;
+    private final PersistentHashMap<K, Node<K, V>> nodes;
+    private final PersistentHashMap<K, Boolean> roots;
+    private final PersistentHashMap<K, Boolean> leaves;
+    private final DependencyCodec<? super K> keyCodec;
+    private final DependencyCodec<? super V> valueCodec;
+
+    /**
+     * A node of a version. The adjacency maps are persistent sets of data keys.
+     */
+    private record Node<K, V>(V data, boolean finished, PersistentHashMap<K, Boolean> dependencies,
+                              PersistentHashMap<K, Boolean> dependants) {
+    }
+
+    private ForestVersion(long number, PersistentHashMap<K, Node<K, V>> nodes, PersistentHashMap<K, Boolean> roots,
+                          PersistentHashMap<K, Boolean> leaves, DependencyCodec<? super K> keyCodec,
+                          DependencyCodec<? super V> valueCodec) {
+        this.number = number;
+        this.nodes = nodes;
+        this.roots = roots;
+        this.leaves = leaves;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> ForestVersion<K, V> empty() {
+        return (ForestVersion<K, V>) EMPTY;
+    }
+
+    /**
+     * @return the number of this version. Versions published later have higher numbers.
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    /**
+     * @return the number of Dependency objects in this version.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @param key a data key.
+     * @return true if this version has a Dependency with the key.
+     */
+    public boolean containsKey(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * @return an unmodifiable Set of the data keys in this version.
+     */
+    public Set<K> keySet() {
+        return nodes.keySet();
+    }
+
+    /**
+     * @param key a data key.
+     * @return the data of the Dependency with the key, or null if there is none.
+     */
+    public V get(K key) {
+        Node<K, V> node = nodes.get(key);
+        return node == null ? null : node.data();
+    }
+
+    /**
+     * @param key a data key.
+     * @return true if the Dependency with the key was finished.
+     */
+    public boolean isFinished(K key) {
+        Node<K, V> node = nodes.get(key);
+        return node != null && node.finished();
+    }
+
+    /**
+     * @param key a data key.
+     * @return an unmodifiable Set of the keys the Dependency with the key depends on directly, empty if it has
+     * none or there is no such Dependency.
+     */
+    public Set<K> getDependencies(K key) {
+        Node<K, V> node = nodes.get(key);
+        return node == null ? Set.of() : node.dependencies().keySet();
+    }
+
+    /**
+     * @param key a data key.
+     * @return an unmodifiable Set of the keys of the Dependency objects depending directly on the one with the
+     * key, empty if it has none or there is no such Dependency.
+     */
+    public Set<K> getDependants(K key) {
+        Node<K, V> node = nodes.get(key);
+        return node == null ? Set.of() : node.dependants().keySet();
+    }
+
+    /**
+     * @return an unmodifiable Set of the keys of the Dependency objects with no dependencies.
+     */
+    public Set<K> getRootNodes() {
+        return roots.keySet();
+    }
+
+    /**
+     * @return an unmodifiable Set of the keys of the Dependency objects with no dependants.
+     */
+    public Set<K> getOutermostLeafDependencies() {
+        return leaves.keySet();
+    }
+
+    /**
+     * Returns true if the Dependency with key dependant depends on the one with key dependency, directly or
+     * through other dependencies.
+     *
+     * @param dependant  the data key of the dependant.
+     * @param dependency the data key of the dependency.
+     * @return true if dependency can be reached from dependant.
+     */
+    public boolean hasDependency(K dependant, K dependency) {
+        Node<K, V> start = nodes.get(dependant);
+        if (start == null || !nodes.containsKey(dependency)) return false;
+
+        Set<K> visited = new HashSet<>();
+        Deque<K> stack = new ArrayDeque<>(start.dependencies().keySet());
+        while (!stack.isEmpty()) {
+            K key = stack.pop();
+            if (key.equals(dependency)) return true;
+            if (!visited.add(key)) continue;
+            stack.addAll(nodes.get(key).dependencies().keySet());
+        }
+        return false;
+    }
+
+    /**
+     * Converts this version to a JSON graph document, as DependencyForest.toJson does when its JSON format is
+     * GRAPH. Data keys and data are written with the codecs the forest had when this version was published.
+     *
+     * @return the JSON.
+     */
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        } catch (IOException ioe) {
+            // A StringWriter doesn't throw.
+            throw new UncheckedIOException(ioe);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Streams this version as JSON, as for toJson. The writer is flushed but not closed.
+     *
+     * @param writer the Writer to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(Writer writer) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(writer)) {
+            writeJson(gen);
+        }
+    }
+
+    /**
+     * Streams this version as UTF-8 JSON, as for toJson. The stream is flushed but not closed.
+     *
+     * @param out the OutputStream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        try (JsonGenerator gen = DependencyJson.factory().createGenerator(out)) {
+            writeJson(gen);
+        }
+    }
+
+    /**
+     * Writes this version to a generator as a graph document, as for toJson.
+     *
+     * @param gen the generator to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeJson(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        gen.writeArrayFieldStart(GraphJson.NODES);
+        for (K key : nodes.keySet()) {
+            Node<K, V> node = nodes.get(key);
+            gen.writeStartObject();
+            gen.writeFieldName("dataKey");
+            keyCodec.write(key, gen);
+            gen.writeFieldName("data");
+            valueCodec.write(node.data(), gen);
+            gen.writeBooleanField("finished", node.finished());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+
+        gen.writeArrayFieldStart(GraphJson.EDGES);
+        for (K key : nodes.keySet()) {
+            for (K dependency : nodes.get(key).dependencies().keySet()) {
+                gen.writeStartArray();
+                keyCodec.write(key, gen);
+                keyCodec.write(dependency, gen);
+                gen.writeEndArray();
+            }
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    /**
+     * @return a version with the Dependency added, unconnected, or this version if it already has its key.
+     */
+    ForestVersion<K, V> withNode(Dependency<K, V> dependency) {
+        K key = dependency.getDataKey();
+        if (nodes.containsKey(key)) return this;
+        Node<K, V> node = new Node<>(dependency.getData(), dependency.isFinished(), PersistentHashMap.empty(),
+                PersistentHashMap.empty());
+        return new ForestVersion<>(number + 1, nodes.put(key, node), roots.put(key, true), leaves.put(key, true),
+                keyCodec, valueCodec);
+    }
+
+    /**
+     * @return a version in which dependant depends on dependency, adding either if this version lacks it.
+     */
+    ForestVersion<K, V> withEdge(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        ForestVersion<K, V> version = withNode(dependant).withNode(dependency);
+        K from = dependant.getDataKey();
+        K to = dependency.getDataKey();
+        Node<K, V> a = version.nodes.get(from);
+        Node<K, V> b = version.nodes.get(to);
+        if (a.dependencies().containsKey(to)) return version;
+
+        PersistentHashMap<K, Node<K, V>> nodes = version.nodes
+                .put(from, new Node<>(a.data(), a.finished(), a.dependencies().put(to, true), a.dependants()))
+                .put(to, new Node<>(b.data(), b.finished(), b.dependencies(), b.dependants().put(from, true)));
+        return new ForestVersion<>(version.number + 1, nodes, version.roots.remove(from),
+                version.leaves.remove(to), keyCodec, valueCodec);
+    }
+
+    /**
+     * @return a version with every dependency of each of the Dependency objects given.
+     */
+    ForestVersion<K, V> withEdges(Collection<Dependency<K, V>> dependants) {
+        ForestVersion<K, V> version = this;
+        for (Dependency<K, V> dependant : dependants) {
+            version = version.withNode(dependant);
+            if (!dependant.hasDependencies()) continue;
+            for (Dependency<K, V> dependency : dependant.getDependencies().values()) {
+                version = version.withEdge(dependant, dependency);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * @return a version without the Dependency with the key and its edges, or this version if it has no such key.
+     * Neighbours left without dependencies or dependants become roots or leaves.
+     */
+    ForestVersion<K, V> withoutNode(K key) {
+        Node<K, V> node = nodes.get(key);
+        if (node == null) return this;
+
+        PersistentHashMap<K, Node<K, V>> nodes = this.nodes.remove(key);
+        PersistentHashMap<K, Boolean> roots = this.roots.remove(key);
+        PersistentHashMap<K, Boolean> leaves = this.leaves.remove(key);
+        for (K parent : node.dependencies().keySet()) {
+            Node<K, V> p = nodes.get(parent);
+            PersistentHashMap<K, Boolean> dependants = p.dependants().remove(key);
+            nodes = nodes.put(parent, new Node<>(p.data(), p.finished(), p.dependencies(), dependants));
+            if (dependants.isEmpty()) leaves = leaves.put(parent, true);
+        }
+        for (K child : node.dependants().keySet()) {
+            Node<K, V> c = nodes.get(child);
+            PersistentHashMap<K, Boolean> dependencies = c.dependencies().remove(key);
+            nodes = nodes.put(child, new Node<>(c.data(), c.finished(), dependencies, c.dependants()));
+            if (dependencies.isEmpty()) roots = roots.put(child, true);
+        }
+        return new ForestVersion<>(number + 1, nodes, roots, leaves, keyCodec, valueCodec);
+    }
+
+    /**
+     * @return a version in which the Dependency has its current finished flag.
+     */
+    ForestVersion<K, V> withFinished(Dependency<K, V> dependency) {
+        K key = dependency.getDataKey();
+        Node<K, V> node = nodes.get(key);
+        if (node == null || node.finished() == dependency.isFinished()) return this;
+        Node<K, V> changed = new Node<>(node.data(), dependency.isFinished(), node.dependencies(), node.dependants());
+        return new ForestVersion<>(number + 1, nodes.put(key, changed), roots, leaves, keyCodec, valueCodec);
+    }
+
+    /**
+     * @return a version with no Dependency objects.
+     */
+    ForestVersion<K, V> cleared() {
+        return new ForestVersion<>(number + 1, PersistentHashMap.empty(), PersistentHashMap.empty(),
+                PersistentHashMap.empty(), keyCodec, valueCodec);
+    }
+
+    /**
+     * @return this version, or a copy sharing its maps, written with the codecs given.
+     */
+    ForestVersion<K, V> withCodecs(DependencyCodec<? super K> keyCodec, DependencyCodec<? super V> valueCodec) {
+        if (keyCodec == this.keyCodec && valueCodec == this.valueCodec) return this;
+        return new ForestVersion<>(number, nodes, roots, leaves, keyCodec, valueCodec);
+    }
+}
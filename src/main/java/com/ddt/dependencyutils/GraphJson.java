@@ -0,0 +1,232 @@
+package com.ddt.dependencyutils;
+
+import com.ddt.dependencyutils.exception.CircularDependencyException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The graph JSON format. Rather than nesting each Dependency inside every one of its dependants (or
+ * dependencies), a graph document lists each Dependency once and then lists the edges between them by data key:
+ * <pre>
+ * {"nodes":[{"dataKey":"A","data":"a","finished":false},{"dataKey":"B","data":"b","finished":true}],
+ *  "edges":[["B","A"]]}
+ * </pre>
+ * Each edge is a pair of data keys, dependant first. Output is linear in the number of Dependency objects and
+ * edges however much they are shared, and so is reading it back: edges are wired in without validating each one
+ * and the whole graph is checked for cycles once at the end.
+ */
+final class GraphJson {
+    static final String NODES = "nodes";
+    static final String EDGES = "edges";
+
+    private GraphJson() {
+    }
+
+    /**
+     * Writes a graph document.
+     *
+     * @param nodes      the Dependency objects to write, each with a distinct data key. Edges to Dependency
+     *                   objects with keys not among them are written too.
+     * @param gen        the generator to write to.
+     * @param keyCodec   writes each data key.
+     * @param valueCodec writes each Dependency's data.
+     * @throws IOException if writing fails.
+     */
+    static <K, V> void write(Collection<Dependency<K, V>> nodes, JsonGenerator gen,
+                             DependencyCodec<? super K> keyCodec, DependencyCodec<? super V> valueCodec)
+            throws IOException {
+        gen.writeStartObject();
+        gen.writeArrayFieldStart(NODES);
+        for (Dependency<K, V> node : nodes) {
+            gen.writeStartObject();
+            gen.writeFieldName("dataKey");
+            keyCodec.write(node.getDataKey(), gen);
+            gen.writeFieldName("data");
+            valueCodec.write(node.getData(), gen);
+            gen.writeBooleanField("finished", node.isFinished());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+
+        gen.writeArrayFieldStart(EDGES);
+        for (Dependency<K, V> node : nodes) {
+            if (!node.hasDependencies()) continue;
+            for (Dependency<K, V> dependency : node.getDependencies().values()) {
+                gen.writeStartArray();
+                keyCodec.write(node.getDataKey(), gen);
+                keyCodec.write(dependency.getDataKey(), gen);
+                gen.writeEndArray();
+            }
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+    }
+
+    /**
+     * @param fieldName the name of the first field of a JSON object.
+     * @return true if it marks a graph document rather than a Dependency tree.
+     */
+    static boolean isGraphField(String fieldName) {
+        return NODES.equals(fieldName) || EDGES.equals(fieldName);
+    }
+
+    /**
+     * An edge as read, by the data keys at either end.
+     */
+    record Link<K>(K dependant, K dependency) {
+    }
+
+    /**
+     * A graph document as read, before any edge has been wired in.
+     *
+     * @param nodes every Dependency in the node table by data key, in the order listed.
+     * @param links each edge read.
+     */
+    record Document<K, V>(Map<K, Dependency<K, V>> nodes, List<Link<K>> links) {
+        /**
+         * @return the Dependency named by key.
+         * @throws IllegalArgumentException if the node table has no such key.
+         */
+        Dependency<K, V> node(K key) {
+            Dependency<K, V> dependency = nodes.get(key);
+            if (dependency == null) throw new IllegalArgumentException("Edge names unknown dataKey: " + key);
+            return dependency;
+        }
+    }
+
+    /**
+     * Reads a graph document from the parser's tokens and wires in its edges.
+     *
+     * @param jp         the parser, positioned on the first field name of the document. It is left on the
+     *                   document's END_OBJECT.
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return every Dependency in the node table, in the order listed.
+     * @throws IOException                 if the JSON can't be read.
+     * @throws IllegalArgumentException    if an edge names a key missing from the node table, or is malformed.
+     * @throws CircularDependencyException if the edges contain a cycle.
+     */
+    static <K, V> List<Dependency<K, V>> read(JsonParser jp, DependencyCodec<K> keyCodec,
+                                              DependencyCodec<V> valueCodec)
+            throws IOException, CircularDependencyException {
+        Document<K, V> document = readDocument(jp, keyCodec, valueCodec);
+        for (Link<K> link : document.links()) {
+            Dependency<K, V> dependant = document.node(link.dependant());
+            Dependency<K, V> dependency = document.node(link.dependency());
+            if (dependant == dependency) throw new CircularDependencyException(detached(dependency));
+            dependant.linkDependency(dependency);
+        }
+
+        List<Dependency<K, V>> nodes = new ArrayList<>(document.nodes().values());
+        checkAcyclic(nodes);
+        return nodes;
+    }
+
+    /**
+     * Reads a graph document from the parser's tokens without wiring in its edges. Edges are held as key pairs
+     * until the whole document has been read, so the node table and edge list may come in either order.
+     *
+     * @param jp         the parser, positioned on the first field name of the document. It is left on the
+     *                   document's END_OBJECT.
+     * @param keyCodec   reads each data key.
+     * @param valueCodec reads each Dependency's data.
+     * @return the nodes and edges read.
+     * @throws IOException              if the JSON can't be read.
+     * @throws IllegalArgumentException if a node or edge is malformed.
+     */
+    static <K, V> Document<K, V> readDocument(JsonParser jp, DependencyCodec<K> keyCodec,
+                                              DependencyCodec<V> valueCodec) throws IOException {
+        Map<K, Dependency<K, V>> byKey = new LinkedHashMap<>();
+        List<Link<K>> links = new ArrayList<>();
+
+        for (JsonToken token = jp.currentToken(); token == JsonToken.FIELD_NAME; token = jp.nextToken()) {
+            String field = jp.currentName();
+            JsonToken value = jp.nextToken();
+            if (NODES.equals(field) && value == JsonToken.START_ARRAY) {
+                while (jp.nextToken() == JsonToken.START_OBJECT) {
+                    Dependency<K, V> dependency = readNode(jp, keyCodec, valueCodec);
+                    byKey.put(dependency.getDataKey(), dependency);
+                }
+            } else if (EDGES.equals(field) && value == JsonToken.START_ARRAY) {
+                while (jp.nextToken() == JsonToken.START_ARRAY) {
+                    links.add(readLink(jp, keyCodec));
+                }
+            } else {
+                jp.skipChildren();
+            }
+        }
+        return new Document<>(byKey, links);
+    }
+
+    private static <K, V> Dependency<K, V> readNode(JsonParser jp, DependencyCodec<K> keyCodec,
+                                                    DependencyCodec<V> valueCodec) throws IOException {
+        K dataKey = null;
+        V data = null;
+        boolean finished = false;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.currentName();
+            jp.nextToken();
+            switch (field) {
+                case "dataKey" -> dataKey = keyCodec.read(jp);
+                case "data" -> data = valueCodec.read(jp);
+                case "finished" -> finished = jp.getValueAsBoolean();
+                default -> jp.skipChildren();
+            }
+        }
+        if (dataKey == null) throw new IllegalArgumentException("Node has no dataKey");
+
+        Dependency<K, V> dependency = new Dependency<>(dataKey, data);
+        dependency.setFinished(finished);
+        return dependency;
+    }
+
+    private static <K> Link<K> readLink(JsonParser jp, DependencyCodec<K> keyCodec) throws IOException {
+        List<K> keys = new ArrayList<>(2);
+        while (jp.nextToken() != JsonToken.END_ARRAY) {
+            keys.add(keyCodec.read(jp));
+        }
+        if (keys.size() != 2) throw new IllegalArgumentException("Edge is not a [dependant, dependency] pair: " + keys);
+        return new Link<>(keys.get(0), keys.get(1));
+    }
+
+    /**
+     * Kahn's algorithm over the nodes read. Any node left unsorted lies on, or downstream of, a cycle.
+     */
+    private static <K, V> void checkAcyclic(List<Dependency<K, V>> nodes) throws CircularDependencyException {
+        Map<Dependency<K, V>, Integer> inDegree = new IdentityHashMap<>();
+        Deque<Dependency<K, V>> ready = new ArrayDeque<>();
+        for (Dependency<K, V> node : nodes) {
+            int degree = node.hasDependencies() ? node.getDependencies().size() : 0;
+            inDegree.put(node, degree);
+            if (degree == 0) ready.add(node);
+        }
+
+        int sorted = 0;
+        while (!ready.isEmpty()) {
+            Dependency<K, V> node = ready.poll();
+            sorted++;
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                int degree = inDegree.merge(dependant, -1, Integer::sum);
+                if (degree == 0) ready.add(dependant);
+            }
+        }
+
+        if (sorted < nodes.size()) {
+            for (Dependency<K, V> node : nodes) {
+                if (inDegree.get(node) > 0) throw new CircularDependencyException(detached(node));
+            }
+        }
+    }
+
+    /**
+     * The exception's message serializes its Dependency, which mustn't still be wired into a cycle.
+     */
+    private static <K, V> Dependency<K, V> detached(Dependency<K, V> node) {
+        return new Dependency<>(node.getDataKey(), node.getData());
+    }
+}
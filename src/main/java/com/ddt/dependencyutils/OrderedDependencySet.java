@@ -0,0 +1,94 @@
+package com.ddt.dependencyutils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent set of Dependency objects, at most one per data key, which remembers the order in which they were
+ * added. Membership is hash based so adding, removing and testing a Dependency are cheap. Reads go through an
+ * immutable snapshot List which is only rebuilt after the set has changed.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class OrderedDependencySet<K, V> {
+    private final Map<K, Long> sequences = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Dependency<K, V>> members = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot<K, V> snapshot = new Snapshot<>(0, List.of());
+
+    private record Snapshot<K, V>(long version, List<Dependency<K, V>> dependencies) {
+    }
+
+    /**
+     * Adds a Dependency, replacing any other Dependency with the same data key.
+     *
+     * @param dependency the Dependency to add.
+     */
+    void add(Dependency<K, V> dependency) {
+        boolean[] changed = {false};
+        sequences.compute(dependency.getDataKey(), (key, sequence) -> {
+            if (sequence != null) {
+                if (members.get(sequence) == dependency) return sequence;
+                members.remove(sequence);
+            }
+            long next = nextSequence.getAndIncrement();
+            members.put(next, dependency);
+            changed[0] = true;
+            return next;
+        });
+        if (changed[0]) version.incrementAndGet();
+    }
+
+    /**
+     * Removes a Dependency if it is a member. Another Dependency with the same data key is left alone.
+     *
+     * @param dependency the Dependency to remove.
+     */
+    void remove(Dependency<K, V> dependency) {
+        boolean[] changed = {false};
+        sequences.computeIfPresent(dependency.getDataKey(), (key, sequence) -> {
+            if (members.get(sequence) != dependency) return sequence;
+            members.remove(sequence);
+            changed[0] = true;
+            return null;
+        });
+        if (changed[0]) version.incrementAndGet();
+    }
+
+    /**
+     * @param dependency the Dependency to look for.
+     * @return true if this exact Dependency is a member.
+     */
+    boolean contains(Dependency<K, V> dependency) {
+        Long sequence = sequences.get(dependency.getDataKey());
+        return sequence != null && members.get(sequence) == dependency;
+    }
+
+    int size() {
+        return sequences.size();
+    }
+
+    void clear() {
+        sequences.clear();
+        members.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return an immutable List of the members in the order they were added.
+     */
+    List<Dependency<K, V>> snapshot() {
+        long current = version.get();
+        Snapshot<K, V> latest = snapshot;
+        if (latest.version() == current) return latest.dependencies();
+
+        List<Dependency<K, V>> dependencies = List.copyOf(members.values());
+        snapshot = new Snapshot<>(current, dependencies);
+        return dependencies;
+    }
+}
@@ -0,0 +1,307 @@
+package com.ddt.dependencyutils;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash map which is changed by making a new map sharing all but the changed path with the old one: a
+ * hash array mapped trie (HAMT). Each level of the trie uses five bits of the key's hash to pick one of up to 32
+ * branches, and only the branches in use take space. put and remove copy the O(log<sub>32</sub> n) nodes on the path
+ * to the key and return a new map, leaving this one untouched, so any number of versions can be kept and read
+ * from any thread without locking.
+ * <p>
+ * Keys may not be null.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class PersistentHashMap<K, V> {
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean containsKey(Object key) {
+        return root.find(hash(key), key, 0) != NOT_FOUND;
+    }
+
+    /**
+     * @return the value mapped to key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        Object value = root.find(hash(key), key, 0);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    /**
+     * @return a map with key mapped to value, or this map if it already is.
+     */
+    PersistentHashMap<K, V> put(K key, V value) {
+        Objects.requireNonNull(key, "key");
+        boolean[] added = {false};
+        Node newRoot = root.put(hash(key), key, value, 0, added);
+        if (newRoot == root) return this;
+        return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without key, or this map if it has no such key.
+     */
+    PersistentHashMap<K, V> remove(Object key) {
+        Node newRoot = root.remove(hash(key), key, 0);
+        if (newRoot == root) return this;
+        return new PersistentHashMap<>(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /**
+     * @return an unmodifiable Set view of the keys.
+     */
+    Set<K> keySet() {
+        return new AbstractSet<>() {
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<K> iterator() {
+                List<K> keys = new ArrayList<>(size);
+                PersistentHashMap.this.forEach((key, value) -> keys.add(key));
+                return Collections.unmodifiableList(keys).iterator();
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    private interface Node {
+        Object find(int hash, Object key, int shift);
+
+        Node put(int hash, Object key, Object value, int shift, boolean[] added);
+
+        /**
+         * @return the node without key, this node if it has no such key, or null if nothing is left.
+         */
+        Node remove(int hash, Object key, int shift);
+
+        void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * A level of the trie. Each branch in use takes two slots of the array: a key and its value, or null and
+     * the node of the next level down.
+     */
+    private static final class BitmapNode implements Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object find(int hash, Object key, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return NOT_FOUND;
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) return ((Node) v).find(hash, key, shift + 5);
+            return key.equals(k) ? v : NOT_FOUND;
+        }
+
+        @Override
+        public Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, 2 * i);
+                copy[2 * i] = key;
+                copy[2 * i + 1] = value;
+                System.arraycopy(array, 2 * i, copy, 2 * i + 2, array.length - 2 * i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(hash, key, value, shift + 5, added);
+                return child == v ? this : with(2 * i + 1, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(2 * i + 1, value);
+            }
+
+            // Two keys on one branch: push both down a level.
+            added[0] = true;
+            Node child = pair(k, v, key, value, hash, shift + 5);
+            Object[] copy = array.clone();
+            copy[2 * i] = null;
+            copy[2 * i + 1] = child;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        public Node remove(int hash, Object key, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(hash, key, shift + 5);
+                if (child == v) return this;
+                if (child != null) return with(2 * i + 1, child);
+            } else if (!key.equals(k)) {
+                return this;
+            }
+
+            if (bitmap == bit) return null;
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, 2 * i);
+            System.arraycopy(array, 2 * i + 2, copy, 2 * i, array.length - 2 * i - 2);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        private BitmapNode with(int slot, Object value) {
+            Object[] copy = array.clone();
+            copy[slot] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private static Node pair(Object k1, Object v1, Object k2, Object v2, int hash2, int shift) {
+            int hash1 = hash(k1);
+            if (hash1 == hash2) return new CollisionNode(hash1, new Object[]{k1, v1, k2, v2});
+            boolean[] added = {false};
+            return EMPTY.put(hash1, k1, v1, shift, added).put(hash2, k2, v2, shift, added);
+        }
+    }
+
+    /**
+     * Keys whose hashes are all equal, kept as key, value pairs.
+     */
+    private static final class CollisionNode implements Node {
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public Object find(int hash, Object key, int shift) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        public Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            if (hash != this.hash) {
+                // Another hash on this branch: put this node a level down, beneath a bitmap node.
+                return new BitmapNode(bit(this.hash, shift), new Object[]{null, this})
+                        .put(hash, key, value, shift, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node remove(int hash, Object key, int shift) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) action.accept(array[i], array[i + 1]);
+        }
+    }
+}
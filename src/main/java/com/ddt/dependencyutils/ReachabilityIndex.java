@@ -0,0 +1,313 @@
+package com.ddt.dependencyutils;
+
+import java.util.*;
+
+/**
+ * Transitive closure of the dependencies of every Dependency in a DependencyForest, held as one BitSet per node
+ * so that ancestor and descendant questions are answered without walking the graph.
+ * <p>
+ * Adding a dependency updates the closure incrementally: the new ancestors are or-ed into the dependant and into
+ * those of its transitive dependants which do not already have them. A Dependency joining the forest is given an
+ * id and a row worked out from its dependencies, as long as its other neighbours are indexed already. Removing a
+ * Dependency or a dependency only changes the rows of the nodes which depended on it, so only those are worked out
+ * again, in topological order. Anything else, such as a bulk load or a whole tree joining the forest, marks the
+ * index stale and it is rebuilt as the transaction making the change commits. The closure costs n<sup>2</sup> bits
+ * for n nodes so the index is intended for forests of up to a few tens of thousands of nodes and is off by default.
+ * </p>
+ * <p>
+ * Every change to the index is made by the transaction holding the forest's write lock, so queries, which run
+ * optimistically without the lock, only ever read it.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class ReachabilityIndex<K, V> {
+    private final DependencyForest<K, V> forest;
+    private final Map<Dependency<K, V>, Integer> ids = new IdentityHashMap<>();
+    private final List<Dependency<K, V>> pending = new ArrayList<>();
+    // Ids given up by removed nodes. No row has their bits set.
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private int nextId;
+    private BitSet[] ancestors = new BitSet[0];
+    private boolean stale = true;
+
+    ReachabilityIndex(DependencyForest<K, V> forest) {
+        this.forest = forest;
+    }
+
+    /**
+     * Checks whether the index can answer questions about both Dependency objects. It can't while it is stale,
+     * which outside a transaction it never is.
+     *
+     * @return true if both Dependency objects are indexed.
+     */
+    synchronized boolean covers(Dependency<K, V> first, Dependency<K, V> second) {
+        return !stale && ids.containsKey(first) && ids.containsKey(second);
+    }
+
+    /**
+     * @return true if dependant depends on dependency, directly or indirectly. Both must be covered.
+     */
+    synchronized boolean dependsOn(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        Integer dependantId = ids.get(dependant);
+        Integer dependencyId = ids.get(dependency);
+        return dependantId != null && dependencyId != null && ancestors[dependantId].get(dependencyId);
+    }
+
+    /**
+     * Indexes a Dependency which has just joined the forest, or marks the index stale if its neighbours aren't
+     * indexed yet, e.g. because the rest of its tree is joining with it.
+     */
+    synchronized void joined(Dependency<K, V> node) {
+        if (stale || ids.containsKey(node)) return;
+        if (!admit(node, null)) {
+            pending.add(node);
+            stale = true;
+        }
+    }
+
+    /**
+     * Rebuilds the index if a change made by the committing transaction couldn't be applied incrementally. Called
+     * before the forest's write lock is released.
+     */
+    synchronized void commit() {
+        if (stale) rebuild();
+    }
+
+    /**
+     * Updates the closure once dependant has been given dependency as a direct dependency.
+     */
+    synchronized void dependencyAdded(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        if (!stale) {
+            Integer dependencyId = ids.get(dependency);
+            if (dependencyId != null && ids.containsKey(dependant)) {
+                BitSet added = (BitSet) ancestors[dependencyId].clone();
+                added.set(dependencyId);
+                spread(added, dependant);
+                return;
+            }
+            // The new edge is already in place, so admitting either end brings it into the closure.
+            if ((dependencyId != null || admit(dependency, dependant))
+                    && (ids.containsKey(dependant) || admit(dependant, null))) return;
+        }
+        pending.add(dependant);
+        pending.add(dependency);
+        stale = true;
+    }
+
+    /**
+     * Forgets a Dependency which has been taken out of the graph, once its children have been grafted on to its
+     * parents. Only the children and their transitive dependants held it, so only their rows are worked out again.
+     *
+     * @param removed  the Dependency taken out.
+     * @param children the Dependency objects which depended on it directly.
+     */
+    synchronized void removed(Dependency<K, V> removed, Collection<Dependency<K, V>> children) {
+        Integer id = ids.remove(removed);
+        if (stale) return;
+        if (id != null) {
+            ancestors[id] = null;
+            freeIds.push(id);
+        }
+        dependenciesRemoved(children);
+    }
+
+    /**
+     * Works out again the rows of the Dependency objects given, which have lost dependencies, and of their
+     * transitive dependants. The rows of every other node are unchanged.
+     */
+    synchronized void dependenciesRemoved(Collection<Dependency<K, V>> nodes) {
+        if (stale) return;
+
+        Set<Dependency<K, V>> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        for (Dependency<K, V> node : nodes) {
+            if (affected.add(node)) stack.push(node);
+        }
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            if (!ids.containsKey(node)) {
+                stale = true;
+                return;
+            }
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                if (affected.add(dependant)) stack.push(dependant);
+            }
+        }
+
+        // Kahn's algorithm over the affected nodes alone, as the rows of the others are correct.
+        Map<Dependency<K, V>, Integer> inDegree = new IdentityHashMap<>();
+        Deque<Dependency<K, V>> ready = new ArrayDeque<>();
+        for (Dependency<K, V> node : affected) {
+            int degree = 0;
+            if (node.hasDependencies()) {
+                for (Dependency<K, V> dependency : node.getDependencies().values()) {
+                    if (affected.contains(dependency)) degree++;
+                }
+            }
+            inDegree.put(node, degree);
+            if (degree == 0) ready.add(node);
+        }
+        while (!ready.isEmpty()) {
+            Dependency<K, V> node = ready.poll();
+            ancestors[ids.get(node)] = closureOf(node);
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                if (inDegree.merge(dependant, -1, Integer::sum) == 0) ready.add(dependant);
+            }
+        }
+    }
+
+    /**
+     * Indexes a Dependency whose neighbours, other than except, are indexed already: its row is worked out from its
+     * dependencies and passed on to its transitive dependants.
+     *
+     * @return false, leaving the index as it was, if another neighbour isn't indexed.
+     */
+    private boolean admit(Dependency<K, V> node, Dependency<K, V> except) {
+        for (Map<K, Dependency<K, V>> next : Arrays.asList(node.getDependencies(), node.getDependants())) {
+            if (next == null) continue;
+            for (Dependency<K, V> neighbour : next.values()) {
+                if (neighbour != except && !ids.containsKey(neighbour)) return false;
+            }
+        }
+
+        int id = newId();
+        ids.put(node, id);
+        ancestors[id] = closureOf(node);
+        if (!node.hasDependants()) return true;
+
+        BitSet added = (BitSet) ancestors[id].clone();
+        added.set(id);
+        for (Dependency<K, V> dependant : node.getDependants().values()) {
+            if (dependant != except) spread(added, dependant);
+        }
+        return true;
+    }
+
+    /**
+     * Adds ancestors to the row of start and to those of its transitive dependants which don't have them yet.
+     * Marks the index stale if it comes across a Dependency which isn't indexed.
+     */
+    private void spread(BitSet added, Dependency<K, V> start) {
+        // A node which already has every new ancestor passes them on to all of its dependants, so stop there.
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            Integer id = ids.get(node);
+            if (id == null) {
+                stale = true;
+                return;
+            }
+            BitSet closure = ancestors[id];
+            BitSet missing = (BitSet) added.clone();
+            missing.andNot(closure);
+            if (missing.isEmpty()) continue;
+            closure.or(missing);
+            if (node.hasDependants()) node.getDependants().values().forEach(stack::push);
+        }
+    }
+
+    /**
+     * @return the ancestors of node, from the rows of its indexed dependencies.
+     */
+    private BitSet closureOf(Dependency<K, V> node) {
+        BitSet closure = new BitSet();
+        if (!node.hasDependencies()) return closure;
+        for (Dependency<K, V> dependency : node.getDependencies().values()) {
+            Integer dependencyId = ids.get(dependency);
+            if (dependencyId == null) continue;
+            closure.or(ancestors[dependencyId]);
+            closure.set(dependencyId);
+        }
+        return closure;
+    }
+
+    private int newId() {
+        Integer free = freeIds.poll();
+        if (free != null) return free;
+        if (nextId == ancestors.length) ancestors = Arrays.copyOf(ancestors, Math.max(16, 2 * nextId));
+        return nextId++;
+    }
+
+    /**
+     * Marks the index stale following a change it cannot apply incrementally, such as a bulk load.
+     */
+    synchronized void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * @return true if the index will be rebuilt as the current transaction commits.
+     */
+    synchronized boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Forgets every indexed Dependency.
+     */
+    synchronized void clear() {
+        ids.clear();
+        pending.clear();
+        freeIds.clear();
+        nextId = 0;
+        ancestors = new BitSet[0];
+        stale = true;
+    }
+
+    /**
+     * Rebuilds the closure of every Dependency connected to an indexed or pending one.
+     */
+    private void rebuild() {
+        Set<Dependency<K, V>> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        for (Dependency<K, V> node : ids.keySet()) {
+            if (node.getDependencyForest() == forest && nodes.add(node)) stack.push(node);
+        }
+        for (Dependency<K, V> node : pending) {
+            if (node.getDependencyForest() == forest && nodes.add(node)) stack.push(node);
+        }
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            for (Map<K, Dependency<K, V>> next : Arrays.asList(node.getDependencies(), node.getDependants())) {
+                if (next == null) continue;
+                for (Dependency<K, V> neighbour : next.values()) {
+                    if (nodes.add(neighbour)) stack.push(neighbour);
+                }
+            }
+        }
+
+        // Kahn's algorithm, numbering nodes as they are sorted so that dependencies always have lower ids.
+        ids.clear();
+        Map<Dependency<K, V>, Integer> inDegree = new IdentityHashMap<>();
+        Deque<Dependency<K, V>> ready = new ArrayDeque<>();
+        for (Dependency<K, V> node : nodes) {
+            int degree = node.hasDependencies() ? node.getDependencies().size() : 0;
+            inDegree.put(node, degree);
+            if (degree == 0) ready.add(node);
+        }
+
+        ancestors = new BitSet[nodes.size()];
+        while (!ready.isEmpty()) {
+            Dependency<K, V> node = ready.poll();
+            int id = ids.size();
+            ids.put(node, id);
+            ancestors[id] = closureOf(node);
+
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                int degree = inDegree.merge(dependant, -1, Integer::sum);
+                if (degree == 0) ready.add(dependant);
+            }
+        }
+
+        pending.clear();
+        freeIds.clear();
+        nextId = ids.size();
+        stale = false;
+    }
+}
@@ -0,0 +1,146 @@
+package com.ddt.dependencyutils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Dependency objects of a DependencyForest which are not finished but whose dependencies all are. Each member
+ * of the forest has a count of its unfinished dependencies, held in the Dependency itself. Finishing or un-finishing a Dependency only adjusts
+ * the counts of its own dependants, and adding or removing a dependency only recounts the dependant, so keeping
+ * the set up to date costs in proportion to the change rather than to the size of the forest.
+ * <p>
+ * Finished flags of forest members are changed under the forest's read lock, holding the stripes of the
+ * Dependency and of its dependants, so flags of unrelated Dependency objects change in parallel while counts are
+ * never adjusted twice for the same change. Recounts happen in transactions, under the write lock. Reads go
+ * through the immutable snapshot kept by OrderedDependencySet and don't lock.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class ReadySet<K, V> {
+    private final DependencyForest<K, V> forest;
+    private final Object readied = new Object();
+    private final OrderedDependencySet<K, V> ready = new OrderedDependencySet<>();
+
+    ReadySet(DependencyForest<K, V> forest) {
+        this.forest = forest;
+    }
+
+    /**
+     * Recounts the unfinished dependencies of a member whose dependencies have changed.
+     *
+     * @param dependency the forest member to recount.
+     */
+    void refresh(Dependency<K, V> dependency) {
+        int unfinished = 0;
+        if (dependency.hasDependencies()) {
+            for (Dependency<K, V> d : dependency.getDependencies().values()) {
+                if (!d.isFinished()) unfinished++;
+            }
+        }
+        dependency.assignUnfinishedDependencies(unfinished);
+        update(dependency, unfinished);
+    }
+
+    /**
+     * Changes the finished flag of a Dependency belonging to the forest and adjusts the counts of its dependants.
+     * The change is reported to the forest while the stripes are held, so its journal sees the changes
+     * to any one Dependency in the order they were made. The caller holds the forest's read lock.
+     *
+     * @param dependency the Dependency.
+     * @param finished   the new value of the flag.
+     */
+    void setFinished(Dependency<K, V> dependency, boolean finished) {
+        Map<K, Dependency<K, V>> dependants = dependency.getDependants();
+        ForestLock lock = forest.getLock();
+        int[] stripes = lock.lock(dependency, dependants == null ? null : dependants.values());
+        try {
+            if (dependency.isFinished() == finished) return;
+            dependency.assignFinished(finished);
+            adjust(dependency, finished);
+            forest.finishedChanged(dependency);
+        } finally {
+            lock.unlock(stripes);
+        }
+    }
+
+    private void adjust(Dependency<K, V> dependency, boolean finished) {
+        int own = dependency.unfinishedDependencies();
+        if (own >= 0 && isMember(dependency)) update(dependency, own);
+
+        if (!dependency.hasDependants()) return;
+        int delta = finished ? -1 : 1;
+        for (Dependency<K, V> dependant : dependency.getDependants().values()) {
+            int unfinished = dependant.unfinishedDependencies();
+            if (unfinished < 0 || !isMember(dependant)) continue;
+            if (!dependant.hasDependencies()
+                    || dependant.getDependencies().get(dependency.getDataKey()) != dependency) continue;
+
+            dependant.assignUnfinishedDependencies(unfinished + delta);
+            update(dependant, unfinished + delta);
+        }
+    }
+
+    /**
+     * @return an immutable snapshot of the ready Dependency objects, in the order they became ready.
+     */
+    List<Dependency<K, V>> snapshot() {
+        return ready.snapshot();
+    }
+
+    /**
+     * Waits until at least one Dependency is ready.
+     *
+     * @param timeout how long to wait.
+     * @param unit    the unit of timeout.
+     * @return a snapshot of the ready Dependency objects, empty if none became ready in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    List<Dependency<K, V>> await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (readied) {
+            while (ready.size() == 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                TimeUnit.NANOSECONDS.timedWait(readied, remaining);
+            }
+        }
+        return ready.snapshot();
+    }
+
+    /**
+     * Forgets a Dependency which has left the forest.
+     *
+     * @param dependency the Dependency which has left.
+     */
+    void remove(Dependency<K, V> dependency) {
+        dependency.assignUnfinishedDependencies(-1);
+        ready.remove(dependency);
+    }
+
+    /**
+     * Forgets every member. Their counts are dropped as they leave the forest.
+     */
+    void clear() {
+        ready.clear();
+    }
+
+    private boolean isMember(Dependency<K, V> dependency) {
+        return forest.getAllNodes().get(dependency.getDataKey()) == dependency;
+    }
+
+    private void update(Dependency<K, V> dependency, int unfinished) {
+        if (unfinished == 0 && !dependency.isFinished()) {
+            if (!ready.contains(dependency)) {
+                ready.add(dependency);
+                synchronized (readied) {
+                    readied.notifyAll();
+                }
+            }
+        } else {
+            ready.remove(dependency);
+        }
+    }
+}
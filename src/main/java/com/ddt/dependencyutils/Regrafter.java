@@ -0,0 +1,134 @@
+package com.ddt.dependencyutils;
+
+import java.util.*;
+
+/**
+ * Re-grafts the former dependants (children) of a removed Dependency onto its former dependencies (parents) in a
+ * single batch.
+ * <p>
+ * A child only needs an edge to a parent it can no longer reach, and not even then if the parent will be reached
+ * through another parent the child is being grafted onto. Which parents reach which children is worked out with
+ * one traversal downwards from all the parents at once, each node visited collecting a bitset of the parents
+ * above it as the nodes are taken in topological order. When the nodes belong to a DependencyForest, its
+ * topological order bounds the traversal: no node ordered after the last child can lie on a route to a child.
+ * </p>
+ * <p>
+ * Removing a node cannot create a cycle and every parent was upstream of every child, so the surviving edges can
+ * be wired in without being validated one by one, and they keep the forest's topological order valid.
+ * </p>
+ */
+final class Regrafter {
+    private Regrafter() {
+    }
+
+    /**
+     * Grafts the children onto the parents, adding only the edges returned by plan.
+     *
+     * @param children the removed Dependency's former dependants, already unlinked from it.
+     * @param parents  the removed Dependency's former dependencies, already unlinked from it.
+     * @param forest   the forest the nodes belong to, or null.
+     * @return the edges added.
+     */
+    static <K, V> List<DependencyForest.Edge<K, V>> graft(List<Dependency<K, V>> children,
+                                                          List<Dependency<K, V>> parents,
+                                                          DependencyForest<K, V> forest) {
+        List<DependencyForest.Edge<K, V>> edges = plan(children, parents,
+                forest == null ? null : forest.getTopologicalOrder());
+        for (DependencyForest.Edge<K, V> edge : edges) {
+            edge.dependant().linkDependency(edge.dependency());
+            if (forest != null) forest.edgeAdded(edge.dependant(), edge.dependency());
+        }
+        return edges;
+    }
+
+    /**
+     * Works out which child to parent edges are needed for the children to keep every ancestor they had through
+     * the removed Dependency.
+     *
+     * @param children the removed Dependency's former dependants, already unlinked from it.
+     * @param parents  the removed Dependency's former dependencies, already unlinked from it.
+     * @param order    the forest's topological order, or null if the nodes do not belong to a forest.
+     * @return the edges to add. None of them duplicates a route which exists, or will exist once they are added.
+     */
+    static <K, V> List<DependencyForest.Edge<K, V>> plan(List<Dependency<K, V>> children,
+                                                         List<Dependency<K, V>> parents,
+                                                         TopologicalOrder<K, V> order) {
+        if (children.isEmpty() || parents.isEmpty()) return List.of();
+
+        int bound = Integer.MAX_VALUE;
+        if (order != null) {
+            bound = Integer.MIN_VALUE;
+            for (Dependency<K, V> child : children) bound = Math.max(bound, order.orderOf(child));
+        }
+
+        // Collect every node below a parent which could lie on a route to a child.
+        Map<Dependency<K, V>, Integer> ids = new IdentityHashMap<>();
+        List<Dependency<K, V>> nodes = new ArrayList<>();
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        for (Dependency<K, V> parent : parents) {
+            if (ids.putIfAbsent(parent, nodes.size()) == null) {
+                nodes.add(parent);
+                stack.push(parent);
+            }
+        }
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                if (ids.containsKey(dependant)) continue;
+                if (order != null && order.orderOf(dependant) > bound) continue;
+                ids.put(dependant, nodes.size());
+                nodes.add(dependant);
+                stack.push(dependant);
+            }
+        }
+
+        // Push the parents' bits down the collected nodes, dependencies first.
+        int words = (parents.size() + 63) >>> 6;
+        long[][] reach = new long[nodes.size()][words];
+        for (int p = 0; p < parents.size(); p++) reach[ids.get(parents.get(p))][p >>> 6] |= 1L << p;
+
+        int[] inDegree = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            if (!nodes.get(i).hasDependencies()) continue;
+            for (Dependency<K, V> dependency : nodes.get(i).getDependencies().values()) {
+                if (ids.containsKey(dependency)) inDegree[i]++;
+            }
+        }
+        Deque<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < nodes.size(); i++) if (inDegree[i] == 0) ready.add(i);
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            Dependency<K, V> node = nodes.get(i);
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                Integer j = ids.get(dependant);
+                if (j == null) continue;
+                for (int w = 0; w < words; w++) reach[j][w] |= reach[i][w];
+                if (--inDegree[j] == 0) ready.add(j);
+            }
+        }
+
+        // A parent below another parent is reached through that parent once the child is grafted onto it.
+        long[] covered = new long[words];
+        for (int p = 0; p < parents.size(); p++) {
+            long[] above = reach[ids.get(parents.get(p))];
+            for (int w = 0; w < words; w++) {
+                covered[w] |= w == p >>> 6 ? above[w] & ~(1L << p) : above[w];
+            }
+        }
+
+        List<DependencyForest.Edge<K, V>> edges = new ArrayList<>();
+        for (Dependency<K, V> child : children) {
+            Integer c = ids.get(child);
+            long[] reached = c == null ? null : reach[c];
+            for (int p = 0; p < parents.size(); p++) {
+                long bit = 1L << p;
+                if ((covered[p >>> 6] & bit) != 0) continue;
+                if (reached != null && (reached[p >>> 6] & bit) != 0) continue;
+                edges.add(new DependencyForest.Edge<>(child, parents.get(p)));
+            }
+        }
+        return edges;
+    }
+}
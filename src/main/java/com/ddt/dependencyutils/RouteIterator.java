@@ -0,0 +1,104 @@
+package com.ddt.dependencyutils;
+
+import java.util.*;
+
+/**
+ * Lazily enumerates the routes from a Dependency to its root nodes. Each route lists the Dependency objects
+ * passed through, starting with a direct dependency of the start node and ending with a root node. The start node
+ * itself is not included, so a root node has a single, empty route.
+ * <p>
+ * Routes are found one at a time as they are asked for, so a caller wanting only the first few never pays for
+ * enumerating the rest. In depth first mode memory is bounded by the depth of the graph. In shortest first mode
+ * routes come out in order of increasing length. That mode runs a best first search guided by each ancestor's
+ * memoized minDepth, so it only extends the partial routes which can still be completed within the current
+ * shortest length.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class RouteIterator<K, V> implements Iterator<List<Dependency<K, V>>> {
+    private final boolean shortestFirst;
+    private List<Dependency<K, V>> next;
+
+    // Depth first state. There is always one more frame than there are nodes on the path.
+    private final Deque<Iterator<Dependency<K, V>>> frames = new ArrayDeque<>();
+    private final List<Dependency<K, V>> path = new ArrayList<>();
+
+    // Shortest first state.
+    private final Queue<PartialRoute<K, V>> frontier = new PriorityQueue<>(
+            Comparator.comparingInt(PartialRoute::estimate));
+
+    private record PartialRoute<K, V>(Dependency<K, V> node, PartialRoute<K, V> previous, int length, int estimate) {
+    }
+
+    RouteIterator(Dependency<K, V> start, boolean shortestFirst) {
+        this.shortestFirst = shortestFirst;
+        if (start.isRootNode()) {
+            next = List.of();
+        } else if (shortestFirst) {
+            frontier.add(new PartialRoute<>(start, null, 0, start.minDepth()));
+            next = advance();
+        } else {
+            frames.push(start.getDependencies().values().iterator());
+            next = advance();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public List<Dependency<K, V>> next() {
+        if (next == null) throw new NoSuchElementException();
+        List<Dependency<K, V>> route = next;
+        next = (frames.isEmpty() && frontier.isEmpty()) ? null : advance();
+        return route;
+    }
+
+    private List<Dependency<K, V>> advance() {
+        return shortestFirst ? advanceShortestFirst() : advanceDepthFirst();
+    }
+
+    private List<Dependency<K, V>> advanceDepthFirst() {
+        while (!frames.isEmpty()) {
+            Iterator<Dependency<K, V>> frame = frames.peek();
+            if (!frame.hasNext()) {
+                frames.pop();
+                if (!path.isEmpty()) path.remove(path.size() - 1);
+                continue;
+            }
+
+            Dependency<K, V> dependency = frame.next();
+            if (dependency.isRootNode()) {
+                List<Dependency<K, V>> route = new ArrayList<>(path.size() + 1);
+                route.addAll(path);
+                route.add(dependency);
+                return route;
+            }
+            path.add(dependency);
+            frames.push(dependency.getDependencies().values().iterator());
+        }
+        return null;
+    }
+
+    private List<Dependency<K, V>> advanceShortestFirst() {
+        while (!frontier.isEmpty()) {
+            PartialRoute<K, V> partial = frontier.poll();
+            if (partial.previous() != null && partial.node().isRootNode()) {
+                List<Dependency<K, V>> route = new ArrayList<>(Collections.nCopies(partial.length(), null));
+                for (PartialRoute<K, V> step = partial; step.previous() != null; step = step.previous()) {
+                    route.set(step.length() - 1, step.node());
+                }
+                return route;
+            }
+            for (Dependency<K, V> dependency : partial.node().getDependencies().values()) {
+                int length = partial.length() + 1;
+                frontier.add(new PartialRoute<>(dependency, partial, length, length + dependency.minDepth()));
+            }
+        }
+        return null;
+    }
+}
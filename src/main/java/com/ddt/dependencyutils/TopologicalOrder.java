@@ -0,0 +1,298 @@
+package com.ddt.dependencyutils;
+
+import com.ddt.dependencyutils.exception.CircularDependencyException;
+
+import java.util.*;
+
+/**
+ * Incrementally maintained topological order of the Dependency objects belonging to a DependencyForest.
+ * <p>
+ * Every Dependency is given an order value which is lower than the order value of each of its dependants. When a
+ * new dependency is added, only the nodes whose order values lie between those of the two ends of the new edge
+ * can be affected, so validation and re-ordering are limited to that window (Pearce-Kelly). Adding a dependency
+ * whose order value is already lower than that of its dependant (the usual case when building a forest roots
+ * first) does not re-order anything.
+ * </p>
+ * <p>
+ * Dependency objects are ordered lazily. A Dependency which has not been seen before is ordered together with all
+ * the other unordered Dependency objects it is connected to, so trees built outside of the forest and then added
+ * to it are ordered in a single pass.
+ * </p>
+ * <p>
+ * Order values are held by the Dependency objects themselves, along with the order which gave them, so looking
+ * one up costs a field read and ordering a node doesn't box an Integer into a map entry. The order only keeps a
+ * list of the nodes it has ordered, so that it can rebuild or forget them all.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class TopologicalOrder<K, V> {
+    private List<Dependency<K, V>> ordered = new ArrayList<>();
+    // Entries of ordered which have since been removed, and may be ordered again further on.
+    private int removed = 0;
+    private int nextOrder = 0;
+
+    /**
+     * Validates that dependant may depend on newDependency and, if it may, moves the nodes between the two ends of
+     * the new edge so that the order stays topological once the edge is added.
+     *
+     * @param dependant     the Dependency on whose addDependency method was called.
+     * @param newDependency the Dependency being added.
+     * @throws CircularDependencyException if newDependency already depends on dependant, or if dependant already
+     *                                     depends on newDependency through some other Dependency.
+     */
+    synchronized void validateNewDependency(Dependency<K, V> dependant, Dependency<K, V> newDependency)
+            throws CircularDependencyException {
+        ensureOrdered(dependant);
+        ensureOrdered(newDependency);
+
+        int dependantOrder = dependant.topologicalOrder();
+        int dependencyOrder = newDependency.topologicalOrder();
+
+        if (dependencyOrder < dependantOrder) {
+            // No cycle is possible but the dependant may already have newDependency as an ancestor dependency.
+            if (search(dependant, newDependency, dependencyOrder, true, null))
+                throw new CircularDependencyException(newDependency);
+            return;
+        }
+
+        // Everything downstream of the dependant within the window must move after everything upstream of the
+        // new dependency within the window. If the new dependency is downstream, the edge would close a cycle.
+        List<Dependency<K, V>> forward = new ArrayList<>();
+        if (search(dependant, newDependency, dependencyOrder, false, forward))
+            throw new CircularDependencyException(newDependency);
+
+        List<Dependency<K, V>> backward = new ArrayList<>();
+        search(newDependency, null, dependantOrder, true, backward);
+
+        reorder(backward, forward);
+    }
+
+    /**
+     * Returns the order value of a Dependency, ordering it first if it has not been ordered yet.
+     *
+     * @param dependency the Dependency.
+     * @return its order value.
+     */
+    synchronized int orderOf(Dependency<K, V> dependency) {
+        ensureOrdered(dependency);
+        return dependency.topologicalOrder();
+    }
+
+    /**
+     * Forgets the order value of a Dependency which has been removed from the forest.
+     *
+     * @param dependency the removed Dependency.
+     */
+    synchronized void remove(Dependency<K, V> dependency) {
+        if (!isOrdered(dependency)) return;
+        dependency.assignTopologicalOrder(null, 0);
+        if (++removed > ordered.size() / 2) compact();
+    }
+
+    /**
+     * Shares out the order values held by the nodes given between them again, lowest first, in the order given.
+     *
+     * @param nodes ordered nodes, dependencies first.
+     */
+    synchronized void reassign(List<Dependency<K, V>> nodes) {
+        int[] slots = new int[nodes.size()];
+        int i = 0;
+        for (Dependency<K, V> node : nodes) slots[i++] = node.topologicalOrder();
+        Arrays.sort(slots);
+
+        i = 0;
+        for (Dependency<K, V> node : nodes) put(node, slots[i++]);
+    }
+
+    /**
+     * Forgets all order values.
+     */
+    synchronized void clear() {
+        for (Dependency<K, V> node : ordered) {
+            if (isOrdered(node)) node.assignTopologicalOrder(null, 0);
+        }
+        ordered = new ArrayList<>();
+        removed = 0;
+        nextOrder = 0;
+    }
+
+    /**
+     * @return true if the Dependency has an order value in this order.
+     */
+    boolean isOrdered(Dependency<K, V> dependency) {
+        return dependency.orderedBy() == this;
+    }
+
+    private void put(Dependency<K, V> dependency, int value) {
+        if (!isOrdered(dependency)) ordered.add(dependency);
+        dependency.assignTopologicalOrder(this, value);
+    }
+
+    /**
+     * Drops the removed entries from the list of ordered nodes, along with any duplicates left by nodes which were
+     * removed and then ordered again.
+     */
+    private void compact() {
+        Set<Dependency<K, V>> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Dependency<K, V>> compacted = new ArrayList<>();
+        for (Dependency<K, V> node : ordered) {
+            if (isOrdered(node) && live.add(node)) compacted.add(node);
+        }
+        ordered = compacted;
+        removed = 0;
+    }
+
+    /**
+     * Depth first search limited to the window of order values bounded by bound. Searching upwards (through
+     * dependencies) only visits nodes with order values of at least bound. Searching downwards (through dependants)
+     * only visits nodes with order values of at most bound.
+     *
+     * @param start   the node to start from.
+     * @param target  the node to look for, or null to visit the whole window.
+     * @param bound   the order value bounding the window.
+     * @param upwards true to search through dependencies, false to search through dependants.
+     * @param visited if not null, receives every node visited.
+     * @return true if target was found.
+     */
+    private boolean search(Dependency<K, V> start, Dependency<K, V> target, int bound, boolean upwards,
+                           List<Dependency<K, V>> visited) {
+        Set<Dependency<K, V>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        seen.add(start);
+        stack.push(start);
+
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            if (visited != null) visited.add(node);
+
+            Map<K, Dependency<K, V>> next = upwards ? node.getDependencies() : node.getDependants();
+            if (next == null) continue;
+
+            for (Dependency<K, V> neighbour : next.values()) {
+                if (neighbour == target) return true;
+                if (!isOrdered(neighbour)) continue;
+                int neighbourOrder = neighbour.topologicalOrder();
+                if (upwards ? neighbourOrder < bound : neighbourOrder > bound) continue;
+                if (seen.add(neighbour)) stack.push(neighbour);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Re-uses the order values held by the nodes of both searches, giving the lowest to the upstream nodes.
+     *
+     * @param backward nodes upstream of the new dependency.
+     * @param forward  nodes downstream of the dependant.
+     */
+    private void reorder(List<Dependency<K, V>> backward, List<Dependency<K, V>> forward) {
+        Comparator<Dependency<K, V>> byOrder = Comparator.comparingInt(Dependency::topologicalOrder);
+        backward.sort(byOrder);
+        forward.sort(byOrder);
+
+        List<Dependency<K, V>> nodes = new ArrayList<>(backward);
+        nodes.addAll(forward);
+        reassign(nodes);
+    }
+
+    /**
+     * Orders a Dependency, along with every unordered Dependency connected to it, if it has not been ordered yet.
+     *
+     * @param dependency the Dependency to order.
+     */
+    private void ensureOrdered(Dependency<K, V> dependency) {
+        if (isOrdered(dependency)) return;
+        if (!dependency.hasDependencies() && !dependency.hasDependants()) {
+            put(dependency, nextOrder++);
+            return;
+        }
+
+        // Collect the unordered component.
+        Set<Dependency<K, V>> component = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Dependency<K, V>> stack = new ArrayDeque<>();
+        component.add(dependency);
+        stack.push(dependency);
+        while (!stack.isEmpty()) {
+            Dependency<K, V> node = stack.pop();
+            for (Map<K, Dependency<K, V>> next : Arrays.asList(node.getDependencies(), node.getDependants())) {
+                if (next == null) continue;
+                for (Dependency<K, V> neighbour : next.values()) {
+                    if (!isOrdered(neighbour) && component.add(neighbour)) stack.push(neighbour);
+                }
+            }
+        }
+
+        // Newly ordered nodes go after everything already ordered. That is only wrong if an ordered node depends
+        // on one of them, which can only happen if the graph was wired behind the forest's back.
+        boolean consistent = true;
+        for (Dependency<K, V> node : kahn(component)) {
+            put(node, nextOrder++);
+        }
+        for (Dependency<K, V> node : component) {
+            if (node.hasDependants()
+                    && node.getDependants().values().stream().anyMatch(d -> !component.contains(d))) {
+                consistent = false;
+                break;
+            }
+        }
+        if (!consistent) rebuild();
+    }
+
+    /**
+     * Recomputes the order of every node from scratch.
+     */
+    private void rebuild() {
+        Set<Dependency<K, V>> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Dependency<K, V> node : ordered) {
+            if (isOrdered(node)) all.add(node);
+        }
+        clear();
+        for (Dependency<K, V> node : kahn(all)) {
+            put(node, nextOrder++);
+        }
+    }
+
+    /**
+     * Kahn's algorithm restricted to the given nodes. Edges to nodes outside the set are ignored.
+     *
+     * @param nodes the nodes to sort.
+     * @return the nodes, dependencies first.
+     */
+    private List<Dependency<K, V>> kahn(Set<Dependency<K, V>> nodes) {
+        Map<Dependency<K, V>, Integer> inDegree = new IdentityHashMap<>();
+        Deque<Dependency<K, V>> ready = new ArrayDeque<>();
+        for (Dependency<K, V> node : nodes) {
+            int degree = 0;
+            if (node.hasDependencies()) {
+                for (Dependency<K, V> dependency : node.getDependencies().values()) {
+                    if (nodes.contains(dependency)) degree++;
+                }
+            }
+            inDegree.put(node, degree);
+            if (degree == 0) ready.add(node);
+        }
+
+        List<Dependency<K, V>> sorted = new ArrayList<>(nodes.size());
+        while (!ready.isEmpty()) {
+            Dependency<K, V> node = ready.poll();
+            sorted.add(node);
+            if (!node.hasDependants()) continue;
+            for (Dependency<K, V> dependant : node.getDependants().values()) {
+                Integer degree = inDegree.get(dependant);
+                if (degree == null) continue;
+                inDegree.put(dependant, degree - 1);
+                if (degree == 1) ready.add(dependant);
+            }
+        }
+
+        // Only reachable if the graph already contains a cycle. Keep every node ordered regardless.
+        if (sorted.size() < nodes.size()) {
+            for (Dependency<K, V> node : nodes) {
+                if (inDegree.get(node) > 0) sorted.add(node);
+            }
+        }
+        return sorted;
+    }
+}
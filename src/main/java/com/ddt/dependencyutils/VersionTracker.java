@@ -0,0 +1,91 @@
+package com.ddt.dependencyutils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps the immutable versions of a DependencyForest returned by DependencyForest.snapshot.
+ * <p>
+ * Each change to the forest is applied to a pending version as it is made. Changes to the shape of the graph are
+ * made under the forest's write lock, so the pending version can be half way through a transaction; it is only
+ * published once the outermost transaction commits. Finished flags change under the read lock, in parallel with
+ * each other, so they are applied with compare-and-set and published at once unless a transaction is running on
+ * the same thread. A version is only published over an older one, so readers never go back in time. A transaction
+ * which rolls back puts back the pending version it started from.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class VersionTracker<K, V> {
+    private final DependencyForest<K, V> forest;
+    private final AtomicReference<ForestVersion<K, V>> pending;
+    private final AtomicReference<ForestVersion<K, V>> published;
+
+    /**
+     * Starts tracking the forest from the version given. The caller holds the forest's write lock.
+     *
+     * @param forest the forest.
+     * @param start  a version matching the forest as it is.
+     */
+    VersionTracker(DependencyForest<K, V> forest, ForestVersion<K, V> start) {
+        this.forest = forest;
+        this.pending = new AtomicReference<>(start);
+        this.published = new AtomicReference<>(start);
+    }
+
+    /**
+     * @return a version holding every Dependency in the forest given, and the edges between them.
+     */
+    static <K, V> ForestVersion<K, V> build(DependencyForest<K, V> forest) {
+        return ForestVersion.<K, V>empty().withEdges(forest.getAllNodes().values())
+                .withCodecs(forest.getKeyCodec(), forest.getValueCodec());
+    }
+
+    /**
+     * @return the latest published version.
+     */
+    ForestVersion<K, V> published() {
+        return published.get();
+    }
+
+    void nodeJoined(Dependency<K, V> dependency) {
+        apply(version -> version.withNode(dependency));
+    }
+
+    void edgeAdded(Dependency<K, V> dependant, Dependency<K, V> dependency) {
+        apply(version -> version.withEdge(dependant, dependency));
+    }
+
+    void edgesJoined(Collection<Dependency<K, V>> dependants) {
+        apply(version -> version.withEdges(dependants));
+    }
+
+    void removing(Dependency<K, V> dependency) {
+        apply(version -> version.withoutNode(dependency.getDataKey()));
+    }
+
+    void cleared() {
+        apply(ForestVersion::cleared);
+    }
+
+    void finishedChanged(Dependency<K, V> dependency) {
+        apply(version -> version.withFinished(dependency));
+        if (!forest.getLock().inTransaction()) publish();
+    }
+
+    /**
+     * Publishes the pending version, unless a newer one has been published already.
+     */
+    void publish() {
+        ForestVersion<K, V> next = pending.get().withCodecs(forest.getKeyCodec(), forest.getValueCodec());
+        published.accumulateAndGet(next, (current, candidate) ->
+                candidate.getNumber() >= current.getNumber() ? candidate : current);
+    }
+
+    private void apply(UnaryOperator<ForestVersion<K, V>> change) {
+        ForestVersion<K, V> before = pending.getAndUpdate(change);
+        ForestLock.undo(() -> pending.set(before));
+    }
+}
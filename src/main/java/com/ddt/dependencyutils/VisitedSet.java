@@ -0,0 +1,100 @@
+package com.ddt.dependencyutils;
+
+/**
+ * Visited set for graph traversals: an open-addressed hash set of Dependency objects compared by identity. Each
+ * thread keeps one instance which is reused from one traversal to the next, so a traversal costs no allocation
+ * beyond growing the table the first time a traversal visits more nodes than it holds. Only the slots which were
+ * filled are cleared on release, keeping the cost in proportion to the nodes visited, and a table grown past
+ * RETAINED_CAPACITY by one large traversal is dropped rather than kept by the thread.
+ */
+final class VisitedSet {
+    private static final ThreadLocal<VisitedSet> reusable = ThreadLocal.withInitial(VisitedSet::new);
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int RETAINED_CAPACITY = 1 << 16;
+
+    private Object[] table = new Object[INITIAL_CAPACITY];
+    // The slots filled, in the order they were filled. The table is kept at most half full.
+    private int[] marked = new int[INITIAL_CAPACITY / 2];
+    private int size;
+    private boolean inUse;
+
+    private VisitedSet() {
+    }
+
+    /**
+     * @return this thread's VisitedSet, or a new one if it is already in use by an enclosing traversal. Must be
+     * released when the traversal is over.
+     */
+    static VisitedSet acquire() {
+        VisitedSet set = reusable.get();
+        if (set.inUse) return new VisitedSet();
+        set.inUse = true;
+        return set;
+    }
+
+    /**
+     * @param node the node to mark visited.
+     * @return true if it had not been visited before.
+     */
+    boolean add(Object node) {
+        if (size == marked.length) grow();
+        int mask = table.length - 1;
+        int i = slot(node, mask);
+        while (table[i] != null) {
+            if (table[i] == node) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = node;
+        marked[size++] = i;
+        return true;
+    }
+
+    boolean contains(Object node) {
+        int mask = table.length - 1;
+        for (int i = slot(node, mask); table[i] != null; i = (i + 1) & mask) {
+            if (table[i] == node) return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the set so that the next traversal on this thread can use it.
+     */
+    void release() {
+        if (table.length > RETAINED_CAPACITY) {
+            table = new Object[INITIAL_CAPACITY];
+            marked = new int[INITIAL_CAPACITY / 2];
+        } else {
+            for (int i = 0; i < size; i++) {
+                table[marked[i]] = null;
+            }
+        }
+        size = 0;
+        inUse = false;
+    }
+
+    private void grow() {
+        Object[] old = table;
+        int[] oldMarked = marked;
+        table = new Object[old.length * 2];
+        marked = new int[table.length / 2];
+        int mask = table.length - 1;
+        for (int n = 0; n < size; n++) {
+            Object node = old[oldMarked[n]];
+            int i = slot(node, mask);
+            while (table[i] != null) i = (i + 1) & mask;
+            table[i] = node;
+            marked[n] = i;
+        }
+    }
+
+    private static int slot(Object node, int mask) {
+        // Spreads the identity hash so that nearby hashes don't fill one run of slots.
+        int h = System.identityHashCode(node) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,33 @@
+package com.ddt.dependencyutils.exception;
+
+import com.ddt.dependencyutils.DependencyForest;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thrown when a batch of dependencies is rejected because some of them would close one or more cycles. Every
+ * offending edge is reported together rather than just the first one found.
+ */
+public class CircularDependenciesException extends CircularDependencyException {
+    private final List<DependencyForest.Edge<?, ?>> edges;
+
+    public CircularDependenciesException(List<DependencyForest.Edge<?, ?>> edges) {
+        super(edges.get(0).dependency());
+        this.edges = List.copyOf(edges);
+    }
+
+    /**
+     * @return the edges which lie on a cycle.
+     */
+    public List<DependencyForest.Edge<?, ?>> getEdges() {
+        return edges;
+    }
+
+    @Override
+    public String getMessage() {
+        return edges.stream()
+                .map(edge -> "[" + edge.dependant().getDataKey() + " -> " + edge.dependency().getDataKey() + "]")
+                .collect(Collectors.joining(", ", edges.size() + " dependencies would be circular: ", ""));
+    }
+}
@@ -1,14 +1,50 @@
 package com.ddt.dependencyutils;
 
+import com.ddt.dependencyutils.exception.CircularDependenciesException;
 import com.ddt.dependencyutils.exception.CircularDependencyException;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -434,6 +470,27 @@ public class DependencyTest
 		assertEquals(dep1, dep2);
 	}
 
+	@Test
+	public void equalDependenciesHashAlike() {
+		Dependency<String, String> dep1 = new Dependency<>("1", "Dep 1");
+		Dependency<String, String> dep2 = new Dependency<>("1", "Dep 1");
+		assertEquals(dep1.hashCode(), dep2.hashCode());
+
+		Set<Dependency<String, String>> set = new HashSet<>(List.of(dep1));
+		assertTrue(set.contains(dep2));
+		dep1.setFinished(true);
+		assertTrue(set.contains(dep1));
+		assertFalse(set.contains(dep2));
+
+		DependencyForest<String, String> dependencyForest = new DependencyForest<>();
+		dependencyForest.addDependency(dep1);
+		// dep1 is finished so an unfinished copy doesn't match.
+		assertNull(dependencyForest.get(new Dependency<>("1", "Dep 1")));
+		dep2.setFinished(true);
+		assertSame(dep1, dependencyForest.get(dep2));
+		assertNull(dependencyForest.get(new Dependency<>("1", "Dep one")));
+	}
+
 	@Test
 	public void testEqualsWithSameDataKey() {
 
@@ -621,4 +678,1760 @@ public class DependencyTest
 		assertEquals(3, dependencyForest.getOutermostLeafDependencies().size());
 		assertEquals(4, dependencyForest.getDependenciesWithNoDependencies().size());
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void forestMembersAreValidatedAgainstTopologicalOrder() throws CircularDependencyException {
+		DependencyForest<String, String> dependencyForest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("A", "A Dependency");
+		Dependency<String, String> b = new Dependency<>("B", "B Dependency");
+		Dependency<String, String> c = new Dependency<>("C", "C Dependency");
+		Dependency<String, String> d = new Dependency<>("D", "D Dependency");
+		dependencyForest.addDependency(a);
+		dependencyForest.addDependency(b);
+		dependencyForest.addDependency(c);
+		dependencyForest.addDependency(d);
+
+		// Added leaves first so that every edge goes against the order the nodes were first seen in.
+		// D -> C -> B -> A
+		a.addDependency(b);
+		b.addDependency(c);
+		c.addDependency(d);
+
+		CircularDependencyException thrown = assertThrows(
+				CircularDependencyException.class,
+				() -> d.addDependency(a));
+		assertTrue(thrown.getMessage().contains("\"dataKey\":\"A\""));
+
+		// A already depends on D through B and C.
+		assertThrows(CircularDependencyException.class, () -> a.addDependency(d));
+
+		// Re-adding a direct dependency is fine.
+		assertDoesNotThrow(() -> b.addDependency(c));
+		assertEquals(1, dependencyForest.getRootNodes().size());
+	}
+
+	@Test
+	public void reachabilityIndexAgreesWithSearch() throws CircularDependencyException {
+		DependencyForest<String, String> dependencyForest = new DependencyForest<>();
+		dependencyForest.setReachabilityIndexed(true);
+
+		//      B
+		// A ->   -> D -> E
+		//      C
+		Dependency<String, String> a = new Dependency<>("A", "A Dependency");
+		Dependency<String, String> b = new Dependency<>("B", "B Dependency");
+		Dependency<String, String> c = new Dependency<>("C", "C Dependency");
+		Dependency<String, String> d = new Dependency<>("D", "D Dependency");
+		Dependency<String, String> e = new Dependency<>("E", "E Dependency");
+		dependencyForest.addDependency(a);
+		b.addDependency(a);
+		c.addDependency(a);
+		d.addDependency(b);
+		d.addDependency(c);
+		e.addDependency(d);
+
+		assertTrue(e.hasDependency(a));
+		assertTrue(a.hasDependant(e));
+		assertFalse(a.hasDependency(e));
+		assertFalse(b.hasDependency(c));
+		assertSame(a, e.getDependency(new Dependency<>("A", "A Dependency")));
+		assertSame(e, b.getDependant(e));
+
+		// Removing B and C grafts D straight on to A.
+		e.removeDependency(b);
+		e.removeDependency(c);
+		assertFalse(e.hasDependency(b));
+		assertTrue(d.hasDependency(a));
+		assertTrue(a.hasDependant(e));
+
+		dependencyForest.setReachabilityIndexed(false);
+		assertFalse(e.hasDependency(b));
+		assertTrue(e.hasDependency(a));
+	}
+
+	@Test
+	public void reachabilityIndexFollowsAdditionsAndRemovalsWithoutRebuilding() throws Exception {
+		DependencyForest<Integer, String> forest = new DependencyForest<>();
+		forest.setReachabilityIndexed(true);
+		Random random = new Random(3);
+		List<Dependency<Integer, String>> nodes = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			Dependency<Integer, String> node = new Dependency<>(i, "node");
+			if (!nodes.isEmpty()) {
+				node.addDependency(nodes.get(random.nextInt(nodes.size())));
+			} else {
+				forest.addDependency(node);
+			}
+			nodes.add(node);
+			for (int j = random.nextInt(3); j > 0; j--) {
+				Dependency<Integer, String> other = nodes.get(random.nextInt(nodes.size()));
+				// An edge may neither close a cycle nor repeat an ancestor.
+				if (other != node && !other.hasDependency(node) && !node.hasDependency(other)) {
+					node.addDependency(other);
+				}
+			}
+		}
+		// Every change brought the index up to date as it committed, so queries only ever read it.
+		ReachabilityIndex<Integer, String> index = forest.getReachabilityIndex();
+		assertFalse(index.isStale());
+
+		for (int round = 0; round < 100; round++) {
+			Dependency<Integer, String> removed = nodes.remove(random.nextInt(nodes.size()));
+			forest.removeDependency(removed);
+			Dependency<Integer, String> added = new Dependency<>(1_000 + round, "node");
+			added.addDependency(nodes.get(random.nextInt(nodes.size())));
+			nodes.add(added);
+			assertFalse(index.isStale());
+
+			for (int check = 0; check < 20; check++) {
+				Dependency<Integer, String> a = nodes.get(random.nextInt(nodes.size()));
+				Dependency<Integer, String> b = nodes.get(random.nextInt(nodes.size()));
+				assertEquals(reaches(a, b), a.hasDependency(b), a.getDataKey() + " -> " + b.getDataKey());
+			}
+		}
+		assertFalse(index.isStale());
+	}
+
+	@Test
+	public void reachabilityIndexIsRebuiltBeforeAJoiningTreeCommits() throws Exception {
+		DependencyForest<Integer, String> forest = new DependencyForest<>();
+		forest.setReachabilityIndexed(true);
+		Dependency<Integer, String> root = new Dependency<>(0, "root");
+		forest.addDependency(root);
+		ReachabilityIndex<Integer, String> index = forest.getReachabilityIndex();
+
+		// A loose tree whose nodes can't be indexed one at a time as they join.
+		Dependency<Integer, String> top = new Dependency<>(1, "top");
+		Dependency<Integer, String> middle = new Dependency<>(2, "middle");
+		Dependency<Integer, String> bottom = new Dependency<>(3, "bottom");
+		top.addDependency(middle);
+		middle.addDependency(bottom);
+		bottom.addDependency(root);
+
+		assertFalse(index.isStale());
+		assertTrue(index.covers(top, root));
+		assertTrue(index.dependsOn(top, root));
+		assertFalse(index.dependsOn(root, top));
+		assertTrue(top.hasDependency(root));
+	}
+
+	private static boolean reaches(Dependency<Integer, String> from, Dependency<Integer, String> to) {
+		Set<Dependency<Integer, String>> visited = new HashSet<>();
+		Deque<Dependency<Integer, String>> stack = new ArrayDeque<>(List.of(from));
+		while (!stack.isEmpty()) {
+			Dependency<Integer, String> node = stack.pop();
+			if (!node.hasDependencies()) continue;
+			for (Dependency<Integer, String> dependency : node.getDependencies().values()) {
+				if (dependency == to) return true;
+				if (visited.add(dependency)) stack.push(dependency);
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void rootAndLeafSetsFollowEdgesFromOutsideTheForest() throws CircularDependencyException {
+		DependencyForest<String, String> dependencyForest = new DependencyForest<>();
+		Dependency<String, String> x = new Dependency<>("X", "X Dependency");
+		Dependency<String, String> y = new Dependency<>("Y", "Y Dependency");
+		Dependency<String, String> z = new Dependency<>("Z", "Z Dependency");
+		y.addDependency(z);
+		dependencyForest.addDependency(x);
+
+		List<Dependency<String, String>> leavesBefore = dependencyForest.getOutermostLeafDependencies();
+
+		// Y and Z join the forest through X.
+		y.addDependency(x);
+		assertEquals(3, dependencyForest.size());
+		assertSame(y, dependencyForest.get("Y"));
+		assertEquals(List.of(y), dependencyForest.getOutermostLeafDependencies());
+		assertEquals(2, dependencyForest.getRootNodes().size());
+		assertTrue(dependencyForest.getRootNodes().containsAll(List.of(x, z)));
+
+		// Earlier snapshots are not affected.
+		assertEquals(List.of(x), leavesBefore);
+		assertThrows(UnsupportedOperationException.class, () -> leavesBefore.add(y));
+	}
+
+	@Test
+	public void addAllValidatesTheWholeBatchOnce() throws CircularDependencyException {
+		DependencyForest<Integer, String> dependencyForest = new DependencyForest<>();
+		Dependency<Integer, String> existing = new Dependency<>(0, "dep 0");
+		dependencyForest.addDependency(existing);
+
+		// 1 and 2 depend on 0, 3 depends on 1 and 2. The second copy of 1 is the same node.
+		List<DependencyForest.Edge<Integer, String>> edges = List.of(
+				new DependencyForest.Edge<>(new Dependency<>(1, "dep 1"), new Dependency<>(0, "dep 0")),
+				new DependencyForest.Edge<>(new Dependency<>(2, "dep 2"), existing),
+				new DependencyForest.Edge<>(new Dependency<>(3, "dep 3"), new Dependency<>(1, "dep 1")),
+				new DependencyForest.Edge<>(new Dependency<>(3, "dep 3"), new Dependency<>(2, "dep 2")));
+		dependencyForest.addAll(edges);
+
+		assertEquals(4, dependencyForest.size());
+		assertEquals(List.of(existing), dependencyForest.getRootNodes());
+		assertEquals(1, dependencyForest.getOutermostLeafDependencies().size());
+		assertTrue(dependencyForest.get(3).hasDependency(existing));
+		assertSame(existing, dependencyForest.get(1).getDependencies().get(0));
+
+		// Both edges closing cycles are reported and nothing is added.
+		Dependency<Integer, String> four = new Dependency<>(4, "dep 4");
+		CircularDependenciesException thrown = assertThrows(CircularDependenciesException.class,
+				() -> dependencyForest.addAll(List.of(
+						new DependencyForest.Edge<>(four, dependencyForest.get(3)),
+						new DependencyForest.Edge<>(existing, four),
+						new DependencyForest.Edge<>(dependencyForest.get(1), dependencyForest.get(2)),
+						new DependencyForest.Edge<>(dependencyForest.get(2), dependencyForest.get(1)))));
+		assertEquals(4, thrown.getEdges().size());
+		assertEquals(4, dependencyForest.size());
+		assertFalse(existing.hasDependencies());
+
+		// The incremental order picks up from the bulk one.
+		assertThrows(CircularDependencyException.class, () -> existing.addDependency(dependencyForest.get(3)));
+	}
+
+	@Test
+	public void addAllRejectsADependencyWhoseKeyIsTaken() throws CircularDependenciesException {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		forest.addDependency(a);
+
+		// A different A can't be wired in beside the member, and nothing else in the batch is added either.
+		IllegalArgumentException thrown = assertThrows(IllegalArgumentException.class, () -> forest.addAll(List.of(
+				new DependencyForest.Edge<>(b, a),
+				new DependencyForest.Edge<>(new Dependency<>("C", "c"), new Dependency<>("A", "another a")))));
+		assertTrue(thrown.getMessage().contains("A"));
+		assertEquals(Set.of("A"), forest.getAllNodes().keySet());
+		assertSame(a, forest.get("A"));
+		assertFalse(a.hasDependants());
+		assertFalse(b.hasDependencies());
+
+		// Nor can two different Dependency objects with one key in the same batch.
+		assertThrows(IllegalArgumentException.class, () -> forest.addAll(List.of(
+				new DependencyForest.Edge<>(new Dependency<>("D", "d"), a),
+				new DependencyForest.Edge<>(new Dependency<>("D", "another d"), a))));
+		assertEquals(Set.of("A"), forest.getAllNodes().keySet());
+
+		// An equal copy stands for the member.
+		forest.addAll(List.of(new DependencyForest.Edge<>(b, new Dependency<>("A", "a"))));
+		assertEquals(Set.of("A", "B"), forest.getAllNodes().keySet());
+		assertSame(a, b.getDependencies().get("A"));
+	}
+
+	@Test
+	public void addAllKeepsTheOrderTopologicalAcrossBatches() {
+		DependencyForest<Integer, String> forest = new DependencyForest<>();
+		Random random = new Random(5);
+		List<Dependency<Integer, String>> nodes = new ArrayList<>();
+		for (int i = 0; i < 200; i++) nodes.add(new Dependency<>(i, "node"));
+
+		for (int batch = 0; batch < 300; batch++) {
+			List<DependencyForest.Edge<Integer, String>> edges = new ArrayList<>();
+			for (int i = random.nextInt(8); i >= 0; i--) {
+				Dependency<Integer, String> dependant = nodes.get(random.nextInt(nodes.size()));
+				Dependency<Integer, String> dependency = nodes.get(random.nextInt(nodes.size()));
+				if (dependant != dependency) edges.add(new DependencyForest.Edge<>(dependant, dependency));
+			}
+			Map<Integer, Set<Integer>> before = dependenciesOf(nodes);
+			Map<Integer, Set<Integer>> after = dependenciesOf(nodes);
+			edges.forEach(edge -> after.get(edge.dependant().getDataKey()).add(edge.dependency().getDataKey()));
+
+			if (hasCycle(after)) {
+				assertThrows(CircularDependenciesException.class, () -> forest.addAll(edges));
+				assertEquals(before, dependenciesOf(nodes));
+			} else {
+				assertDoesNotThrow(() -> forest.addAll(edges));
+				assertEquals(after, dependenciesOf(nodes));
+			}
+
+			// Every dependency comes before its dependants.
+			TopologicalOrder<Integer, String> order = forest.getTopologicalOrder();
+			for (Dependency<Integer, String> node : forest.getAllNodes().values()) {
+				if (!node.hasDependencies()) continue;
+				assertTrue(order.isOrdered(node));
+				for (Dependency<Integer, String> dependency : node.getDependencies().values()) {
+					assertTrue(order.isOrdered(dependency));
+					assertTrue(dependency.topologicalOrder() < node.topologicalOrder(),
+							dependency.getDataKey() + " before " + node.getDataKey());
+				}
+			}
+		}
+	}
+
+	private static Map<Integer, Set<Integer>> dependenciesOf(List<Dependency<Integer, String>> nodes) {
+		Map<Integer, Set<Integer>> dependencies = new HashMap<>();
+		for (Dependency<Integer, String> node : nodes) {
+			dependencies.put(node.getDataKey(),
+					node.hasDependencies() ? new HashSet<>(node.getDependencies().keySet()) : new HashSet<>());
+		}
+		return dependencies;
+	}
+
+	private static boolean hasCycle(Map<Integer, Set<Integer>> dependencies) {
+		// Kahn's algorithm leaves out every node on or downstream of a cycle.
+		Map<Integer, Integer> remaining = new HashMap<>();
+		dependencies.forEach((node, next) -> remaining.put(node, next.size()));
+		Deque<Integer> ready = new ArrayDeque<>();
+		remaining.forEach((node, count) -> {
+			if (count == 0) ready.add(node);
+		});
+		int sorted = 0;
+		while (!ready.isEmpty()) {
+			int node = ready.poll();
+			sorted++;
+			for (Map.Entry<Integer, Set<Integer>> entry : dependencies.entrySet()) {
+				if (entry.getValue().contains(node) && remaining.merge(entry.getKey(), -1, Integer::sum) == 0) {
+					ready.add(entry.getKey());
+				}
+			}
+		}
+		return sorted < dependencies.size();
+	}
+
+	@Test
+	public void routesAreEnumeratedLazily() throws CircularDependencyException {
+		// A chain of diamonds: each level doubles the number of routes to the single root.
+		Dependency<String, String> bottom = diamonds(new Dependency<>("root", "root"), 20);
+		Dependency<String, String> leaf = new Dependency<>("leaf", "leaf");
+		Dependency<String, String> root = new Dependency<>("short cut", "short cut");
+		leaf.addDependency(bottom);
+		leaf.addDependency(root);
+
+		List<List<Dependency<String, String>>> shortest = leaf.getRoutesToRootNodes(3);
+		assertEquals(3, shortest.size());
+		assertEquals(List.of(root), shortest.get(0));
+		assertEquals(41, shortest.get(1).size());
+		assertEquals("root", shortest.get(1).get(40).getDataKey());
+
+		assertEquals(5, leaf.streamRoutesToRootNodes(false).limit(5).count());
+		assertEquals(List.of(List.of()), root.getRoutesToRootNodes());
+
+		// Counted and measured without enumerating a million routes.
+		assertEquals((1L << 20) + 1, leaf.countRoutesToRoots());
+		assertEquals(1, leaf.minDepth());
+		assertEquals(41, leaf.maxDepth());
+		assertEquals(shortest.get(1).size(), leaf.longestRouteToRoot().size());
+		assertEquals("root", leaf.longestRouteToRoot().get(40).getDataKey());
+
+		// Memoized values follow edge changes.
+		Dependency<String, String> deeper = new Dependency<>("deeper", "deeper");
+		root.addDependency(deeper);
+		assertEquals(2, leaf.minDepth());
+		assertEquals(deeper, leaf.getRoutesToRootNodes(1).get(0).get(1));
+	}
+
+	/** Stacks {@code levels} diamonds (Ln and Rn both depending on the level below, Jn on both) on top of {@code root}. */
+	private static Dependency<String, String> diamonds(Dependency<String, String> root, int levels)
+			throws CircularDependencyException {
+		Dependency<String, String> top = root;
+		for (int level = 0; level < levels; level++) {
+			Dependency<String, String> left = new Dependency<>("L" + level, "left");
+			Dependency<String, String> right = new Dependency<>("R" + level, "right");
+			Dependency<String, String> join = new Dependency<>("J" + level, "join");
+			left.addDependency(top);
+			right.addDependency(top);
+			join.addDependency(left);
+			join.addDependency(right);
+			top = join;
+		}
+		return top;
+	}
+
+	@Test
+	public void executorRunsEachDependencyAfterItsDependencies() throws Exception {
+		Dependency<String, String> base = new Dependency<>("base", "base");
+		Dependency<String, String> left = new Dependency<>("left", "left");
+		Dependency<String, String> right = new Dependency<>("right", "right");
+		Dependency<String, String> top = new Dependency<>("top", "top");
+		Dependency<String, String> broken = new Dependency<>("broken", "broken");
+		Dependency<String, String> blocked = new Dependency<>("blocked", "blocked");
+		Dependency<String, String> done = new Dependency<>("done", "done");
+		left.addDependency(base);
+		right.addDependency(base);
+		top.addDependency(left);
+		top.addDependency(right);
+		broken.addDependency(done);
+		blocked.addDependency(broken);
+		done.setFinished(true);
+
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		forest.addDependency(top);
+		forest.addDependency(blocked);
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<String> ran = Collections.synchronizedList(new ArrayList<>());
+			List<String> early = Collections.synchronizedList(new ArrayList<>());
+			DependencyExecutor.Report<String> report = new DependencyExecutor<>(forest, pool).execute(dependency -> {
+				if (dependency.hasDependencies()
+						&& !dependency.getDependencies().values().stream().allMatch(Dependency::isFinished)) {
+					early.add(dependency.getDataKey());
+				}
+				if (dependency == broken) throw new IllegalStateException("broken");
+				ran.add(dependency.getDataKey());
+			}).get(10, TimeUnit.SECONDS);
+
+			assertEquals(List.of(), early);
+			assertEquals(Set.of("base", "left", "right", "top"), new HashSet<>(ran));
+			assertEquals("top", ran.get(3));
+			assertEquals(DependencyExecutor.Outcome.FAILED, report.outcomes().get("broken"));
+			assertEquals(DependencyExecutor.Outcome.SKIPPED, report.outcomes().get("blocked"));
+			assertFalse(report.outcomes().containsKey("done"));
+			assertFalse(blocked.isFinished());
+			assertTrue(top.isFinished());
+			assertEquals(4, report.succeeded());
+			assertEquals(5, report.latencies().size());
+			assertInstanceOf(IllegalStateException.class, report.failures().get("broken"));
+
+			// Everything is finished now, so a second run has nothing left to do except what failed.
+			DependencyExecutor<String, String> executor = new DependencyExecutor<>(forest, pool);
+			CountDownLatch started = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			CompletableFuture<DependencyExecutor.Report<String>> run = executor.execute(dependency -> {
+				started.countDown();
+				release.await();
+			});
+			started.await();
+			executor.cancel();
+			release.countDown();
+			report = run.get(10, TimeUnit.SECONDS);
+			assertEquals(DependencyExecutor.Outcome.SUCCEEDED, report.outcomes().get("broken"));
+			assertEquals(DependencyExecutor.Outcome.CANCELLED, report.outcomes().get("blocked"));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void readyNodesFollowFinishedFlags() throws Exception {
+		Dependency<String, String> base = new Dependency<>("base", "base");
+		Dependency<String, String> left = new Dependency<>("left", "left");
+		Dependency<String, String> right = new Dependency<>("right", "right");
+		Dependency<String, String> top = new Dependency<>("top", "top");
+		left.addDependency(base);
+		right.addDependency(base);
+		top.addDependency(left);
+		top.addDependency(right);
+
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		forest.addDependency(top);
+		assertEquals(List.of(base), forest.getReadyNodes());
+
+		base.setFinished(true);
+		assertEquals(Set.of(left, right), new HashSet<>(forest.getReadyNodes()));
+		left.setFinished(true);
+		assertEquals(List.of(right), forest.getReadyNodes());
+		right.setFinished(true);
+		assertEquals(List.of(top), forest.getReadyNodes());
+
+		// Un-finishing and new dependencies take ready nodes back out.
+		left.setFinished(false);
+		assertEquals(List.of(left), forest.getReadyNodes());
+		Dependency<String, String> extra = new Dependency<>("extra", "extra");
+		left.addDependency(extra);
+		assertEquals(List.of(extra), forest.getReadyNodes());
+		extra.setFinished(true);
+		assertEquals(List.of(left), forest.awaitReadyNodes(1, TimeUnit.SECONDS));
+
+		// Removing the only unfinished dependency makes its dependants ready.
+		Dependency<String, String> blocker = new Dependency<>("blocker", "blocker");
+		Dependency<String, String> waiting = new Dependency<>("waiting", "waiting");
+		waiting.addDependency(blocker);
+		waiting.addDependency(base);
+		forest.addDependency(waiting);
+		assertFalse(forest.getReadyNodes().contains(waiting));
+		waiting.removeDependency(blocker);
+		assertTrue(forest.getReadyNodes().contains(waiting));
+	}
+
+	@Test
+	public void millionNodeChainDoesNotOverflowTheStack() throws Exception {
+		int length = 1_000_000;
+		Dependency<Integer, String> root = new Dependency<>(0, "link");
+		Dependency<Integer, String> leaf = root;
+		for (int i = 1; i < length; i++) {
+			Dependency<Integer, String> next = new Dependency<>(i, "link");
+			next.addDependency(leaf);
+			leaf = next;
+		}
+
+		assertEquals(Set.of(0), leaf.getRootNodes().keySet());
+		assertEquals(Set.of(length - 1), root.getLeafNodes().keySet());
+		assertTrue(leaf.hasDependency(root));
+		assertTrue(root.hasDependant(leaf));
+
+		leaf.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES);
+		assertEquals(DependencyForest.SerializingScheme.DEPENDENCIES, root.getSerializingScheme());
+		assertEquals(length, leaf.size());
+
+		String json = leaf.toJson();
+		assertTrue(json.startsWith("{\"dataKey\":\"" + (length - 1) + "\""));
+		assertTrue(json.endsWith("\"dependencies\":[null]}" + "]}".repeat(length - 1)));
+		assertEquals(length - 1, Dependency.fromJson(json).iterator().next().countAncestors());
+		json = root.toJson(DependencyForest.SerializingScheme.DEPENDANTS);
+		assertTrue(json.endsWith("\"dependants\":[null]}" + "]}".repeat(length - 1)));
+		assertEquals(length - 1, Dependency.fromJson(json).iterator().next().countDescendants());
+
+		// Rendered trees are indented by depth, so on a chain they come to over n^2/2 characters. They are
+		// streamed to an Appendable which only counts them.
+		CharacterCount tree = new CharacterCount();
+		leaf.writeTree(tree, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertTrue(tree.count > (long) length * (length - 1) / 2);
+		assertEquals("<< NO DEPENDENCIES >>\n", tree.last);
+		CharacterCount dependantTree = new CharacterCount();
+		root.writeDependantTree(dependantTree, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertTrue(dependantTree.count > (long) length * (length - 1) / 2);
+		assertEquals("<< NO DEPENDANTS >>\n", dependantTree.last);
+
+		DependencyForest<Integer, String> forest = new DependencyForest<>();
+		forest.addDependency(leaf);
+		assertEquals(length, forest.size());
+		assertEquals(List.of(root), forest.getRootNodes());
+
+		CharacterCount trees = new CharacterCount();
+		forest.writeAllTrees(trees, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertEquals(dependantTree.count, trees.count);
+		json = forest.toJson();
+		assertTrue(json.endsWith("\"dependants\":[null]}" + "]}".repeat(length - 1) + "]"));
+		assertEquals(length - 1, Dependency.fromJson(json).iterator().next().countDescendants());
+		assertEquals(length, DependencyForest.fromJson(json).size());
+		forest.setJsonFormat(DependencyForest.JsonFormat.GRAPH);
+		json = forest.toJson();
+		assertEquals(length, Dependency.fromJson(json).size());
+		assertEquals(length, DependencyForest.fromJson(json).size());
+	}
+
+	/**
+	 * Counts the characters appended to it, keeping only the last String.
+	 */
+	private static final class CharacterCount implements Appendable {
+		private long count;
+		private String last;
+
+		@Override
+		public Appendable append(CharSequence csq) {
+			count += csq.length();
+			if (csq instanceof String string) last = string;
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			return append(csq.subSequence(start, end));
+		}
+
+		@Override
+		public Appendable append(char c) {
+			count++;
+			return this;
+		}
+	}
+
+	@Test
+	public void distinctCountsVisitSharedNodesOnce() throws CircularDependencyException {
+		// Forty levels of diamonds: 2^40 routes from top to bottom but only 121 distinct nodes.
+		Dependency<String, String> root = new Dependency<>("root", "root");
+		Dependency<String, String> top = diamonds(root, 40);
+
+		assertEquals(120, top.countAncestors());
+		assertEquals(120, root.countDescendants());
+		assertEquals(0, root.countAncestors());
+		assertEquals(121, root.distinctSize());
+		top.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES);
+		assertEquals(121, top.distinctSize());
+
+		assertEquals(120, top.cachedAncestorCount());
+		assertEquals(120, root.cachedDescendantCount());
+		Dependency<String, String> extra = new Dependency<>("extra", "extra");
+		root.addDependency(extra);
+		assertEquals(121, top.cachedAncestorCount());
+		assertEquals(120, root.cachedDescendantCount());
+		assertEquals(121, extra.cachedDescendantCount());
+	}
+
+	@Test
+	public void routeStatisticsWorkedOutDuringAChangeAreNotKept() throws Exception {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		List<Dependency<String, String>> chain = new ArrayList<>();
+		chain.add(new Dependency<>("c0", "chain"));
+		forest.addDependency(chain.get(0));
+		for (int i = 1; i <= 50; i++) {
+			chain.add(new Dependency<>("c" + i, "chain"));
+			chain.get(i).addDependency(chain.get(i - 1));
+		}
+		Dependency<String, String> bottom = chain.get(50);
+
+		// One thread keeps giving the chain a new root and taking it away while others read the depth.
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			AtomicBoolean writing = new AtomicBoolean(true);
+			List<Future<?>> readers = new ArrayList<>();
+			for (int t = 0; t < 2; t++) {
+				readers.add(pool.submit(() -> {
+					while (writing.get()) bottom.maxDepth();
+				}));
+			}
+			Future<?> writer = pool.submit(() -> {
+				try {
+					for (int i = 0; i < 2_000; i++) {
+						Dependency<String, String> extra = new Dependency<>("extra" + i, "extra");
+						chain.get(0).addDependency(extra);
+						forest.removeDependency(extra);
+					}
+				} finally {
+					writing.set(false);
+				}
+				return null;
+			});
+			writer.get();
+			for (Future<?> reader : readers) reader.get();
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals(50, bottom.maxDepth());
+		assertEquals(25, chain.get(25).maxDepth());
+		assertEquals(1, bottom.countRoutesToRoots());
+	}
+
+	@Test
+	public void routeStatisticsAreOnlyDroppedBelowAChange() throws CircularDependencyException {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("a", "a");
+		Dependency<String, String> b = new Dependency<>("b", "b");
+		Dependency<String, String> c = new Dependency<>("c", "c");
+		Dependency<String, String> x = new Dependency<>("x", "x");
+		Dependency<String, String> y = new Dependency<>("y", "y");
+		c.addDependency(b);
+		b.addDependency(a);
+		y.addDependency(x);
+		forest.addDependency(c);
+		forest.addDependency(y);
+		assertEquals(2, c.maxDepth());
+		assertEquals(1, y.maxDepth());
+
+		// A change to one tree leaves the other's statistics alone.
+		Dependency<String, String> w = new Dependency<>("w", "w");
+		x.addDependency(w);
+		assertTrue(c.hasRouteStatistics());
+		assertTrue(a.hasRouteStatistics());
+		assertFalse(x.hasRouteStatistics());
+		assertFalse(y.hasRouteStatistics());
+		assertEquals(2, y.maxDepth());
+
+		// Within a tree only the dependants of the Dependency which changed lose theirs.
+		b.addDependency(x);
+		assertTrue(a.hasRouteStatistics());
+		assertFalse(b.hasRouteStatistics());
+		assertFalse(c.hasRouteStatistics());
+		assertEquals(3, c.maxDepth());
+		assertEquals(2, c.countRoutesToRoots());
+
+		// Removing x grafts b and y on to w.
+		forest.removeDependency(x);
+		assertTrue(a.hasRouteStatistics());
+		assertFalse(c.hasRouteStatistics());
+		assertFalse(y.hasRouteStatistics());
+		assertEquals(2, c.maxDepth());
+		assertEquals(2, c.countRoutesToRoots());
+		assertEquals(1, y.maxDepth());
+		assertEquals(2, forest.maxDepth());
+	}
+
+	@Test
+	public void memoizedCountsOnlyFollowChangesInTheirOwnForest() throws CircularDependencyException {
+		DependencyForest<String, String> first = new DependencyForest<>();
+		Dependency<String, String> x = new Dependency<>("x", "x");
+		x.addDependency(new Dependency<>("y", "y"));
+		first.addDependency(x);
+		assertEquals(1, x.cachedAncestorCount());
+
+		// Wired behind the forest's back, so the memo isn't told.
+		x.getDependencies().put("z", new Dependency<>("z", "z"));
+
+		DependencyForest<String, String> second = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("a", "a");
+		second.addDependency(a);
+		a.addDependency(new Dependency<>("b", "b"));
+		assertEquals(1, x.cachedAncestorCount());
+
+		x.addDependency(new Dependency<>("w", "w"));
+		assertEquals(3, x.cachedAncestorCount());
+	}
+
+	@Test
+	public void visitedSetsGrowPastTheirRetainedCapacityAndRecover() {
+		// Enough nodes for one traversal to grow this thread's visited set past the size it keeps.
+		Dependency<Integer, String> root = new Dependency<>(0, "root");
+		Dependency<Integer, String> top = root;
+		for (int i = 1; i <= 100_000; i++) {
+			Dependency<Integer, String> next = new Dependency<>(i, "node");
+			next.linkDependency(top);
+			top = next;
+		}
+		assertEquals(100_000, top.countAncestors());
+		assertEquals(100_000, root.countDescendants());
+
+		Dependency<Integer, String> a = new Dependency<>(1, "a");
+		Dependency<Integer, String> b = new Dependency<>(2, "b");
+		a.linkDependency(b);
+		assertEquals(1, a.countAncestors());
+		assertEquals(0, b.countAncestors());
+	}
+
+	@Test
+	public void writeJsonStreamsTheSameJsonAsToJson() throws Exception {
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		Dependency<String, String> d = new Dependency<>("D", "d");
+		b.addDependency(a);
+		c.addDependency(a);
+		d.addDependency(b);
+		d.addDependency(c);
+
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		forest.addDependency(d);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		forest.writeJson(out);
+		assertEquals(forest.toJson(), out.toString(StandardCharsets.UTF_8));
+
+		// The writer is left open for the caller.
+		StringWriter writer = new StringWriter();
+		a.writeJson(writer);
+		writer.write("!");
+		assertEquals(a.toJson() + "!", writer.toString());
+		assertEquals(1, Dependency.fromJson(writer.toString().substring(0, writer.toString().length() - 1)).size());
+
+		// A tree which can't be written is an error, not an empty document.
+		forest.setValueCodec(new DependencyCodec<String>() {
+			@Override
+			public void write(String value, JsonGenerator gen) throws IOException {
+				throw new IOException("Can't write " + value);
+			}
+
+			@Override
+			public String read(JsonParser jp) throws IOException {
+				return jp.getText();
+			}
+		});
+		UncheckedIOException failure = assertThrows(UncheckedIOException.class, a::toJson);
+		assertEquals("Can't write a", failure.getCause().getMessage());
+	}
+
+	@Test
+	public void graphJsonWritesSharedNodesOnce() throws Exception {
+		// Thirty levels of diamonds would nest 2^30 copies of the root in the tree format.
+		Dependency<String, String> root = new Dependency<>("root", "root");
+		Dependency<String, String> top = diamonds(root, 30);
+		root.setFinished(true);
+
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		forest.setJsonFormat(DependencyForest.JsonFormat.GRAPH);
+		forest.addDependency(top);
+		String json = forest.toJson();
+		assertEquals(2, json.split("\"dataKey\":\"root\"", -1).length);
+
+		Collection<Dependency> nodes = Dependency.fromJson(json);
+		assertEquals(91, nodes.size());
+		DependencyForest<String, String> copy = new DependencyForest<>();
+		nodes.forEach(copy::addDependency);
+		assertEquals(91, copy.size());
+		assertEquals(90, copy.get("J29").countAncestors());
+		assertTrue(copy.get("root").isFinished());
+		assertEquals(List.of("root"), copy.getRootNodes().stream().map(Dependency::getDataKey).toList());
+
+		assertThrows(JsonMappingException.class, () -> Dependency.fromJson(
+				"{\"nodes\":[{\"dataKey\":\"A\",\"data\":\"a\",\"finished\":false},"
+						+ "{\"dataKey\":\"B\",\"data\":\"b\",\"finished\":false}],"
+						+ "\"edges\":[[\"A\",\"B\"],[\"B\",\"A\"]]}"));
+
+		// A tree which can't be read is reported rather than returned half read.
+		assertThrows(JsonMappingException.class, () -> Dependency.fromJson(
+				"[{\"dataKey\":\"A\",\"data\":\"a\",\"dependants\":[{\"dataKey\":\"B\",\"data\":}]}]"));
+		assertThrows(JsonMappingException.class, () -> Dependency.fromJson(
+				"{\"dataKey\":\"A\",\"data\":\"a\",\"dependants\":[{\"dataKey\":\"B\",\"data\":}]}"));
+	}
+
+	@Test
+	public void deepTreesAreReadInEitherDirection() throws Exception {
+		int length = 200_000;
+		Dependency<String, String> root = new Dependency<>("0", "link");
+		Dependency<String, String> leaf = root;
+		for (int i = 1; i < length; i++) {
+			Dependency<String, String> next = new Dependency<>(Integer.toString(i), "link");
+			next.addDependency(leaf);
+			leaf = next;
+		}
+
+		// Nested through dependencies, leaf outermost.
+		leaf.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES);
+		Collection<Dependency> read = Dependency.fromJson(leaf.toJson());
+		assertEquals(1, read.size());
+		Dependency<String, String> readLeaf = read.iterator().next();
+		assertEquals(Integer.toString(length - 1), readLeaf.getDataKey());
+		assertEquals(Set.of("0"), readLeaf.getRootNodes().keySet());
+		assertEquals(length - 1, readLeaf.countAncestors());
+
+		// Nested through dependants, root outermost. The scheme is set on every ancestor of the leaf.
+		leaf.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDANTS);
+		Dependency<String, String> readRoot = Dependency.fromJson(root.toJson()).iterator().next();
+		assertEquals("0", readRoot.getDataKey());
+		assertEquals(length - 1, readRoot.countDescendants());
+		assertEquals(Set.of(Integer.toString(length - 1)), readRoot.getLeafNodes().keySet());
+
+		// Unknown fields and null children are skipped.
+		Dependency<String, String> small = Dependency.fromJson("{\"dataKey\":\"A\",\"extra\":{\"x\":[1,2]},"
+				+ "\"data\":\"a\",\"finished\":true,\"dependants\":[null,{\"dataKey\":\"B\",\"data\":\"b\","
+				+ "\"finished\":false,\"dependants\":[null]}]}").iterator().next();
+		assertTrue(small.isFinished());
+		assertEquals(Set.of("B"), small.getDependants().keySet());
+		assertTrue(small.getDependants().get("B").hasDependency(small));
+	}
+
+	@Test
+	public void forestFromJsonInternsSharedNodes() throws Exception {
+		// D is shared by B and C, so a nested export repeats it under each of them.
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		Dependency<String, String> d = new Dependency<>("D", "d");
+		a.addDependency(b);
+		a.addDependency(c);
+		b.addDependency(d);
+		c.addDependency(d);
+		d.setFinished(true);
+		a.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES);
+
+		DependencyForest<String, String> forest = DependencyForest.fromJson(a.toJson());
+		assertEquals(Set.of("A", "B", "C", "D"), forest.getAllNodes().keySet());
+		Dependency<String, String> readD = forest.getAllNodes().get("D");
+		assertSame(readD, forest.getAllNodes().get("B").getDependencies().get("D"));
+		assertSame(readD, forest.getAllNodes().get("C").getDependencies().get("D"));
+		assertEquals(Set.of("B", "C"), readD.getDependants().keySet());
+		assertTrue(readD.isFinished());
+		assertEquals(List.of("A"), forest.getOutermostLeafDependencies().stream().map(Dependency::getDataKey).toList());
+		assertEquals(List.of("D"), forest.getDependenciesWithNoDependencies().stream().map(Dependency::getDataKey).toList());
+		assertEquals(DependencyForest.SerializingScheme.DEPENDENCIES, forest.getSerializingScheme());
+
+		// A graph document, with an isolated node.
+		DependencyForest<String, String> graph = DependencyForest.fromJson(new StringReader(
+				"{\"nodes\":[{\"dataKey\":\"A\",\"data\":\"a\",\"finished\":false},"
+						+ "{\"dataKey\":\"B\",\"data\":\"b\",\"finished\":false},"
+						+ "{\"dataKey\":\"E\",\"data\":\"e\",\"finished\":false}],"
+						+ "\"edges\":[[\"A\",\"B\"]]}"));
+		assertEquals(Set.of("A", "B", "E"), graph.getAllNodes().keySet());
+		assertTrue(graph.getAllNodes().get("A").hasDependency(graph.getAllNodes().get("B")));
+		assertEquals(DependencyForest.JsonFormat.GRAPH, graph.getJsonFormat());
+
+		// A cycle is reported once the whole document has been read.
+		assertThrows(CircularDependenciesException.class, () -> DependencyForest.fromJson(
+				"[{\"dataKey\":\"A\",\"data\":\"a\",\"dependencies\":[{\"dataKey\":\"B\",\"data\":\"b\"}]},"
+						+ "{\"dataKey\":\"B\",\"data\":\"b\",\"dependencies\":[{\"dataKey\":\"A\",\"data\":\"a\"}]}]"));
+	}
+
+	public record Payload(String name, int weight) {
+	}
+
+	@Test
+	public void codecsWriteKeysAndDataNatively() throws Exception {
+		DependencyForest<Long, Payload> forest = new DependencyForest<>(DependencyForest.SerializingScheme.DEPENDENCIES);
+		forest.setKeyCodec(DependencyCodec.longs());
+		forest.setValueCodec(DependencyCodec.json(Payload.class));
+		Dependency<Long, Payload> build = new Dependency<>(1L, new Payload("build", 3));
+		Dependency<Long, Payload> compile = new Dependency<>(2L, new Payload("compile", 5));
+		build.addDependency(compile);
+		forest.addDependency(build);
+
+		String json = forest.toJson();
+		assertEquals("[{\"dataKey\":1,\"data\":{\"name\":\"build\",\"weight\":3},\"finished\":false,"
+				+ "\"dependencies\":[{\"dataKey\":2,\"data\":{\"name\":\"compile\",\"weight\":5},"
+				+ "\"finished\":false,\"dependencies\":[null]}]}]", json);
+
+		DependencyForest<Long, Payload> read = DependencyForest.fromJson(json, DependencyCodec.longs(),
+				DependencyCodec.json(Payload.class));
+		assertEquals(Set.of(1L, 2L), read.getAllNodes().keySet());
+		assertEquals(new Payload("compile", 5), read.get(2L).getData());
+		assertTrue(read.get(1L).hasDependency(read.get(2L)));
+
+		// The graph format, and reading into a Collection, use the codecs too.
+		forest.setJsonFormat(DependencyForest.JsonFormat.GRAPH);
+		json = forest.toJson();
+		assertTrue(json.contains("\"edges\":[[1,2]]"), json);
+		Collection<Dependency<Long, Payload>> nodes = Dependency.fromJson(json, DependencyCodec.longs(),
+				DependencyCodec.json(Payload.class));
+		assertEquals(List.of(1L, 2L), nodes.stream().map(Dependency::getDataKey).sorted().toList());
+
+		// Keys written as strings by the default codec are still read as numbers.
+		assertEquals(Set.of(7L), DependencyForest.fromJson("{\"dataKey\":\"7\",\"data\":null}",
+				DependencyCodec.longs(), DependencyCodec.json(Payload.class)).getAllNodes().keySet());
+	}
+
+	@Test
+	public void snapshotsAreReadLazilyAndIntoAForest(@TempDir Path dir)
+			throws Exception {
+		DependencyForest<Long, Payload> forest = new DependencyForest<>();
+		forest.setKeyCodec(DependencyCodec.longs());
+		forest.setValueCodec(DependencyCodec.json(Payload.class));
+		Dependency<Long, Payload> a = new Dependency<>(1L, new Payload("a", 1));
+		Dependency<Long, Payload> b = new Dependency<>(2L, new Payload("b", 2));
+		Dependency<Long, Payload> c = new Dependency<>(3L, new Payload("c", 3));
+		Dependency<Long, Payload> d = new Dependency<>(4L, new Payload("d", 4));
+		a.addDependency(b);
+		a.addDependency(c);
+		b.addDependency(d);
+		c.addDependency(d);
+		d.setFinished(true);
+		forest.addDependency(a);
+		forest.addDependency(new Dependency<>(5L, new Payload("alone", 0)));
+
+		Path file = dir.resolve("forest.snapshot");
+		DependencySnapshot.write(forest, file);
+		DependencySnapshot<Long, Payload> snapshot = DependencySnapshot.open(file, DependencyCodec.longs(),
+				DependencyCodec.json(Payload.class));
+		assertEquals(5, snapshot.size());
+		assertEquals(4, snapshot.edgeCount());
+
+		int nodeD = snapshot.indexOf(4L);
+		assertTrue(snapshot.isFinished(nodeD));
+		assertEquals(new Payload("d", 4), snapshot.data(nodeD));
+		Set<Long> dependantsOfD = new HashSet<>();
+		for (int dependant : snapshot.dependants(nodeD)) dependantsOfD.add(snapshot.key(dependant));
+		assertEquals(Set.of(2L, 3L), dependantsOfD);
+		assertEquals(0, snapshot.dependencies(nodeD).length);
+		assertEquals(-1, snapshot.indexOf(99L));
+
+		DependencyForest<Long, Payload> read = snapshot.toForest();
+		assertEquals(forest.getAllNodes().keySet(), read.getAllNodes().keySet());
+		assertSame(read.get(4L), read.get(2L).getDependencies().get(4L));
+		assertSame(read.get(4L), read.get(3L).getDependencies().get(4L));
+		assertTrue(read.get(4L).isFinished());
+		assertEquals(new Payload("alone", 0), read.get(5L).getData());
+		assertEquals(forest.toJson().length(), read.toJson().length());
+
+		Path notASnapshot = dir.resolve("other");
+		Files.writeString(notASnapshot, "{}");
+		assertThrows(IOException.class, () -> DependencySnapshot.open(notASnapshot));
+	}
+
+	private static Set<String> edgesOf(DependencyForest<String, String> forest) {
+		Set<String> edges = new HashSet<>();
+		for (Dependency<String, String> node : forest.getAllNodes().values()) {
+			if (!node.hasDependencies()) continue;
+			node.getDependencies().keySet().forEach(key -> edges.add(node.getDataKey() + "->" + key));
+		}
+		return edges;
+	}
+
+	@Test
+	public void journalRecoversTheForestAfterCompactionAndATornRecord(@TempDir Path dir) throws Exception {
+		DependencyJournal<String, String> journal = DependencyJournal.open(dir);
+		DependencyForest<String, String> forest = journal.getForest();
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		a.addDependency(b);
+		forest.addDependency(a);
+		b.addDependency(c);
+		c.setFinished(true);
+		forest.addAll(List.of(new DependencyForest.Edge<>(a, c)));
+		forest.addDependency(new Dependency<>("D", "d"));
+		journal.close();
+
+		journal = DependencyJournal.open(dir);
+		forest = journal.getForest();
+		assertEquals(Set.of("A", "B", "C", "D"), forest.getAllNodes().keySet());
+		assertEquals(Set.of("A->B", "B->C", "A->C"), edgesOf(forest));
+		assertTrue(forest.get("C").isFinished());
+		assertEquals(Set.of("B", "D"), forest.getReadyNodes().stream().map(Dependency::getDataKey)
+				.collect(Collectors.toSet()));
+
+		// Compact, then carry on changing the forest.
+		journal.compact().get();
+		forest.get("A").removeDependency(forest.get("B"));
+		forest.get("C").setFinished(false);
+		Set<String> expected = edgesOf(forest);
+		journal.sync();
+		journal.close();
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(1, files.filter(file -> file.toString().endsWith(".bin")).count());
+		}
+
+		// A record cut short by a crash is dropped.
+		Path segment;
+		try (Stream<Path> files = Files.list(dir)) {
+			segment = files.filter(file -> file.toString().endsWith(".log")).max(Path::compareTo).orElseThrow();
+		}
+		Files.writeString(segment, "[\"E\",\"A\",", StandardOpenOption.APPEND);
+
+		journal = DependencyJournal.open(dir);
+		forest = journal.getForest();
+		assertEquals(expected, edgesOf(forest));
+		assertEquals(Set.of("A", "C", "D"), forest.getAllNodes().keySet());
+		assertFalse(forest.get("C").isFinished());
+		forest.clear();
+		journal.close();
+
+		journal = DependencyJournal.open(dir);
+		assertEquals(0, journal.getForest().size());
+		journal.close();
+	}
+
+	@Test
+	public void journalReplaysFinishedFlagsAmongNewNodes(@TempDir Path dir) throws Exception {
+		DependencyJournal<String, String> journal = DependencyJournal.open(dir);
+		DependencyForest<String, String> forest = journal.getForest();
+		Dependency<String, String> previous = new Dependency<>("0", "node");
+		forest.addDependency(previous);
+		for (int i = 1; i < 1_000; i++) {
+			Dependency<String, String> next = new Dependency<>(String.valueOf(i), "node");
+			next.addDependency(previous);
+			forest.addDependency(next);
+			previous.setFinished(true);
+			if (i % 3 == 0) next.setFinished(true);
+			if (i % 3 == 0) next.setFinished(false);
+			previous = next;
+		}
+		journal.close();
+
+		journal = DependencyJournal.open(dir);
+		forest = journal.getForest();
+		assertEquals(1_000, forest.size());
+		for (int i = 0; i < 999; i++) assertTrue(forest.get(String.valueOf(i)).isFinished());
+		assertFalse(forest.get("999").isFinished());
+		assertEquals(List.of(forest.get("999")), new ArrayList<>(forest.getReadyNodes()));
+		journal.close();
+	}
+
+	@Test
+	public void journalLogsEachNewEdgeOnce(@TempDir Path dir) throws Exception {
+		DependencyJournal<String, String> journal = DependencyJournal.open(dir);
+		DependencyForest<String, String> forest = journal.getForest();
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		Dependency<String, String> d = new Dependency<>("D", "d");
+		Dependency<String, String> e = new Dependency<>("E", "e");
+		forest.addDependency(b);
+		forest.addDependency(c);
+
+		// A loose dependant joining, a new edge between members, and a loose dependency joining.
+		a.addDependency(b);
+		a.addDependency(c);
+		d.addDependency(e);
+		c.addDependency(d);
+
+		// The same three cases in bulk, alongside an edge between two loose Dependency objects.
+		Dependency<String, String> f = new Dependency<>("F", "f");
+		Dependency<String, String> g = new Dependency<>("G", "g");
+		Dependency<String, String> h = new Dependency<>("H", "h");
+		forest.addAll(List.of(
+				new DependencyForest.Edge<>(f, a),
+				new DependencyForest.Edge<>(b, e),
+				new DependencyForest.Edge<>(e, g),
+				new DependencyForest.Edge<>(g, h)));
+		journal.sync();
+		journal.close();
+
+		List<String> logged = new ArrayList<>();
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path segment : files.filter(file -> file.toString().endsWith(".log")).toList()) {
+				Files.readAllLines(segment).stream().filter(line -> line.startsWith("[\"E\"")).forEach(logged::add);
+			}
+		}
+		Collections.sort(logged);
+		assertEquals(List.of("[\"E\",\"A\",\"B\"]", "[\"E\",\"A\",\"C\"]", "[\"E\",\"B\",\"E\"]",
+				"[\"E\",\"C\",\"D\"]", "[\"E\",\"D\",\"E\"]", "[\"E\",\"E\",\"G\"]", "[\"E\",\"F\",\"A\"]",
+				"[\"E\",\"G\",\"H\"]"), logged);
+	}
+
+	@Test
+	public void aTransactionWhichThrowsIsRolledBack(@TempDir Path dir) throws Exception {
+		// Keys the journal refuses to write, so a change fails half way through.
+		AtomicReference<String> refused = new AtomicReference<>();
+		DependencyCodec<String> keys = new DependencyCodec<>() {
+			@Override
+			public void write(String value, JsonGenerator gen) throws IOException {
+				if (value.equals(refused.get())) throw new IOException("Can't write " + value);
+				DependencyCodec.strings().write(value, gen);
+			}
+
+			@Override
+			public String read(JsonParser jp) throws IOException {
+				return DependencyCodec.strings().read(jp);
+			}
+		};
+		DependencyJournal<String, String> journal = DependencyJournal.open(dir, keys, DependencyCodec.strings());
+		DependencyForest<String, String> forest = journal.getForest();
+		forest.setReachabilityIndexed(true);
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		b.addDependency(a);
+		c.addDependency(b);
+		forest.addDependency(c);
+		Set<String> edges = edgesOf(forest);
+		ForestVersion<String, String> version = forest.snapshot();
+
+		// X is wired in and joins the forest before the journal refuses it.
+		refused.set("X");
+		Dependency<String, String> x = new Dependency<>("X", "x");
+		UncheckedIOException failure = assertThrows(UncheckedIOException.class, () -> x.addDependency(c));
+		assertEquals("Can't write X", failure.getCause().getMessage());
+		assertEquals(Set.of("A", "B", "C"), forest.getAllNodes().keySet());
+		assertEquals(edges, edgesOf(forest));
+		assertFalse(x.hasForest());
+		assertFalse(x.hasDependencies());
+		assertFalse(c.hasDependants());
+		assertEquals(List.of(c), forest.getOutermostLeafDependencies());
+		assertEquals(version.getNumber(), forest.snapshot().getNumber());
+		assertFalse(forest.snapshot().containsKey("X"));
+
+		// Removing B grafts C on to A, and the journal refuses the new edge once B is out of the forest.
+		refused.set("C");
+		assertThrows(UncheckedIOException.class, () -> forest.removeDependency(b));
+		assertEquals(Set.of("A", "B", "C"), forest.getAllNodes().keySet());
+		assertEquals(edges, edgesOf(forest));
+		assertSame(forest, b.getDependencyForest());
+		assertSame(b, c.getDependencies().get("B"));
+		assertSame(b, a.getDependants().get("B"));
+		assertEquals(List.of(a), forest.getRootNodes());
+		assertEquals(List.of(a), forest.getReadyNodes());
+		assertTrue(c.hasDependency(a));
+		assertFalse(a.hasDependency(c));
+		// The order still keeps out a cycle through the edges put back.
+		refused.set(null);
+		assertThrows(CircularDependencyException.class, () -> a.addDependency(c));
+		assertEquals(version.getNumber(), forest.snapshot().getNumber());
+		assertEquals(Set.of("A", "B", "C"), forest.snapshot().keySet());
+
+		Dependency<String, String> d = new Dependency<>("D", "d");
+		d.addDependency(c);
+		journal.close();
+
+		journal = DependencyJournal.open(dir, keys, DependencyCodec.strings());
+		DependencyForest<String, String> reopened = journal.getForest();
+		assertEquals(Set.of("A", "B", "C", "D"), reopened.getAllNodes().keySet());
+		assertEquals(Set.of("B->A", "C->B", "D->C"), edgesOf(reopened));
+		journal.close();
+	}
+
+	@Test
+	public void removeDependencyOnlyLooksAmongTheDependenciesOfItsTarget() throws Exception {
+		// A and X both depend on T, and B depends on A.
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> t = new Dependency<>("T", "t");
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> x = new Dependency<>("X", "x");
+		forest.addDependency(t);
+		a.addDependency(t);
+		b.addDependency(a);
+		x.addDependency(t);
+
+		// X isn't among the dependencies of B, so B can't remove it.
+		b.removeDependency(x);
+		assertSame(x, forest.get("X"));
+		assertSame(x, t.getDependants().get("X"));
+
+		// T is, through A.
+		b.removeDependency(new Dependency<>("T", "t"));
+		assertNull(forest.get("T"));
+		assertTrue(a.isRootNode());
+		assertTrue(x.isRootNode());
+
+		// The forest removes a member wherever it lies.
+		forest.removeDependency(x);
+		assertNull(forest.get("X"));
+		assertEquals(Set.of("A", "B"), forest.getAllNodes().keySet());
+	}
+
+	@Test
+	public void removalLeavesNoStaleReferences() throws Exception {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		Dependency<String, String> leaf = new Dependency<>("L", "l");
+		b.addDependency(a);
+		c.addDependency(b);
+		forest.addDependency(c);
+		forest.addDependency(leaf);
+
+		// A root with no dependants of its own left behind.
+		forest.removeDependency(new Dependency<>("L", "l"));
+		assertFalse(forest.containsKey("L"));
+		assertFalse(forest.getRootNodes().contains(leaf));
+		assertFalse(forest.getOutermostLeafDependencies().contains(leaf));
+		assertFalse(forest.getReadyNodes().contains(leaf));
+		assertFalse(leaf.hasForest());
+
+		// A middle node: C is grafted on to A and B is forgotten by both.
+		c.removeDependency(b);
+		assertEquals(Set.of("A", "C"), forest.getAllNodes().keySet());
+		assertEquals(Set.of("A"), c.getDependencies().keySet());
+		assertEquals(Set.of("C"), a.getDependants().keySet());
+		assertFalse(b.hasDependencies() || b.hasDependants() || b.hasForest());
+		assertEquals(List.of("A"), forest.getReadyNodes().stream().map(Dependency::getDataKey).toList());
+
+		// A root: C is left with no dependencies and becomes ready.
+		c.removeDependency(a);
+		assertEquals(Set.of("C"), forest.getAllNodes().keySet());
+		assertFalse(c.hasDependencies());
+		assertEquals(List.of("C"), forest.getRootNodes().stream().map(Dependency::getDataKey).toList());
+		assertEquals(List.of("C"), forest.getReadyNodes().stream().map(Dependency::getDataKey).toList());
+	}
+
+	@Test
+	public void removingAHubRegraftsOnlyTheEdgesStillNeeded() throws Exception {
+		// P1 depends on P0 and X on P2, so once H goes, C0 still reaches P2 and every child reaches P0 through P1.
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> hub = new Dependency<>("H", "h");
+		Dependency<String, String> x = new Dependency<>("X", "x");
+		List<Dependency<String, String>> parents = new ArrayList<>();
+		List<Dependency<String, String>> children = new ArrayList<>();
+		List<DependencyForest.Edge<String, String>> edges = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			parents.add(new Dependency<>("P" + i, "p"));
+			edges.add(new DependencyForest.Edge<>(hub, parents.get(i)));
+		}
+		for (int i = 0; i < 300; i++) {
+			children.add(new Dependency<>("C" + i, "c"));
+			edges.add(new DependencyForest.Edge<>(children.get(i), hub));
+		}
+		edges.add(new DependencyForest.Edge<>(parents.get(1), parents.get(0)));
+		edges.add(new DependencyForest.Edge<>(x, parents.get(2)));
+		edges.add(new DependencyForest.Edge<>(children.get(0), x));
+		forest.addAll(edges);
+
+		forest.removeDependency(hub);
+
+		assertFalse(forest.containsKey("H"));
+		Set<String> expected = parents.stream().map(Dependency::getDataKey)
+				.filter(key -> !key.equals("P0")).collect(Collectors.toSet());
+		for (int i = 1; i < children.size(); i++) {
+			assertEquals(expected, children.get(i).getDependencies().keySet());
+		}
+		Set<String> expectedC0 = new HashSet<>(expected);
+		expectedC0.remove("P2");
+		expectedC0.add("X");
+		assertEquals(expectedC0, children.get(0).getDependencies().keySet());
+		assertEquals(Set.of("P1"), parents.get(0).getDependants().keySet());
+		assertEquals(children.size(), parents.get(39).getDependants().size());
+
+		// Adding a removed edge again is rejected as it duplicates the route through P1.
+		assertThrows(CircularDependencyException.class, () -> children.get(5).addDependency(parents.get(0)));
+		assertEquals(parents.size() - 1, forest.getRootNodes().size());
+	}
+
+	@Test
+	public void treeRenderingExpandsSharedNodesOnce() throws Exception {
+		// Two nodes per layer, each depending on both nodes of the layer above: 2^40 routes to the bottom.
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		List<DependencyForest.Edge<String, String>> edges = new ArrayList<>();
+		Dependency<String, String> top = new Dependency<>("T", "top");
+		List<Dependency<String, String>> above = List.of(top);
+		for (int layer = 0; layer < 40; layer++) {
+			List<Dependency<String, String>> current = List.of(new Dependency<>(layer + "a", "x"),
+					new Dependency<>(layer + "b", "y"));
+			for (Dependency<String, String> node : current) {
+				for (Dependency<String, String> dependency : above) edges.add(new DependencyForest.Edge<>(node, dependency));
+			}
+			above = current;
+		}
+		forest.addAll(edges);
+		top.setFinished(true);
+
+		String tree = top.dependantTreeToString();
+		String[] lines = tree.split("\n");
+		// T, the two dependants of T and of each of the 78 nodes expanded, and a NO DEPENDANTS line for each of
+		// the 4 times a bottom node is reached.
+		assertEquals(1 + 2 * 79 + 4, lines.length);
+		assertEquals("===> [T dependants=(2)] <===", lines[0]);
+		assertEquals("-[0a] x(2)", lines[1]);
+		assertEquals("--[1a] x(2)", lines[2]);
+		assertEquals("-[0b] y(2)", lines[lines.length - 3]);
+		assertEquals("--[1a] x(2) ^ SEE ABOVE", lines[lines.length - 2]);
+		assertEquals(76, Stream.of(lines).filter(line -> line.endsWith(" ^ SEE ABOVE")).count());
+
+		StringBuilder shallow = new StringBuilder();
+		top.writeDependantTree(shallow, 1, Integer.MAX_VALUE);
+		assertEquals(List.of("===> [T dependants=(2)] <===", "-[0a] x(2) ...", "-[0b] y(2) ..."),
+				shallow.toString().lines().toList());
+
+		StringBuilder limited = new StringBuilder();
+		forest.writeAllTrees(limited, Integer.MAX_VALUE, 3);
+		assertEquals("<< TRUNCATED AFTER 3 NODES >>", limited.toString().lines().reduce((a, b) -> b).orElseThrow());
+
+		top.setFinished(false);
+		Dependency<String, String> d0 = forest.get("0a");
+		d0.setFinished(true);
+		assertTrue(top.dependantTreeToString().contains("-[0a] x (finished)(2)"));
+	}
+
+	@Test
+	public void treeRenderingExpandsANodeCutOffByDepthWhereItIsReachedHigherUp() throws Exception {
+		// X is reached at depth 3 through A and C, and at depth 2 through B.
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> t = new Dependency<>("T", "t");
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		Dependency<String, String> x = new Dependency<>("X", "x");
+		Dependency<String, String> y = new Dependency<>("Y", "y");
+		forest.addDependency(t);
+		a.addDependency(t);
+		b.addDependency(t);
+		c.addDependency(a);
+		x.addDependency(c);
+		x.addDependency(b);
+		y.addDependency(x);
+
+		StringBuilder tree = new StringBuilder();
+		t.writeDependantTree(tree, 3, Integer.MAX_VALUE);
+		assertEquals(List.of("===> [T dependants=(2)] <===", "-[A] a(1)", "--[C] c(1)", "---[X] x(1) ...",
+				"-[B] b(1)", "--[X] x(1)", "---[Y] y(0)", "---<< NO DEPENDANTS >>"), tree.toString().lines().toList());
+	}
+
+	@Test
+	public void viewsSerializeInEitherDirectionWithoutTouchingTheForest() throws Exception {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		Dependency<String, String> c = new Dependency<>("C", "c");
+		b.addDependency(a);
+		c.addDependency(b);
+		forest.addDependency(c);
+
+		String down = forest.view(DependencyForest.SerializingScheme.DEPENDANTS).toJson();
+		String up = forest.view(DependencyForest.SerializingScheme.DEPENDENCIES).toJson();
+		assertTrue(down.startsWith("[{\"dataKey\":\"A\""));
+		assertTrue(up.startsWith("[{\"dataKey\":\"C\""));
+		assertEquals(down, forest.toJson());
+		assertEquals(DependencyForest.SerializingScheme.DEPENDANTS, b.getSerializingScheme());
+
+		// Readers in opposite directions at once.
+		DependencyForestView<String, String> upView = forest.view(DependencyForest.SerializingScheme.DEPENDENCIES);
+		List<Thread> threads = new ArrayList<>();
+		List<String> mismatches = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 4; t++) {
+			boolean upwards = t % 2 == 0;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 500; i++) {
+					String json = upwards ? upView.toJson() : forest.toJson();
+					if (!json.equals(upwards ? up : down)) mismatches.add(json);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) thread.join();
+		assertEquals(0, mismatches.size());
+
+		// Switching the forest's direction is read by its members, and kept by one which leaves.
+		forest.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES);
+		assertEquals(up, forest.toJson());
+		assertEquals(DependencyForest.SerializingScheme.DEPENDENCIES, a.getSerializingScheme());
+		assertEquals(3, c.size());
+		assertEquals(List.of("===> [C dependencies=(1)] <===", "-[B] b(1)", "--[A] a(0)", "--<< NO DEPENDENCIES >>"),
+				forest.allTreesToStrings().get(0).lines().toList());
+		forest.removeDependency(c);
+		assertEquals(DependencyForest.SerializingScheme.DEPENDENCIES, c.getSerializingScheme());
+	}
+
+	@Test
+	public void membersTakeTheirDirectionPerCallRatherThanBeingSwitched() throws Exception {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("A", "a");
+		Dependency<String, String> b = new Dependency<>("B", "b");
+		b.addDependency(a);
+		forest.addDependency(b);
+
+		assertThrows(IllegalStateException.class,
+				() -> b.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES));
+		assertEquals(DependencyForest.SerializingScheme.DEPENDANTS, b.getSerializingScheme());
+
+		String up = b.toJson(DependencyForest.SerializingScheme.DEPENDENCIES);
+		assertTrue(up.contains("\"dependencies\":[{\"dataKey\":\"A\""));
+		assertEquals(a.toJson(), a.toJson(DependencyForest.SerializingScheme.DEPENDANTS));
+		StringWriter writer = new StringWriter();
+		b.writeJson(writer, DependencyForest.SerializingScheme.DEPENDENCIES);
+		assertEquals(up, writer.toString());
+		assertEquals(List.of("===> [B dependencies=(1)] <===", "-[A] a(0)", "-<< NO DEPENDENCIES >>"),
+				b.treeToString(DependencyForest.SerializingScheme.DEPENDENCIES).lines().toList());
+		assertEquals(b.treeToString(DependencyForest.SerializingScheme.DEPENDANTS), b.treeToString());
+
+		// Outside a forest the direction can still be set.
+		forest.removeDependency(a);
+		a.setSerializingScheme(DependencyForest.SerializingScheme.DEPENDENCIES);
+		assertEquals(DependencyForest.SerializingScheme.DEPENDENCIES, a.getSerializingScheme());
+	}
+
+	/**
+	 * Runs a mixed load against a forest from several threads: adding dependencies in random directions, so that
+	 * some would close cycles, toggling finished flags and asking reachability questions.
+	 *
+	 * @return the number of operations run per second.
+	 */
+	private static double mixedLoad(DependencyForest<Integer, String> forest, int threads, int operations)
+			throws Exception {
+		int n = forest.size();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			List<Future<?>> workers = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				workers.add(executor.submit(() -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					for (int i = 0; i < operations; i++) {
+						Dependency<Integer, String> a = forest.get(random.nextInt(n));
+						Dependency<Integer, String> b = forest.get(random.nextInt(n));
+						int kind = random.nextInt(10);
+						if (kind < 2) {
+							try {
+								a.addDependency(b);
+							} catch (CircularDependencyException expected) {
+							}
+						} else if (kind < 4) {
+							a.setFinished(!a.isFinished());
+						} else {
+							a.hasDependency(b);
+						}
+					}
+				}));
+			}
+			// Rethrows whatever a worker threw.
+			for (Future<?> worker : workers) worker.get();
+			return threads * (double) operations * 1e9 / (System.nanoTime() - start);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static DependencyForest<Integer, String> isolatedNodes(int n) {
+		DependencyForest<Integer, String> forest = new DependencyForest<>();
+		for (int i = 0; i < n; i++) forest.addDependency(new Dependency<>(i, "node"));
+		return forest;
+	}
+
+	@Test
+	public void concurrentWritersKeepTheForestConsistent() throws Exception {
+		DependencyForest<Integer, String> forest = isolatedNodes(200);
+		mixedLoad(forest, 4, 5_000);
+
+		// Every edge has both sides, and the graph is acyclic.
+		Map<Integer, Integer> unsorted = new HashMap<>();
+		Deque<Dependency<Integer, String>> roots = new ArrayDeque<>();
+		for (Dependency<Integer, String> node : forest.getAllNodes().values()) {
+			int count = node.hasDependencies() ? node.getDependencies().size() : 0;
+			if (node.hasDependencies()) {
+				for (Dependency<Integer, String> dependency : node.getDependencies().values()) {
+					assertSame(node, dependency.getDependants().get(node.getDataKey()));
+				}
+			}
+			if (node.hasDependants()) {
+				for (Dependency<Integer, String> dependant : node.getDependants().values()) {
+					assertSame(node, dependant.getDependencies().get(node.getDataKey()));
+				}
+			}
+			unsorted.put(node.getDataKey(), count);
+			if (count == 0) roots.add(node);
+		}
+		int sorted = 0;
+		while (!roots.isEmpty()) {
+			Dependency<Integer, String> node = roots.poll();
+			sorted++;
+			if (!node.hasDependants()) continue;
+			for (Dependency<Integer, String> dependant : node.getDependants().values()) {
+				if (unsorted.merge(dependant.getDataKey(), -1, Integer::sum) == 0) roots.add(dependant);
+			}
+		}
+		assertEquals(200, sorted);
+
+		// The ready set matches the finished flags.
+		Set<Integer> ready = forest.getAllNodes().values().stream()
+				.filter(node -> !node.isFinished())
+				.filter(node -> !node.hasDependencies()
+						|| node.getDependencies().values().stream().allMatch(Dependency::isFinished))
+				.map(Dependency::getDataKey).collect(Collectors.toSet());
+		assertEquals(ready, forest.getReadyNodes().stream().map(Dependency::getDataKey).collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void changesJoiningTwoForestsLockBoth() throws Exception {
+		DependencyForest<Integer, String> left = isolatedNodes(100);
+		DependencyForest<Integer, String> right = new DependencyForest<>();
+		List<Dependency<Integer, String>> leftNodes = new ArrayList<>(left.getAllNodes().values());
+		List<Dependency<Integer, String>> rightNodes = new ArrayList<>();
+		for (int i = 100; i < 200; i++) {
+			rightNodes.add(new Dependency<>(i, "node"));
+			right.addDependency(rightNodes.get(i - 100));
+		}
+
+		// Each thread links the two forests in the opposite direction, so each takes the locks in the other order.
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> leftward = executor.submit(() -> link(leftNodes, rightNodes));
+			Future<?> rightward = executor.submit(() -> link(rightNodes, leftNodes));
+			leftward.get(30, TimeUnit.SECONDS);
+			rightward.get(30, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// Both ends of every edge ended up in the same forest, and every edge has both sides.
+		for (Dependency<Integer, String> node : leftNodes) {
+			if (!node.hasDependencies()) continue;
+			for (Dependency<Integer, String> dependency : node.getDependencies().values()) {
+				assertSame(node.getDependencyForest(), dependency.getDependencyForest());
+				assertSame(node, dependency.getDependants().get(node.getDataKey()));
+			}
+		}
+	}
+
+	private static Void link(List<Dependency<Integer, String>> from, List<Dependency<Integer, String>> to) {
+		for (int i = 0; i < from.size(); i++) {
+			try {
+				from.get(i).addDependency(to.get((i * 7) % to.size()));
+			} catch (CircularDependencyException expected) {
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Throughput of the mixed load for growing numbers of threads. The total number of operations is the same for
+	 * every thread count, so each run leaves the forest equally dense. Run with -Ddependencyutils.benchmark=true.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "dependencyutils.benchmark", matches = "true")
+	public void mixedLoadThroughput() throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= Math.max(8, 2 * cores); threads *= 2) {
+			// Warm up, then measure on a fresh forest.
+			mixedLoad(isolatedNodes(2_000), threads, 5_000);
+			double throughput = mixedLoad(isolatedNodes(2_000), threads, 50_000 / threads);
+			logger.info("{} thread(s) on {} core(s): {} operations/s", threads, cores, Math.round(throughput));
+		}
+	}
+
+	@Test
+	public void snapshotsAreImmutableVersionsOfTheForest() throws Exception {
+		DependencyForest<String, String> forest = new DependencyForest<>();
+		Dependency<String, String> a = new Dependency<>("a", "A");
+		Dependency<String, String> b = new Dependency<>("b", "B");
+		Dependency<String, String> c = new Dependency<>("c", "C");
+		b.addDependency(a);
+		c.addDependency(b);
+		forest.addDependency(c);
+
+		ForestVersion<String, String> first = forest.snapshot();
+		assertEquals(3, first.size());
+		assertEquals(Set.of("a"), first.getRootNodes());
+		assertEquals(Set.of("c"), first.getOutermostLeafDependencies());
+		assertTrue(first.hasDependency("c", "a"));
+		assertFalse(first.hasDependency("a", "c"));
+		assertSame(first, forest.snapshot());
+
+		// c is re-grafted onto a.
+		forest.removeDependency(b);
+		a.setFinished(true);
+		Dependency<String, String> d = new Dependency<>("d", "D");
+		forest.addDependency(d);
+		d.addDependency(c);
+
+		ForestVersion<String, String> second = forest.snapshot();
+		assertTrue(second.getNumber() > first.getNumber());
+		assertEquals(Set.of("a", "c", "d"), second.keySet());
+		assertEquals(Set.of("a"), second.getDependencies("c"));
+		assertEquals(Set.of("c"), second.getDependants("a"));
+		assertEquals(Set.of("a"), second.getRootNodes());
+		assertEquals(Set.of("d"), second.getOutermostLeafDependencies());
+		assertTrue(second.isFinished("a"));
+		assertTrue(second.hasDependency("d", "a"));
+		assertEquals("D", second.get("d"));
+
+		// The first version hasn't changed.
+		assertEquals(Set.of("a", "b", "c"), first.keySet());
+		assertEquals(Set.of("b"), first.getDependencies("c"));
+		assertFalse(first.isFinished("a"));
+
+		DependencyForest<String, String> copy = DependencyForest.fromJson(second.toJson());
+		assertEquals(3, copy.size());
+		assertTrue(copy.get("d").hasDependency(copy.get("a")));
+		assertTrue(copy.get("a").isFinished());
+
+		forest.clear();
+		assertEquals(0, forest.snapshot().size());
+		assertEquals(3, second.size());
+	}
+
+	@Test
+	public void snapshotsFollowConcurrentChanges() throws Exception {
+		DependencyForest<Integer, String> forest = isolatedNodes(200);
+		forest.snapshot();
+		mixedLoad(forest, 4, 2_000);
+		for (int i = 0; i < 200; i += 10) forest.removeDependency(forest.get(i));
+
+		ForestVersion<Integer, String> version = forest.snapshot();
+		assertEquals(forest.getAllNodes().keySet(), version.keySet());
+		for (Dependency<Integer, String> node : forest.getAllNodes().values()) {
+			Set<Integer> dependencies = node.hasDependencies() ? node.getDependencies().keySet() : Set.of();
+			Set<Integer> dependants = node.hasDependants() ? node.getDependants().keySet() : Set.of();
+			assertEquals(dependencies, version.getDependencies(node.getDataKey()));
+			assertEquals(dependants, version.getDependants(node.getDataKey()));
+			assertEquals(node.isFinished(), version.isFinished(node.getDataKey()));
+		}
+		assertEquals(forest.getRootNodes().stream().map(Dependency::getDataKey).collect(Collectors.toSet()),
+				version.getRootNodes());
+		assertEquals(forest.getOutermostLeafDependencies().stream().map(Dependency::getDataKey)
+				.collect(Collectors.toSet()), version.getOutermostLeafDependencies());
+	}
+
+	@Test
+	public void persistentHashMapsKeepEveryVersion() {
+		Random random = new Random(7);
+		Map<String, Integer> expected = new HashMap<>();
+		PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+		List<PersistentHashMap<String, Integer>> versions = new ArrayList<>();
+		List<Map<String, Integer>> contents = new ArrayList<>();
+		// "Aa" and "BB" have the same hash code, as do the strings built from them.
+		String[] parts = {"Aa", "BB"};
+		for (int i = 0; i < 5_000; i++) {
+			String key = random.nextBoolean()
+					? Integer.toString(random.nextInt(2_000))
+					: parts[random.nextInt(2)] + parts[random.nextInt(2)] + parts[random.nextInt(2)];
+			if (random.nextInt(3) == 0) {
+				map = map.remove(key);
+				expected.remove(key);
+			} else {
+				map = map.put(key, i);
+				expected.put(key, i);
+			}
+			if (i % 500 == 0) {
+				versions.add(map);
+				contents.add(new HashMap<>(expected));
+			}
+		}
+		versions.add(map);
+		contents.add(expected);
+
+		for (int v = 0; v < versions.size(); v++) {
+			PersistentHashMap<String, Integer> version = versions.get(v);
+			Map<String, Integer> content = contents.get(v);
+			assertEquals(content.size(), version.size());
+			assertEquals(content.keySet(), version.keySet());
+			for (Map.Entry<String, Integer> entry : content.entrySet()) {
+				assertEquals(entry.getValue(), version.get(entry.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void adjacencyMapsMatchHashMap() {
+		Random random = new Random(11);
+		List<Dependency<String, String>> pool = new ArrayList<>();
+		// "Aa" and "BB" have the same hash code, so the table has to probe past collisions.
+		for (int i = 0; i < 40; i++) pool.add(new Dependency<>(i % 2 == 0 ? "Aa" + i : "BB" + (i - 1), "x"));
+		AdjacencyMap<String, String> map = new AdjacencyMap<>();
+		Map<String, Dependency<String, String>> expected = new HashMap<>();
+		for (int i = 0; i < 20_000; i++) {
+			// Drift between a few members and many, so the map keeps switching between inline and table form.
+			int bound = (i / 1_000) % 2 == 0 ? 6 : pool.size();
+			Dependency<String, String> dependency = pool.get(random.nextInt(bound));
+			if (random.nextInt(3) == 0) {
+				assertSame(expected.remove(dependency.getDataKey()), map.remove(dependency.getDataKey()));
+			} else {
+				assertSame(expected.put(dependency.getDataKey(), dependency),
+						map.put(dependency.getDataKey(), dependency));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		assertEquals(expected.keySet(), map.keySet());
+		for (Dependency<String, String> dependency : pool) {
+			assertSame(expected.get(dependency.getDataKey()), map.get(dependency.getDataKey()));
+		}
+
+		map.values().removeIf(dependency -> dependency.getDataKey().startsWith("BB"));
+		expected.values().removeIf(dependency -> dependency.getDataKey().startsWith("BB"));
+		assertEquals(expected.keySet(), map.keySet());
+		assertThrows(IllegalArgumentException.class, () -> map.put("wrong", pool.get(0)));
+	}
+
+	@Test
+	public void adjacencyMapsNeverHideAPresentMemberFromReaders() throws Exception {
+		List<Dependency<Integer, String>> pool = new ArrayList<>();
+		for (int i = 0; i < 64; i++) pool.add(new Dependency<>(i, "x"));
+		AdjacencyMap<Integer, String> map = new AdjacencyMap<>();
+		for (int i = 0; i < 6; i++) map.put(i, pool.get(i));
+
+		// The writer keeps moving the map between inline and table form without touching the first six members.
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AtomicBoolean writing = new AtomicBoolean(true);
+			Future<?> writer = executor.submit(() -> {
+				try {
+					for (int round = 0; round < 2_000; round++) {
+						for (int i = 6; i < 64; i++) map.put(i, pool.get(i));
+						for (int i = 6; i < 64; i++) map.remove(i);
+					}
+				} finally {
+					writing.set(false);
+				}
+			});
+			while (writing.get()) {
+				for (int i = 0; i < 6; i++) assertSame(pool.get(i), map.get(i));
+				assertTrue(map.keySet().containsAll(List.of(0, 1, 2, 3, 4, 5)));
+				int seen = 0;
+				for (Dependency<Integer, String> member : map.values()) if (member.getDataKey() < 6) seen++;
+				assertEquals(6, seen);
+			}
+			writer.get();
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(6, map.size());
+	}
+
+	/**
+	 * Heap used per node by a forest of 100,000 nodes with one to three dependencies each, measured from the heap
+	 * in use before and after building it. Before adjacency was stored in AdjacencyMap and the per-node state in
+	 * each Dependency this came to about 650 bytes; it is now between 300 and 400 on a default HotSpot heap. The
+	 * figure depends on the JVM and its collector, so it is logged rather than asserted. Run with
+	 * -Ddependencyutils.benchmark=true.
+	 */
+	@Test
+	@EnabledIfSystemProperty(named = "dependencyutils.benchmark", matches = "true")
+	public void nodeFootprint() throws Exception {
+		int n = 100_000;
+		Random random = new Random(1);
+		long before = usedHeap();
+		DependencyForest<Integer, String> forest = new DependencyForest<>();
+		List<Dependency<Integer, String>> nodes = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			nodes.add(new Dependency<>(i, "node"));
+			forest.addDependency(nodes.get(i));
+		}
+		List<DependencyForest.Edge<Integer, String>> edges = new ArrayList<>();
+		for (int i = 1; i < n; i++) {
+			for (int j = random.nextInt(3); j >= 0; j--) {
+				edges.add(new DependencyForest.Edge<>(nodes.get(i), nodes.get(random.nextInt(i))));
+			}
+		}
+		forest.addAll(edges);
+		int edgeCount = edges.size();
+		nodes = null;
+		edges = null;
+		long used = usedHeap() - before;
+		long perNode = used / forest.size();
+		logger.info("{} nodes and {} edges: {} bytes per node", forest.size(), edgeCount, perNode);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}